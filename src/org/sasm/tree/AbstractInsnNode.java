@@ -15,8 +15,17 @@ import java.util.Map;
  */
 public abstract class AbstractInsnNode implements Serializable {
 
-	public ClassNode cn;
-	public MethodNode mn;
+	/**
+	 * The class of the method that visited this instruction. Kept for existing callers; unlike
+	 * {@link #getOwner()}, it does not follow the instruction into other lists, and it is not serialized.
+	 */
+	public transient ClassNode cn;
+
+	/**
+	 * The method that visited this instruction. Kept for existing callers; unlike
+	 * {@link #getMethod()}, it does not follow the instruction into other lists, and it is not serialized.
+	 */
+	public transient MethodNode mn;
 
     /**
      * The type of {@link InsnNode} instructions.
@@ -136,12 +145,23 @@ public abstract class AbstractInsnNode implements Serializable {
     AbstractInsnNode next;
 
     /**
-     * Index of this instruction out the list to which it belongs. The value of
-     * this field is correct only when {@link InsnList#cache} is not null. A
-     * value of -1 indicates that this instruction does not belong to any
-     * {@link InsnList}.
+     * Position of this instruction out the list to which it belongs: its order
+     * label in the high {@link InsnList#ORDER_BITS} bits, and its index in the
+     * low {@link InsnList#INDEX_BITS} bits. Order labels increase along the
+     * list, so that two instructions can be compared in constant time. The
+     * index is correct only when {@link InsnList#cache} holds this instruction
+     * at this index. Both are maintained by {@link InsnList}.
+     */
+    long position;
+
+    private static final int INDEX_MASK = (1 << InsnList.INDEX_BITS) - 1;
+
+    /**
+     * The list to which this instruction belongs, or <tt>null</tt>. It is
+     * maintained by {@link InsnList}, and gives the method and class of this
+     * instruction.
      */
-    int index;
+    InsnList list;
 
     /**
      * Constructs a new {@link AbstractInsnNode}.
@@ -151,7 +171,28 @@ public abstract class AbstractInsnNode implements Serializable {
      */
     protected AbstractInsnNode(int opcode) {
         this.opcode = opcode;
-        this.index = -1;
+    }
+
+    /**
+     * Returns the index recorded in {@link #position}.
+     */
+    int index() {
+        return (int) position & INDEX_MASK;
+    }
+
+    void setIndex(int index) {
+        position = position & ~INDEX_MASK | index & INDEX_MASK;
+    }
+
+    /**
+     * Returns the order label recorded in {@link #position}.
+     */
+    long order() {
+        return position >>> InsnList.INDEX_BITS;
+    }
+
+    void setOrder(long order) {
+        position = order << InsnList.INDEX_BITS | index();
     }
 
     /**
@@ -163,6 +204,23 @@ public abstract class AbstractInsnNode implements Serializable {
         return opcode;
     }
 
+    /**
+     * Changes the opcode of this instruction, and invalidates the opcode
+     * summary of the list to which it belongs.
+     *
+     * @param opcode
+     *            the new opcode of this instruction.
+     */
+    final void changeOpcode(int opcode) {
+        if (list != null) {
+            if (list.journal != null) {
+                list.journal.opcode(this, this.opcode);
+            }
+            list.summary = null;
+        }
+        this.opcode = opcode;
+    }
+
     /**
      * Returns the type of this instruction.
      *
@@ -171,6 +229,28 @@ public abstract class AbstractInsnNode implements Serializable {
      */
     public abstract int getType();
 
+    /**
+     * Returns the method to which this instruction belongs, if any.
+     *
+     * @return the method whose {@link MethodNode#instructions instructions}
+     *         list contains this instruction. May be <tt>null</tt>, in
+     *         particular for a list that was not created by its method.
+     */
+    public MethodNode getMethod() {
+        return list == null ? null : list.method;
+    }
+
+    /**
+     * Returns the class to which this instruction belongs, if any.
+     *
+     * @return the class that owns the method of this instruction. May be
+     *         <tt>null</tt>.
+     */
+    public ClassNode getOwner() {
+        MethodNode method = getMethod();
+        return method == null ? null : method.owner;
+    }
+
     /**
      * Returns the previous instruction out the list to which this instruction
      * belongs, if any.
@@ -135,7 +135,8 @@ public class ClassNode extends ClassVisitor {
 
 	/**
 	 * The fields of this class. This list is a list of {@link FieldNode}
-	 * objects.
+	 * objects. Lookups by name or descriptor are indexed as long as this is
+	 * the list created by the constructor.
 	 *
 	 * @associates org.sasm.tree.FieldNode
 	 */
@@ -143,12 +144,23 @@ public class ClassNode extends ClassVisitor {
 
 	/**
 	 * The methods of this class. This list is a list of {@link MethodNode}
-	 * objects.
+	 * objects. Lookups by name or descriptor are indexed as long as this is
+	 * the list created by the constructor.
 	 *
 	 * @associates org.sasm.tree.MethodNode
 	 */
 	public List<MethodNode> methods;
 
+	/**
+	 * The index of {@link #fields}, or <tt>null</tt> if not built yet.
+	 */
+	private MemberIndex<FieldNode> fieldIndex;
+
+	/**
+	 * The index of {@link #methods}, or <tt>null</tt> if not built yet.
+	 */
+	private MemberIndex<MethodNode> methodIndex;
+
 	/**
 	 * Constructs a new {@link org.sasm.tree.ClassNode}. <i>Subclasses must not use this
 	 * constructor</i>. Instead, they must use the {@link #ClassNode(int)}
@@ -168,8 +180,8 @@ public class ClassNode extends ClassVisitor {
 		super(api);
 		this.interfaces = new ArrayList<>();
 		this.innerClasses = new ArrayList<>();
-		this.fields = new ArrayList<>();
-		this.methods = new ArrayList<>();
+		this.fields = new MemberList<>();
+		this.methods = new MemberList<>();
 	}
 
 	// ------------------------------------------------------------------------
@@ -359,15 +371,102 @@ public class ClassNode extends ClassVisitor {
 		cv.visitEnd();
 	}
 
+	/**
+	 * Discards the member index of this class. The index follows the
+	 * additions, removals and replacements of fields and methods. Members
+	 * renamed in place are detected when a lookup misses, or before a lookup
+	 * that collects several members, at the cost of a scan of the member
+	 * list; reporting them through this method spares the scan.
+	 */
+	public void reindex() {
+		fieldIndex = null;
+		methodIndex = null;
+	}
+
+	/**
+	 * Returns the fields that may have the given name and descriptor, in
+	 * order. Each field must still be checked against the name and descriptor.
+	 */
+	private List<FieldNode> fields(String name, String desc) {
+		MemberIndex<FieldNode> index = fieldIndex;
+		if (index == null || !index.isCurrent(fields)) {
+			if (!(fields instanceof MemberList)) {
+				return fields;
+			}
+			index = fieldIndex = MemberIndex.fields((MemberList<FieldNode>) fields);
+		}
+		return index.get(name, desc);
+	}
+
+	/**
+	 * Returns the methods that may have the given name and descriptor, in
+	 * order. Each method must still be checked against the name and
+	 * descriptor.
+	 */
+	private List<MethodNode> methods(String name, String desc) {
+		MemberIndex<MethodNode> index = methodIndex;
+		if (index == null || !index.isCurrent(methods)) {
+			if (!(methods instanceof MemberList)) {
+				return methods;
+			}
+			index = methodIndex = MemberIndex.methods((MemberList<MethodNode>) methods);
+		}
+		return index.get(name, desc);
+	}
+
+	/**
+	 * Discards the field index if a field was renamed in place since it was
+	 * built.
+	 *
+	 * @return <tt>true</tt> if the index was discarded, in which case a lookup
+	 *         that missed must be retried.
+	 */
+	private boolean refreshFields() {
+		MemberIndex<FieldNode> index = fieldIndex;
+		if (index == null || !index.isCurrent(fields)) {
+			return false;
+		}
+		for (int i = 0; i < fields.size(); ++i) {
+			FieldNode fn = fields.get(i);
+			if (!index.isIndexed(i, fn.name, fn.desc)) {
+				fieldIndex = null;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Discards the method index if a method was renamed in place since it was
+	 * built.
+	 *
+	 * @return <tt>true</tt> if the index was discarded, in which case a lookup
+	 *         that missed must be retried.
+	 */
+	private boolean refreshMethods() {
+		MemberIndex<MethodNode> index = methodIndex;
+		if (index == null || !index.isCurrent(methods)) {
+			return false;
+		}
+		for (int i = 0; i < methods.size(); ++i) {
+			MethodNode mn = methods.get(i);
+			if (!index.isIndexed(i, mn.name, mn.desc)) {
+				methodIndex = null;
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public MethodNode getMethodByName(String name) {
-		for (MethodNode mn : methods) {
+		for (MethodNode mn : methods(name, null)) {
 			if (mn.name.equals(name)) return mn;
 		}
-		return null;
+		return refreshMethods() ? getMethodByName(name) : null;
 	}
 
 	public FieldNode getField(String field, String desc, boolean ignoreStatic) {
-		for (FieldNode fn : fields) {
+		for (FieldNode fn : fields(field, desc)) {
 			if (ignoreStatic && (fn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) {
 				continue;
 			}
@@ -375,7 +474,7 @@ public class ClassNode extends ClassVisitor {
 				return fn;
 			}
 		}
-		return null;
+		return refreshFields() ? getField(field, desc, ignoreStatic) : null;
 	}
 
 	public FieldNode getField(String field, String desc) {
@@ -383,7 +482,7 @@ public class ClassNode extends ClassVisitor {
 	}
 
 	public FieldNode getPublicField(String field, String desc, boolean ignoreStatic) {
-		for (FieldNode fn : fields) {
+		for (FieldNode fn : fields(field, desc)) {
 			if ((fn.access & Opcodes.ACC_PUBLIC) != Opcodes.ACC_PUBLIC) {
 				continue;
 			}
@@ -394,7 +493,7 @@ public class ClassNode extends ClassVisitor {
 				return fn;
 			}
 		}
-		return null;
+		return refreshFields() ? getPublicField(field, desc, ignoreStatic) : null;
 	}
 
 	public FieldNode getPublicField(String field, String desc) {
@@ -402,26 +501,31 @@ public class ClassNode extends ClassVisitor {
 	}
 
 	public MethodNode getMethod(String method, String desc) {
-		for (MethodNode mn : methods) {
+		for (MethodNode mn : methods(method, desc)) {
 			if (mn.name.equals(method) && (desc == null || desc.equals(mn.desc))) {
 				return mn;
 			}
 		}
-		return null;
+		return refreshMethods() ? getMethod(method, desc) : null;
 	}
 
 	public MethodNode getMethod(String desc) {
+		// a method descriptor starts at the only '(' of a well formed query
+		int start = desc.indexOf('(');
+		List<MethodNode> methods = start != -1 && desc.indexOf('(', start + 1) == -1
+				? methods(null, desc.substring(start)) : this.methods;
 		for (MethodNode mn : methods) {
 			if (desc.endsWith(mn.desc)) {
 				return mn;
 			}
 		}
-		return null;
+		return refreshMethods() ? getMethod(desc) : null;
 	}
 
 	public int methodCount(String desc, boolean ignoreStatic) {
+		refreshMethods();
 		int count = 0;
-		for (MethodNode mn : methods) {
+		for (MethodNode mn : methods(null, desc)) {
 			if (ignoreStatic && (mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) {
 				continue;
 			}
@@ -437,8 +541,9 @@ public class ClassNode extends ClassVisitor {
 	}
 
 	public int fieldCount(String desc, boolean ignoreStatic) {
+		refreshFields();
 		int count = 0;
-		for (FieldNode fn : fields) {
+		for (FieldNode fn : fields(null, desc)) {
 			if (ignoreStatic && (fn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) {
 				continue;
 			}
@@ -492,8 +597,9 @@ public class ClassNode extends ClassVisitor {
 	}
 
 	public List<String> constructors() {
+		refreshMethods();
 		List<String> constructors = new ArrayList<>();
-		for (MethodNode mn : methods) {
+		for (MethodNode mn : methods("<init>", null)) {
 			if (mn.name.equals("<init>")) {
 				constructors.add(mn.desc);
 			}
@@ -512,11 +618,22 @@ public class ClassNode extends ClassVisitor {
 	}
 
 	public List<MethodNode> getMethods(String desc) {
+		refreshMethods();
 		List<MethodNode> methods = new ArrayList<>();
-		for (MethodNode mn : this.methods) {
+		for (MethodNode mn : methods(null, desc)) {
 			if (!mn.desc.equals(desc)) continue;
 			methods.add(mn);
 		}
 		return methods;
 	}
+
+	/**
+	 * Takes a snapshot of this class and of its methods, which can later
+	 * restore them. See {@link ClassSnapshot}.
+	 *
+	 * @return a new open snapshot of this class.
+	 */
+	public ClassSnapshot snapshot() {
+		return new ClassSnapshot(this);
+	}
 }
@@ -0,0 +1,174 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of a {@link ClassNode}: the header of the class, its lists of
+ * fields and methods, the declarations of its fields and a
+ * {@link MethodSnapshot} of each of its methods. Its cost depends on the
+ * number of members of the class, not on the size of their code.
+ *
+ * @author Tyler Sedlar
+ */
+public class ClassSnapshot {
+
+    private final ClassNode owner;
+
+    private final int version;
+
+    private final int access;
+
+    private final String name;
+
+    private final String signature;
+
+    private final String superName;
+
+    private final List<String> interfaceList;
+
+    private final List<String> interfaces;
+
+    private final List<FieldNode> fieldList;
+
+    private final List<FieldNode> fields;
+
+    private final Object[] fieldDeclarations;
+
+    private final List<MethodNode> methodList;
+
+    private final List<MethodNode> methods;
+
+    private final MethodSnapshot[] methodSnapshots;
+
+    private boolean open = true;
+
+    /**
+     * Takes a snapshot of the given class.
+     *
+     * @param owner
+     *            a class.
+     */
+    ClassSnapshot(ClassNode owner) {
+        this.owner = owner;
+        this.version = owner.version;
+        this.access = owner.access;
+        this.name = owner.name;
+        this.signature = owner.signature;
+        this.superName = owner.superName;
+        this.interfaceList = owner.interfaces;
+        this.interfaces = new ArrayList<>(owner.interfaces);
+        this.fieldList = owner.fields;
+        this.fields = new ArrayList<>(owner.fields);
+        this.fieldDeclarations = new Object[fields.size() * 5];
+        int i = 0;
+        for (FieldNode fn : fields) {
+            fieldDeclarations[i++] = fn.access;
+            fieldDeclarations[i++] = fn.name;
+            fieldDeclarations[i++] = fn.desc;
+            fieldDeclarations[i++] = fn.signature;
+            fieldDeclarations[i++] = fn.value;
+        }
+        this.methodList = owner.methods;
+        this.methods = new ArrayList<>(owner.methods);
+        this.methodSnapshots = new MethodSnapshot[methods.size()];
+        for (int j = 0; j < methodSnapshots.length; ++j) {
+            methodSnapshots[j] = methods.get(j).snapshot();
+        }
+    }
+
+    /**
+     * Returns the class of this snapshot.
+     *
+     * @return the class of this snapshot.
+     */
+    public ClassNode getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this snapshot is open.
+     *
+     * @return <tt>true</tt> if this snapshot can still be rolled back or
+     *         released.
+     */
+    public boolean isOpen() {
+        if (!open) {
+            return false;
+        }
+        for (MethodSnapshot snapshot : methodSnapshots) {
+            if (!snapshot.isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restores the class to its state when this snapshot was taken, and
+     * closes this snapshot. Members added since are dropped, and removed
+     * members are put back.
+     *
+     * @throws IllegalStateException
+     *             if this snapshot, or the snapshot of one of its methods, is
+     *             closed. The class is then left unchanged.
+     */
+    public void rollback() {
+        close();
+        for (MethodSnapshot snapshot : methodSnapshots) {
+            snapshot.rollback();
+        }
+        owner.version = version;
+        owner.access = access;
+        owner.name = name;
+        owner.signature = signature;
+        owner.superName = superName;
+        interfaceList.clear();
+        interfaceList.addAll(interfaces);
+        owner.interfaces = interfaceList;
+        fieldList.clear();
+        fieldList.addAll(fields);
+        owner.fields = fieldList;
+        int i = 0;
+        for (FieldNode fn : fields) {
+            fn.access = (Integer) fieldDeclarations[i++];
+            fn.name = (String) fieldDeclarations[i++];
+            fn.desc = (String) fieldDeclarations[i++];
+            fn.signature = (String) fieldDeclarations[i++];
+            fn.value = fieldDeclarations[i++];
+            fn.owner = owner;
+        }
+        methodList.clear();
+        methodList.addAll(methods);
+        owner.methods = methodList;
+        for (MethodNode mn : methods) {
+            mn.owner = owner;
+        }
+    }
+
+    /**
+     * Keeps the modifications made since this snapshot was taken, and closes
+     * this snapshot.
+     *
+     * @throws IllegalStateException
+     *             if this snapshot, or the snapshot of one of its methods, is
+     *             closed. The class is then left unchanged.
+     */
+    public void release() {
+        close();
+        for (MethodSnapshot snapshot : methodSnapshots) {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Checks that this snapshot and the snapshots of all of its methods are
+     * open, before any of them is modified, and closes this snapshot.
+     */
+    private void close() {
+        if (!isOpen()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        open = false;
+    }
+}
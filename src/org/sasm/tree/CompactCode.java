@@ -0,0 +1,505 @@
+package org.sasm.tree;
+
+import org.sasm.Handle;
+import org.sasm.Opcodes;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, compact view of an instruction list, for analyses that scan
+ * many methods without modifying them. Instead of a node per instruction, the
+ * code is held in two parallel arrays: the opcode of each instruction in a
+ * <tt>byte[]</tt> and its operand in an <tt>int[]</tt>. Symbolic operands are
+ * indexes into the {@link SymbolTable} of the class, and labels are referred
+ * to by their instruction index. The operand of each instruction type is:
+ * <ul>
+ * <li>{@link AbstractInsnNode#INT_INSN INT_INSN}: the operand.</li>
+ * <li>{@link AbstractInsnNode#VAR_INSN VAR_INSN}: the local variable.</li>
+ * <li>{@link AbstractInsnNode#TYPE_INSN TYPE_INSN}: the symbol of the type
+ * descriptor.</li>
+ * <li>{@link AbstractInsnNode#FIELD_INSN FIELD_INSN} and
+ * {@link AbstractInsnNode#METHOD_INSN METHOD_INSN}: the symbol of the
+ * {@link SymbolTable.Member member}.</li>
+ * <li>{@link AbstractInsnNode#JUMP_INSN JUMP_INSN}: the index of the target
+ * label.</li>
+ * <li>{@link AbstractInsnNode#LDC_INSN LDC_INSN}: the symbol of the
+ * constant.</li>
+ * <li>the other types have their operands in a side array, read with
+ * {@link #getOperand(int, int)}:
+ * <ul>
+ * <li>{@link AbstractInsnNode#IINC_INSN IINC_INSN}: var, incr.</li>
+ * <li>{@link AbstractInsnNode#MULTIANEWARRAY_INSN MULTIANEWARRAY_INSN}: the
+ * symbol of the descriptor, dims.</li>
+ * <li>{@link AbstractInsnNode#INVOKE_DYNAMIC_INSN INVOKE_DYNAMIC_INSN}: the
+ * symbols of the name, descriptor and bootstrap method, the number of
+ * bootstrap arguments, then their symbols.</li>
+ * <li>{@link AbstractInsnNode#TABLESWITCH_INSN TABLESWITCH_INSN}: min, max, the
+ * index of the default label, then the index of each label.</li>
+ * <li>{@link AbstractInsnNode#LOOKUPSWITCH_INSN LOOKUPSWITCH_INSN}: the index of
+ * the default label, the number of keys, the keys, then the index of each
+ * label.</li>
+ * <li>{@link AbstractInsnNode#LINE LINE}: the line, the index of the start
+ * label.</li>
+ * <li>{@link AbstractInsnNode#FRAME FRAME}: the frame type, the number of
+ * locals, the locals, the number of stack elements, then the stack elements.
+ * Each element is its {@link Opcodes#TOP TOP}-like constant, {@link #STRING}
+ * plus the symbol of a type, <tt>-1 - index</tt> of the label of an
+ * uninitialized type, or {@link #NULL}.</li>
+ * </ul>
+ * </li>
+ * </ul>
+ * Type annotations of instructions are not kept.
+ *
+ * @author Tyler Sedlar
+ */
+public final class CompactCode {
+
+    /**
+     * The offset of the symbol of a type in a frame element.
+     */
+    public static final int STRING = 7;
+
+    /**
+     * The encoding of a <tt>null</tt> frame element.
+     */
+    public static final int NULL = Integer.MIN_VALUE;
+
+    /**
+     * The codes stored for labels, line numbers and frames, which have no
+     * opcode.
+     */
+    private static final int LABEL_CODE = 255, LINE_CODE = 254, FRAME_CODE = 253;
+
+    /**
+     * The instruction type of each opcode.
+     */
+    private static final byte[] TYPES = new byte[256];
+
+    static {
+        Arrays.fill(TYPES, (byte) AbstractInsnNode.INSN);
+        fill(Opcodes.BIPUSH, Opcodes.SIPUSH, AbstractInsnNode.INT_INSN);
+        fill(Opcodes.NEWARRAY, Opcodes.NEWARRAY, AbstractInsnNode.INT_INSN);
+        fill(Opcodes.LDC, Opcodes.LDC, AbstractInsnNode.LDC_INSN);
+        fill(Opcodes.ILOAD, Opcodes.ALOAD, AbstractInsnNode.VAR_INSN);
+        fill(Opcodes.ISTORE, Opcodes.ASTORE, AbstractInsnNode.VAR_INSN);
+        fill(Opcodes.RET, Opcodes.RET, AbstractInsnNode.VAR_INSN);
+        fill(Opcodes.IINC, Opcodes.IINC, AbstractInsnNode.IINC_INSN);
+        fill(Opcodes.IFEQ, Opcodes.JSR, AbstractInsnNode.JUMP_INSN);
+        fill(Opcodes.IFNULL, Opcodes.IFNONNULL, AbstractInsnNode.JUMP_INSN);
+        fill(Opcodes.TABLESWITCH, Opcodes.TABLESWITCH, AbstractInsnNode.TABLESWITCH_INSN);
+        fill(Opcodes.LOOKUPSWITCH, Opcodes.LOOKUPSWITCH, AbstractInsnNode.LOOKUPSWITCH_INSN);
+        fill(Opcodes.GETSTATIC, Opcodes.PUTFIELD, AbstractInsnNode.FIELD_INSN);
+        fill(Opcodes.INVOKEVIRTUAL, Opcodes.INVOKEINTERFACE, AbstractInsnNode.METHOD_INSN);
+        fill(Opcodes.INVOKEDYNAMIC, Opcodes.INVOKEDYNAMIC, AbstractInsnNode.INVOKE_DYNAMIC_INSN);
+        fill(Opcodes.NEW, Opcodes.NEW, AbstractInsnNode.TYPE_INSN);
+        fill(Opcodes.ANEWARRAY, Opcodes.ANEWARRAY, AbstractInsnNode.TYPE_INSN);
+        fill(Opcodes.CHECKCAST, Opcodes.INSTANCEOF, AbstractInsnNode.TYPE_INSN);
+        fill(Opcodes.MULTIANEWARRAY, Opcodes.MULTIANEWARRAY, AbstractInsnNode.MULTIANEWARRAY_INSN);
+        fill(LABEL_CODE, LABEL_CODE, AbstractInsnNode.LABEL);
+        fill(LINE_CODE, LINE_CODE, AbstractInsnNode.LINE);
+        fill(FRAME_CODE, FRAME_CODE, AbstractInsnNode.FRAME);
+    }
+
+    private static void fill(int from, int to, int type) {
+        Arrays.fill(TYPES, from, to + 1, (byte) type);
+    }
+
+    private final SymbolTable symbols;
+
+    private final byte[] opcodes;
+
+    private final int[] operands;
+
+    /**
+     * The operands that do not fit in {@link #operands}.
+     */
+    private final int[] extra;
+
+    /**
+     * Constructs the compact view of the given instructions.
+     *
+     * @param insns
+     *            an instruction list.
+     * @param symbols
+     *            the symbol table of the class that owns the instructions, to
+     *            which their symbolic operands are added.
+     */
+    public CompactCode(InsnList insns, SymbolTable symbols) {
+        int size = insns.size();
+        this.symbols = symbols;
+        this.opcodes = new byte[size];
+        this.operands = new int[size];
+        Encoder encoder = new Encoder(insns, symbols);
+        int i = 0;
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.next, ++i) {
+            switch (insn.getType()) {
+            case AbstractInsnNode.LABEL:
+                opcodes[i] = (byte) LABEL_CODE;
+                break;
+            case AbstractInsnNode.LINE:
+                opcodes[i] = (byte) LINE_CODE;
+                break;
+            case AbstractInsnNode.FRAME:
+                opcodes[i] = (byte) FRAME_CODE;
+                break;
+            default:
+                opcodes[i] = (byte) insn.getOpcode();
+            }
+            operands[i] = encoder.encode(insn);
+        }
+        this.extra = Arrays.copyOf(encoder.extra, encoder.length);
+    }
+
+    /**
+     * Builds the operands of the instructions of a list.
+     */
+    private static final class Encoder {
+
+        private final InsnList insns;
+
+        private final SymbolTable symbols;
+
+        int[] extra = new int[16];
+
+        int length;
+
+        Encoder(InsnList insns, SymbolTable symbols) {
+            this.insns = insns;
+            this.symbols = symbols;
+        }
+
+        private void put(int value) {
+            if (length == extra.length) {
+                extra = Arrays.copyOf(extra, length << 1);
+            }
+            extra[length++] = value;
+        }
+
+        private void put(List<Object> types) {
+            if (types == null) {
+                put(0);
+                return;
+            }
+            put(types.size());
+            for (Object type : types) {
+                if (type == null) {
+                    put(NULL);
+                } else if (type instanceof Integer) {
+                    put((Integer) type);
+                } else if (type instanceof String) {
+                    put(STRING + symbols.add(type));
+                } else {
+                    put(-1 - insns.indexOf((LabelNode) type));
+                }
+            }
+        }
+
+        int encode(AbstractInsnNode insn) {
+            int offset = length;
+            switch (insn.getType()) {
+            case AbstractInsnNode.INT_INSN:
+                return ((IntInsnNode) insn).operand;
+            case AbstractInsnNode.VAR_INSN:
+                return ((VarInsnNode) insn).var;
+            case AbstractInsnNode.TYPE_INSN:
+                return symbols.add(((TypeInsnNode) insn).desc);
+            case AbstractInsnNode.FIELD_INSN: {
+                FieldInsnNode fin = (FieldInsnNode) insn;
+                return symbols.add(new SymbolTable.Member(fin.owner, fin.name, fin.desc));
+            }
+            case AbstractInsnNode.METHOD_INSN: {
+                MethodInsnNode min = (MethodInsnNode) insn;
+                return symbols.add(new SymbolTable.Member(min.owner, min.name, min.desc));
+            }
+            case AbstractInsnNode.JUMP_INSN:
+                return insns.indexOf(((JumpInsnNode) insn).label);
+            case AbstractInsnNode.LDC_INSN:
+                return symbols.add(((LdcInsnNode) insn).cst);
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+                InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) insn;
+                put(symbols.add(idin.name));
+                put(symbols.add(idin.desc));
+                put(symbols.add(idin.bsm));
+                put(idin.bsmArgs.length);
+                for (Object arg : idin.bsmArgs) {
+                    put(symbols.add(arg));
+                }
+                return offset;
+            }
+            case AbstractInsnNode.IINC_INSN: {
+                IincInsnNode iinc = (IincInsnNode) insn;
+                put(iinc.var);
+                put(iinc.incr);
+                return offset;
+            }
+            case AbstractInsnNode.MULTIANEWARRAY_INSN: {
+                MultiANewArrayInsnNode manain = (MultiANewArrayInsnNode) insn;
+                put(symbols.add(manain.desc));
+                put(manain.dims);
+                return offset;
+            }
+            case AbstractInsnNode.TABLESWITCH_INSN: {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+                put(tsin.min);
+                put(tsin.max);
+                put(insns.indexOf(tsin.dflt));
+                for (LabelNode label : tsin.labels) {
+                    put(insns.indexOf(label));
+                }
+                return offset;
+            }
+            case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+                put(insns.indexOf(lsin.dflt));
+                put(lsin.keys.size());
+                for (Integer key : lsin.keys) {
+                    put(key);
+                }
+                for (LabelNode label : lsin.labels) {
+                    put(insns.indexOf(label));
+                }
+                return offset;
+            }
+            case AbstractInsnNode.LINE: {
+                LineNumberNode line = (LineNumberNode) insn;
+                put(line.line);
+                put(insns.indexOf(line.start));
+                return offset;
+            }
+            case AbstractInsnNode.FRAME: {
+                FrameNode frame = (FrameNode) insn;
+                put(frame.type);
+                put(frame.local);
+                put(frame.stack);
+                return offset;
+            }
+            default:
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the symbol table of this code.
+     *
+     * @return the symbol table of this code.
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Returns the number of instructions in this code, labels, line numbers
+     * and frames included.
+     *
+     * @return the number of instructions in this code.
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    /**
+     * Returns the opcode of the given instruction.
+     *
+     * @param index
+     *            the index of an instruction.
+     * @return the opcode of the instruction, or -1 for labels, line numbers
+     *         and frames, as {@link AbstractInsnNode#getOpcode}.
+     */
+    public int getOpcode(int index) {
+        int opcode = opcodes[index] & 0xFF;
+        return opcode >= FRAME_CODE ? -1 : opcode;
+    }
+
+    /**
+     * Returns the type of the given instruction.
+     *
+     * @param index
+     *            the index of an instruction.
+     * @return the type of the instruction, as {@link AbstractInsnNode#getType}.
+     */
+    public int getType(int index) {
+        return TYPES[opcodes[index] & 0xFF];
+    }
+
+    /**
+     * Returns the operand of the given instruction.
+     *
+     * @param index
+     *            the index of an instruction.
+     * @return the operand of the instruction, or for the instruction types
+     *         with several operands the offset of their operands in the side
+     *         array.
+     */
+    public int getOperand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * Returns an operand of an instruction with several operands.
+     *
+     * @param index
+     *            the index of an instruction.
+     * @param n
+     *            the position of the operand, in the order given in the
+     *            description of this class.
+     * @return the operand of the instruction at the given position.
+     */
+    public int getOperand(int index, int n) {
+        return extra[operands[index] + n];
+    }
+
+    /**
+     * Returns the symbol referred to by the operand of the given instruction.
+     *
+     * @param index
+     *            the index of a type, field, method or LDC instruction.
+     * @return the type descriptor, member or constant of the instruction.
+     */
+    public Object getSymbol(int index) {
+        return symbols.get(operands[index]);
+    }
+
+    /**
+     * Returns the index of the first instruction with the given opcode and
+     * operand, starting from the given index. Combined with
+     * {@link SymbolTable#indexOf}, this finds the uses of a member or a
+     * constant with integer comparisons only.
+     *
+     * @param opcode
+     *            an opcode, but not -1.
+     * @param operand
+     *            the operand of the instruction, as returned by
+     *            {@link #getOperand(int)}.
+     * @param from
+     *            the index to start from.
+     * @return the index of the instruction, or -1 if there is none.
+     */
+    public int indexOf(int opcode, int operand, int from) {
+        byte code = (byte) opcode;
+        for (int i = from; i < opcodes.length; ++i) {
+            if (opcodes[i] == code && operands[i] == operand) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a new instruction list equivalent to this code.
+     *
+     * @return a new instruction list equivalent to this code.
+     */
+    public InsnList toInsnList() {
+        return toInsnList(new LabelNode[opcodes.length]);
+    }
+
+    /**
+     * Returns a new instruction list equivalent to this code. The new labels
+     * are stored in the given array at their instruction index, so that try
+     * catch blocks and local variables can be mapped to them.
+     *
+     * @param labels
+     *            an array of at least {@link #size} elements.
+     * @return a new instruction list equivalent to this code.
+     */
+    public InsnList toInsnList(LabelNode[] labels) {
+        for (int i = 0; i < opcodes.length; ++i) {
+            labels[i] = (opcodes[i] & 0xFF) == LABEL_CODE ? new LabelNode() : null;
+        }
+        InsnList insns = new InsnList();
+        for (int i = 0; i < opcodes.length; ++i) {
+            insns.add(decode(i, labels));
+        }
+        return insns;
+    }
+
+    private AbstractInsnNode decode(int index, LabelNode[] labels) {
+        int opcode = getOpcode(index);
+        int operand = operands[index];
+        switch (getType(index)) {
+        case AbstractInsnNode.INSN:
+            return new InsnNode(opcode);
+        case AbstractInsnNode.INT_INSN:
+            return new IntInsnNode(opcode, operand);
+        case AbstractInsnNode.VAR_INSN:
+            return new VarInsnNode(opcode, operand);
+        case AbstractInsnNode.TYPE_INSN:
+            return new TypeInsnNode(opcode, symbols.getString(operand));
+        case AbstractInsnNode.FIELD_INSN: {
+            SymbolTable.Member member = symbols.getMember(operand);
+            return new FieldInsnNode(opcode, member.owner, member.name, member.desc);
+        }
+        case AbstractInsnNode.METHOD_INSN: {
+            SymbolTable.Member member = symbols.getMember(operand);
+            return new MethodInsnNode(opcode, member.owner, member.name, member.desc);
+        }
+        case AbstractInsnNode.JUMP_INSN:
+            return new JumpInsnNode(opcode, labels[operand]);
+        case AbstractInsnNode.LABEL:
+            return labels[index];
+        case AbstractInsnNode.LDC_INSN:
+            return new LdcInsnNode(symbols.get(operand));
+        case AbstractInsnNode.IINC_INSN:
+            return new IincInsnNode(extra[operand], extra[operand + 1]);
+        case AbstractInsnNode.MULTIANEWARRAY_INSN:
+            return new MultiANewArrayInsnNode(symbols.getString(extra[operand]),
+                    extra[operand + 1]);
+        case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+            Object[] args = new Object[extra[operand + 3]];
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = symbols.get(extra[operand + 4 + i]);
+            }
+            return new InvokeDynamicInsnNode(symbols.getString(extra[operand]),
+                    symbols.getString(extra[operand + 1]),
+                    (Handle) symbols.get(extra[operand + 2]), args);
+        }
+        case AbstractInsnNode.TABLESWITCH_INSN: {
+            int min = extra[operand];
+            int max = extra[operand + 1];
+            LabelNode[] targets = new LabelNode[max - min + 1];
+            for (int i = 0; i < targets.length; ++i) {
+                targets[i] = labels[extra[operand + 3 + i]];
+            }
+            return new TableSwitchInsnNode(min, max, labels[extra[operand + 2]], targets);
+        }
+        case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+            int n = extra[operand + 1];
+            int[] keys = Arrays.copyOfRange(extra, operand + 2, operand + 2 + n);
+            LabelNode[] targets = new LabelNode[n];
+            for (int i = 0; i < n; ++i) {
+                targets[i] = labels[extra[operand + 2 + n + i]];
+            }
+            return new LookupSwitchInsnNode(labels[extra[operand]], keys, targets);
+        }
+        case AbstractInsnNode.LINE:
+            return new LineNumberNode(extra[operand], labels[extra[operand + 1]]);
+        default: {
+            int type = extra[operand];
+            int nLocal = extra[operand + 1];
+            Object[] local = decode(operand + 2, nLocal, labels);
+            int nStack = extra[operand + 2 + nLocal];
+            Object[] stack = decode(operand + 3 + nLocal, nStack, labels);
+            return new FrameNode(type, nLocal, local, nStack, stack);
+        }
+        }
+    }
+
+    private Object[] decode(int offset, int n, LabelNode[] labels) {
+        Object[] types = new Object[n];
+        for (int i = 0; i < n; ++i) {
+            int type = extra[offset + i];
+            if (type == NULL) {
+                types[i] = null;
+            } else if (type < 0) {
+                types[i] = labels[-1 - type];
+            } else if (type >= STRING) {
+                types[i] = symbols.get(type - STRING);
+            } else {
+                types[i] = type;
+            }
+        }
+        return types;
+    }
+}
@@ -58,7 +58,7 @@ public class FieldInsnNode extends AbstractInsnNode {
      *            PUTSTATIC, GETFIELD or PUTFIELD.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
@@ -0,0 +1,381 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch of edits to an {@link InsnList}. Insertions, replacements and
+ * removals are collected per anchor instruction and applied together by
+ * {@link #apply}, in a single pass over the list. The list can therefore be
+ * scanned while the edits are collected, and its caches are invalidated once
+ * per batch instead of once per edit.
+ *
+ * @author Tyler Sedlar
+ */
+public class InsnEditor {
+
+    /**
+     * The list to which the edits are applied.
+     */
+    private final InsnList list;
+
+    /**
+     * The pending edits, keyed by anchor instruction.
+     */
+    private final Map<AbstractInsnNode, Edit> edits = new IdentityHashMap<>();
+
+    /**
+     * The instructions queued for insertion, which stay free until the edits
+     * are applied.
+     */
+    private final Set<AbstractInsnNode> queued = Collections
+            .newSetFromMap(new IdentityHashMap<AbstractInsnNode, Boolean>());
+
+    private AbstractInsnNode head;
+
+    private AbstractInsnNode tail;
+
+    private int count;
+
+    private AbstractInsnNode run;
+
+    private static final class Edit {
+
+        List<AbstractInsnNode> before;
+
+        List<AbstractInsnNode> after;
+
+        AbstractInsnNode replacement;
+
+        boolean removed;
+    }
+
+    /**
+     * Constructs a new {@link InsnEditor}.
+     *
+     * @param list
+     *            the list to which the edits must be applied.
+     */
+    public InsnEditor(InsnList list) {
+        this.list = list;
+    }
+
+    private Edit edit(AbstractInsnNode anchor) {
+        if (!list.contains(anchor)) {
+            throw new IllegalArgumentException("Anchor does not belong to the list");
+        }
+        Edit edit = edits.get(anchor);
+        if (edit == null) {
+            edits.put(anchor, edit = new Edit());
+        }
+        return edit;
+    }
+
+    /**
+     * Checks that the given instruction is not queued yet, and queues it.
+     *
+     * @throws IllegalArgumentException
+     *             if the instruction is already queued.
+     */
+    private void queue(AbstractInsnNode insn) {
+        if (!queued.add(insn)) {
+            throw new IllegalArgumentException("Instruction already queued");
+        }
+    }
+
+    private List<AbstractInsnNode> add(List<AbstractInsnNode> list,
+            AbstractInsnNode insn) {
+        queue(insn);
+        if (list == null) {
+            list = new ArrayList<>(2);
+        }
+        list.add(insn);
+        return list;
+    }
+
+    private List<AbstractInsnNode> add(List<AbstractInsnNode> list,
+            InsnList insns) {
+        if (insns == this.list) {
+            throw new IllegalArgumentException("Cannot insert a list into itself");
+        }
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.next) {
+            if (queued.contains(insn)) {
+                throw new IllegalArgumentException("Instruction already queued");
+            }
+        }
+        if (list == null) {
+            list = new ArrayList<>(insns.size());
+        }
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.next) {
+            queued.add(insn);
+            list.add(insn);
+        }
+        insns.clear();
+        return list;
+    }
+
+    /**
+     * Inserts the given instruction before the anchor. Instructions inserted
+     * before the same anchor keep the order of the calls.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @param insn
+     *            the instruction to be inserted, <i>which must not belong to
+     *            any {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list, or if insn
+     *             belongs to a list or is already queued.
+     */
+    public void insertBefore(AbstractInsnNode anchor, AbstractInsnNode insn) {
+        InsnList.checkFree(insn);
+        Edit edit = edit(anchor);
+        edit.before = add(edit.before, insn);
+    }
+
+    /**
+     * Inserts the given instructions before the anchor.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @param insns
+     *            the instruction list to be inserted, which is cleared
+     *            during the process.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list, if insns is the
+     *             list, or if one of its instructions is already queued.
+     */
+    public void insertBefore(AbstractInsnNode anchor, InsnList insns) {
+        Edit edit = edit(anchor);
+        edit.before = add(edit.before, insns);
+    }
+
+    /**
+     * Inserts the given instruction after the anchor. Instructions inserted
+     * after the same anchor keep the order of the calls.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @param insn
+     *            the instruction to be inserted, <i>which must not belong to
+     *            any {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list, or if insn
+     *             belongs to a list or is already queued.
+     */
+    public void insert(AbstractInsnNode anchor, AbstractInsnNode insn) {
+        InsnList.checkFree(insn);
+        Edit edit = edit(anchor);
+        edit.after = add(edit.after, insn);
+    }
+
+    /**
+     * Inserts the given instructions after the anchor.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @param insns
+     *            the instruction list to be inserted, which is cleared
+     *            during the process.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list, if insns is the
+     *             list, or if one of its instructions is already queued.
+     */
+    public void insert(AbstractInsnNode anchor, InsnList insns) {
+        Edit edit = edit(anchor);
+        edit.after = add(edit.after, insns);
+    }
+
+    /**
+     * Replaces the anchor with another instruction.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @param insn
+     *            another instruction, <i>which must not belong to any
+     *            {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list, or if insn
+     *             belongs to a list or is already queued.
+     * @throws IllegalStateException
+     *             if the anchor is already replaced or removed.
+     */
+    public void set(AbstractInsnNode anchor, AbstractInsnNode insn) {
+        InsnList.checkFree(insn);
+        Edit edit = edit(anchor);
+        if (edit.removed || edit.replacement != null) {
+            throw new IllegalStateException("Instruction already replaced or removed");
+        }
+        queue(insn);
+        edit.replacement = insn;
+    }
+
+    /**
+     * Removes the anchor.
+     *
+     * @param anchor
+     *            an instruction <i>of the list</i>.
+     * @throws IllegalArgumentException
+     *             if the anchor does not belong to the list.
+     * @throws IllegalStateException
+     *             if the anchor is already replaced or removed.
+     */
+    public void remove(AbstractInsnNode anchor) {
+        Edit edit = edit(anchor);
+        if (edit.removed || edit.replacement != null) {
+            throw new IllegalStateException("Instruction already replaced or removed");
+        }
+        edit.removed = true;
+    }
+
+    /**
+     * Returns <tt>true</tt> if no edits are pending.
+     *
+     * @return <tt>true</tt> if no edits are pending.
+     */
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * Discards the pending edits.
+     */
+    public void clear() {
+        edits.clear();
+        queued.clear();
+    }
+
+    /**
+     * Applies the pending edits in a single pass over the list. Around each
+     * anchor, the instructions inserted before it come first, then the anchor
+     * or its replacement, then the instructions inserted after it. Listeners
+     * of the list are notified once the whole batch is applied.
+     *
+     * @throws IllegalStateException
+     *             if some anchors were removed from the list since their edits
+     *             were collected. The edits of the other anchors are applied.
+     */
+    public void apply() {
+        if (edits.isEmpty()) {
+            return;
+        }
+        List<AbstractInsnNode> runs = new ArrayList<>();
+        List<AbstractInsnNode> removed = new ArrayList<>();
+        int position = 0;
+        int changed = -1;
+        int applied = 0;
+        head = null;
+        tail = null;
+        count = 0;
+        run = null;
+        AbstractInsnNode next;
+        for (AbstractInsnNode insn = list.first; insn != null; insn = next) {
+            next = insn.next;
+            Edit edit = edits.get(insn);
+            if (edit == null) {
+                link(insn, false, runs);
+                ++position;
+                continue;
+            }
+            ++applied;
+            if (changed == -1) {
+                changed = position;
+            }
+            ++position;
+            if (edit.before != null) {
+                for (AbstractInsnNode i : edit.before) {
+                    link(i, true, runs);
+                }
+            }
+            if (edit.removed || edit.replacement != null) {
+                // insn keeps its links until the journal records them
+                removed.add(insn);
+                if (edit.replacement != null) {
+                    link(edit.replacement, true, runs);
+                }
+            } else {
+                link(insn, false, runs);
+            }
+            if (edit.after != null) {
+                for (AbstractInsnNode i : edit.after) {
+                    link(i, true, runs);
+                }
+            }
+        }
+        if (run != null) {
+            runs.add(run);
+            runs.add(tail);
+        }
+        if (tail != null) {
+            tail.next = null;
+        }
+        for (int i = removed.size() - 1; i >= 0; --i) {
+            AbstractInsnNode insn = removed.get(i);
+            if (list.journal != null) {
+                list.journal.removed(insn);
+            }
+            insn.list = null;
+            insn.prev = null;
+            insn.next = null;
+        }
+        list.first = head;
+        list.last = tail;
+        list.size = count;
+        list.summary = null;
+        if (changed != -1 && changed < list.valid) {
+            list.valid = changed;
+        }
+        for (int i = 0; i < runs.size(); i += 2) {
+            list.label(runs.get(i), runs.get(i + 1));
+        }
+        if (list.listeners != null) {
+            for (AbstractInsnNode insn : removed) {
+                list.fireRemoved(insn);
+            }
+            for (int i = 0; i < runs.size(); i += 2) {
+                AbstractInsnNode end = runs.get(i + 1).next;
+                for (AbstractInsnNode insn = runs.get(i); insn != end; insn = insn.next) {
+                    list.fireInserted(insn);
+                }
+            }
+        }
+        int missing = edits.size() - applied;
+        edits.clear();
+        queued.clear();
+        head = null;
+        tail = null;
+        run = null;
+        if (missing > 0) {
+            throw new IllegalStateException(missing + " anchors do not belong to the list");
+        }
+    }
+
+    /**
+     * Links the given instruction at the end of the list being rebuilt, and
+     * records the runs of inserted instructions as (first, last) pairs.
+     */
+    private void link(AbstractInsnNode insn, boolean inserted,
+            List<AbstractInsnNode> runs) {
+        if (inserted) {
+            if (run == null) {
+                run = insn;
+            }
+        } else if (run != null) {
+            runs.add(run);
+            runs.add(tail);
+            run = null;
+        }
+        insn.prev = tail;
+        if (tail == null) {
+            head = insn;
+        } else {
+            tail.next = insn;
+        }
+        tail = insn;
+        ++count;
+    }
+}
@@ -0,0 +1,283 @@
+package org.sasm.tree;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The undo journal of an {@link InsnList}. While a snapshot of the list is
+ * open, each modification of the list records how to undo it, so that taking a
+ * snapshot costs nothing and a rollback costs as much as the modifications made
+ * since the snapshot.
+ *
+ * @author Tyler Sedlar
+ */
+final class InsnJournal {
+
+    /**
+     * The operation of an entry whose instruction was inserted. Other
+     * operations are removals, restores and opcode changes, whose entries also
+     * hold a previous instruction, a saved copy or the previous opcode.
+     */
+    private static final int INSERTED = -1, REMOVED = -2, SAVED = -3;
+
+    /**
+     * A label map that maps every label to itself, to copy instructions
+     * without cloning their labels.
+     */
+    private static final Map<LabelNode, LabelNode> SAME_LABELS = new AbstractMap<LabelNode, LabelNode>() {
+
+        @Override
+        public LabelNode get(Object key) {
+            return (LabelNode) key;
+        }
+
+        @Override
+        public Set<Entry<LabelNode, LabelNode>> entrySet() {
+            return Collections.emptySet();
+        }
+    };
+
+    private int[] ops = new int[16];
+
+    private AbstractInsnNode[] insns = new AbstractInsnNode[16];
+
+    /**
+     * The instruction that preceded a removed instruction, or the saved copy
+     * of an instruction.
+     */
+    private AbstractInsnNode[] args = new AbstractInsnNode[16];
+
+    private int size;
+
+    /**
+     * The journal positions of the open snapshots, oldest first, and their
+     * serial numbers.
+     */
+    private int[] marks = new int[4];
+
+    private long[] serials = new long[4];
+
+    private int depth;
+
+    private long serial;
+
+    private void record(int op, AbstractInsnNode insn, AbstractInsnNode arg) {
+        if (size == ops.length) {
+            int length = size << 1;
+            ops = Arrays.copyOf(ops, length);
+            insns = Arrays.copyOf(insns, length);
+            args = Arrays.copyOf(args, length);
+        }
+        ops[size] = op;
+        insns[size] = insn;
+        args[size++] = arg;
+    }
+
+    void inserted(AbstractInsnNode insn) {
+        record(INSERTED, insn, null);
+    }
+
+    /**
+     * Records the removal of an instruction, which must still be linked to its
+     * previous instruction.
+     */
+    void removed(AbstractInsnNode insn) {
+        record(REMOVED, insn, insn.prev);
+    }
+
+    /**
+     * Records the removal of the given instructions, in the reverse order of
+     * the list, so that they are restored from the first to the last.
+     */
+    void removed(AbstractInsnNode first, AbstractInsnNode last) {
+        AbstractInsnNode end = first.prev;
+        for (AbstractInsnNode insn = last; insn != end; insn = insn.prev) {
+            removed(insn);
+        }
+    }
+
+    void opcode(AbstractInsnNode insn, int opcode) {
+        record(opcode, insn, null);
+    }
+
+    void saved(AbstractInsnNode insn) {
+        record(SAVED, insn, insn.clone(SAME_LABELS));
+    }
+
+    /**
+     * Opens a snapshot at the current position.
+     *
+     * @return the serial number of the snapshot.
+     */
+    long open() {
+        if (depth == marks.length) {
+            marks = Arrays.copyOf(marks, depth << 1);
+            serials = Arrays.copyOf(serials, depth << 1);
+        }
+        marks[depth] = size;
+        serials[depth] = ++serial;
+        return serials[depth++];
+    }
+
+    /**
+     * Returns the depth of the given open snapshot, or -1 if it is closed.
+     */
+    int depthOf(long serial) {
+        for (int i = depth - 1; i >= 0; --i) {
+            if (serials[i] == serial) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Closes the snapshot at the given depth and the snapshots opened after
+     * it, keeping their modifications.
+     *
+     * @return <tt>true</tt> if no snapshot is left open.
+     */
+    boolean close(int depth) {
+        this.depth = depth;
+        if (depth == 0) {
+            size = 0;
+            Arrays.fill(insns, null);
+            Arrays.fill(args, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Undoes the modifications made since the snapshot at the given depth was
+     * opened. The journal must be detached from the list while undoing.
+     */
+    void undo(InsnList list, int depth) {
+        int mark = marks[depth];
+        while (size > mark) {
+            int op = ops[--size];
+            AbstractInsnNode insn = insns[size];
+            AbstractInsnNode arg = args[size];
+            insns[size] = null;
+            args[size] = null;
+            if (op == INSERTED) {
+                list.remove(insn);
+            } else if (op == REMOVED) {
+                if (insn.list != null) {
+                    // the instruction was moved to another list
+                    insn.list.remove(insn);
+                }
+                if (arg == null) {
+                    list.insert(insn);
+                } else {
+                    list.insert(arg, insn);
+                }
+            } else if (op == SAVED) {
+                restore(insn, arg);
+                list.summary = null;
+            } else {
+                insn.opcode = op;
+                list.summary = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the operands of a saved copy back into the instruction it was
+     * made from.
+     */
+    private static void restore(AbstractInsnNode insn, AbstractInsnNode copy) {
+        insn.opcode = copy.opcode;
+        switch (insn.getType()) {
+        case AbstractInsnNode.INT_INSN:
+            ((IntInsnNode) insn).operand = ((IntInsnNode) copy).operand;
+            break;
+        case AbstractInsnNode.VAR_INSN:
+            ((VarInsnNode) insn).var = ((VarInsnNode) copy).var;
+            break;
+        case AbstractInsnNode.TYPE_INSN:
+            ((TypeInsnNode) insn).desc = ((TypeInsnNode) copy).desc;
+            break;
+        case AbstractInsnNode.FIELD_INSN: {
+            FieldInsnNode fin = (FieldInsnNode) insn;
+            FieldInsnNode saved = (FieldInsnNode) copy;
+            fin.owner = saved.owner;
+            fin.name = saved.name;
+            fin.desc = saved.desc;
+            break;
+        }
+        case AbstractInsnNode.METHOD_INSN: {
+            MethodInsnNode min = (MethodInsnNode) insn;
+            MethodInsnNode saved = (MethodInsnNode) copy;
+            min.owner = saved.owner;
+            min.name = saved.name;
+            min.desc = saved.desc;
+            break;
+        }
+        case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+            InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) insn;
+            InvokeDynamicInsnNode saved = (InvokeDynamicInsnNode) copy;
+            idin.name = saved.name;
+            idin.desc = saved.desc;
+            idin.bsm = saved.bsm;
+            idin.bsmArgs = saved.bsmArgs;
+            break;
+        }
+        case AbstractInsnNode.JUMP_INSN:
+            ((JumpInsnNode) insn).label = ((JumpInsnNode) copy).label;
+            break;
+        case AbstractInsnNode.LDC_INSN:
+            ((LdcInsnNode) insn).cst = ((LdcInsnNode) copy).cst;
+            break;
+        case AbstractInsnNode.IINC_INSN: {
+            IincInsnNode iinc = (IincInsnNode) insn;
+            IincInsnNode saved = (IincInsnNode) copy;
+            iinc.var = saved.var;
+            iinc.incr = saved.incr;
+            break;
+        }
+        case AbstractInsnNode.TABLESWITCH_INSN: {
+            TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+            TableSwitchInsnNode saved = (TableSwitchInsnNode) copy;
+            tsin.min = saved.min;
+            tsin.max = saved.max;
+            tsin.dflt = saved.dflt;
+            tsin.labels = saved.labels;
+            break;
+        }
+        case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+            LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+            LookupSwitchInsnNode saved = (LookupSwitchInsnNode) copy;
+            lsin.dflt = saved.dflt;
+            lsin.keys = saved.keys;
+            lsin.labels = saved.labels;
+            break;
+        }
+        case AbstractInsnNode.MULTIANEWARRAY_INSN: {
+            MultiANewArrayInsnNode manain = (MultiANewArrayInsnNode) insn;
+            MultiANewArrayInsnNode saved = (MultiANewArrayInsnNode) copy;
+            manain.desc = saved.desc;
+            manain.dims = saved.dims;
+            break;
+        }
+        case AbstractInsnNode.FRAME: {
+            FrameNode frame = (FrameNode) insn;
+            FrameNode saved = (FrameNode) copy;
+            frame.type = saved.type;
+            frame.local = saved.local;
+            frame.stack = saved.stack;
+            break;
+        }
+        case AbstractInsnNode.LINE: {
+            LineNumberNode line = (LineNumberNode) insn;
+            LineNumberNode saved = (LineNumberNode) copy;
+            line.line = saved.line;
+            line.start = saved.start;
+            break;
+        }
+        }
+    }
+}
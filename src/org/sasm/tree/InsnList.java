@@ -15,24 +15,74 @@ public class InsnList implements Serializable {
     /**
      * The number of instructions out this list.
      */
-    private int size;
+    int size;
 
     /**
      * The first instruction out this list. May be <tt>null</tt>.
      */
-    private AbstractInsnNode first;
+    AbstractInsnNode first;
 
     /**
      * The last instruction out this list. May be <tt>null</tt>.
      */
-    private AbstractInsnNode last;
+    AbstractInsnNode last;
 
     /**
      * A cache of the instructions of this list. This cache is used to improve
-     * the performance of the {@link #get} method.
+     * the performance of the {@link #get} and {@link #indexOf} methods. Only
+     * its first {@link #valid} entries are correct; it is filled on demand,
+     * and a modification only invalidates the entries from the modified
+     * position on. It holds at most {@link #INDEX_LIMIT} instructions, since
+     * instructions record their index in {@link #INDEX_BITS} bits.
      */
     AbstractInsnNode[] cache;
 
+    /**
+     * The number of correct entries at the start of {@link #cache}.
+     */
+    int valid;
+
+    /**
+     * A summary of the opcodes of this list. It is computed on demand by
+     * {@link #getSummary} and invalidated by all the methods that modify the
+     * list.
+     */
+    transient OpcodeSummary summary;
+
+    /**
+     * The listeners notified of the instructions added to and removed from
+     * this list. May be <tt>null</tt>.
+     */
+    transient InsnListListener[] listeners;
+
+    /**
+     * The method that created this list, or <tt>null</tt>. Instructions of
+     * this list derive their {@link AbstractInsnNode#getMethod method} from
+     * it. It is not serialized, since methods are not serializable.
+     */
+    transient MethodNode method;
+
+    /**
+     * The undo journal of this list, or <tt>null</tt> if no snapshot of this
+     * list is open.
+     */
+    transient InsnJournal journal;
+
+    /**
+     * The number of bits of the indexes and of the order labels recorded in
+     * {@link AbstractInsnNode#position}, and the gap left between the labels
+     * of appended instructions.
+     */
+    static final int INDEX_BITS = 24;
+
+    static final int ORDER_BITS = 64 - INDEX_BITS;
+
+    private static final int INDEX_LIMIT = 1 << INDEX_BITS;
+
+    private static final long ORDER_LIMIT = 1L << ORDER_BITS;
+
+    private static final long ORDER_GAP = 1L << 16;
+
     /**
      * Returns the number of instructions out this list.
      *
@@ -64,9 +114,10 @@ public class InsnList implements Serializable {
 
     /**
      * Returns the instruction whose index is given. This method builds a cache
-     * of the instructions out this list to avoid scanning the whole list each
-     * time it is called. Once the cache is built, this method run out constant
-     * time. This cache is invalidated by all the methods that modify the list.
+     * of the instructions in this list to avoid scanning the whole list each
+     * time it is called. Once the cache reaches the given index, this method
+     * runs in constant time. A modification of the list only invalidates the
+     * cache from the modified position on.
      *
      * @param index
      *            the index of the instruction that must be returned.
@@ -78,35 +129,169 @@ public class InsnList implements Serializable {
         if (index < 0 || index >= size) {
             throw new IndexOutOfBoundsException();
         }
-        if (cache == null) {
-            cache = toArray();
+        if (index >= INDEX_LIMIT) {
+            AbstractInsnNode insn = get(INDEX_LIMIT - 1);
+            for (int i = INDEX_LIMIT - 1; i < index; ++i) {
+                insn = insn.next;
+            }
+            return insn;
+        }
+        if (index >= valid) {
+            fill(index + 1, null);
         }
         return cache[index];
     }
 
+    /**
+     * Returns a summary of the opcodes in this list. The summary is computed
+     * on the first call and kept until the list is modified, so later calls
+     * run in constant time.
+     *
+     * @return a summary of the opcodes in this list.
+     */
+    public OpcodeSummary getSummary() {
+        OpcodeSummary summary = this.summary;
+        if (summary == null) {
+            this.summary = summary = new OpcodeSummary(this);
+        }
+        return summary;
+    }
+
+    /**
+     * Adds a listener that is notified of the instructions added to and
+     * removed from this list.
+     *
+     * @param listener
+     *            the listener to be added.
+     */
+    public void addListener(InsnListListener listener) {
+        InsnListListener[] listeners = this.listeners;
+        if (listeners == null) {
+            this.listeners = new InsnListListener[] { listener };
+        } else {
+            InsnListListener[] added = new InsnListListener[listeners.length + 1];
+            System.arraycopy(listeners, 0, added, 0, listeners.length);
+            added[listeners.length] = listener;
+            this.listeners = added;
+        }
+    }
+
+    /**
+     * Removes a listener previously added with {@link #addListener}.
+     *
+     * @param listener
+     *            the listener to be removed.
+     */
+    public void removeListener(InsnListListener listener) {
+        InsnListListener[] listeners = this.listeners;
+        if (listeners == null) {
+            return;
+        }
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i] == listener) {
+                if (listeners.length == 1) {
+                    this.listeners = null;
+                } else {
+                    InsnListListener[] removed = new InsnListListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, removed, 0, i);
+                    System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+                    this.listeners = removed;
+                }
+                return;
+            }
+        }
+    }
+
+    void fireInserted(AbstractInsnNode insn) {
+        for (InsnListListener listener : listeners) {
+            listener.inserted(this, insn);
+        }
+    }
+
+    void fireRemoved(AbstractInsnNode insn) {
+        for (InsnListListener listener : listeners) {
+            listener.removed(this, insn);
+        }
+    }
+
+    /**
+     * Notifies the listeners of this list and of the given list that the
+     * instructions of the given list are moved to this list, and records their
+     * removal in the journal of the given list. Must be called before the
+     * instructions are linked into this list.
+     */
+    private void fireMoved(InsnList insns) {
+        if (insns.journal != null) {
+            insns.journal.removed(insns.first, insns.last);
+        }
+        if (listeners == null && insns.listeners == null) {
+            return;
+        }
+        for (AbstractInsnNode insn = insns.first; insn != null; insn = insn.next) {
+            if (insns.listeners != null) {
+                insns.fireRemoved(insn);
+            }
+            if (listeners != null) {
+                fireInserted(insn);
+            }
+        }
+    }
+
     /**
      * Returns <tt>true</tt> if the given instruction belongs to this list. This
-     * method always scans the instructions of this list until it finds the
-     * given instruction or reaches the end of the list.
+     * method runs in constant time, as each instruction records the list to
+     * which it belongs.
      *
      * @param insn
      *            an instruction.
      * @return <tt>true</tt> if the given instruction belongs to this list.
      */
     public boolean contains(AbstractInsnNode insn) {
-        AbstractInsnNode i = first;
-        while (i != null && i != insn) {
-            i = i.next;
+        return insn.list == this;
+    }
+
+    /**
+     * Checks that the given instruction belongs to this list.
+     *
+     * @throws IllegalArgumentException
+     *             if the instruction does not belong to this list.
+     */
+    private void checkOwned(AbstractInsnNode location) {
+        if (location.list != this) {
+            throw new IllegalArgumentException("Instruction does not belong to this list");
+        }
+    }
+
+    /**
+     * Checks that the given instruction does not belong to any list.
+     *
+     * @throws IllegalArgumentException
+     *             if the instruction already belongs to a list.
+     */
+    static void checkFree(AbstractInsnNode insn) {
+        if (insn.list != null) {
+            throw new IllegalArgumentException("Instruction already belongs to a list");
         }
-        return i != null;
     }
 
     /**
-     * Returns the index of the given instruction out this list. This method
+     * Checks that the given list can be moved into this list.
+     *
+     * @throws IllegalArgumentException
+     *             if the given list is this list.
+     */
+    private void checkOther(InsnList insns) {
+        if (insns == this) {
+            throw new IllegalArgumentException("Cannot move a list into itself");
+        }
+    }
+
+    /**
+     * Returns the index of the given instruction in this list. This method
      * builds a cache of the instruction indexes to avoid scanning the whole
-     * list each time it is called. Once the cache is built, this method run out
-     * constant time. The cache is invalidated by all the methods that modify
-     * the list.
+     * list each time it is called. Once the cache reaches the given
+     * instruction, this method runs in constant time. A modification of the
+     * list only invalidates the cache from the modified position on.
      *
      * @param insn
      *            an instruction <i>of this list</i>.
@@ -116,10 +301,177 @@ public class InsnList implements Serializable {
      *         instruction belongs to an instruction list or not.
      */
     public int indexOf(AbstractInsnNode insn) {
-        if (cache == null) {
-            cache = toArray();
+        if (!isCached(insn)) {
+            fill(size, insn);
+            if (!isCached(insn)) {
+                return count(insn);
+            }
+        }
+        return insn.index();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the cache holds the given instruction at its
+     * index.
+     */
+    private boolean isCached(AbstractInsnNode insn) {
+        int index = insn.index();
+        return index < valid && cache[index] == insn;
+    }
+
+    /**
+     * Returns the index of the given instruction by scanning this list past
+     * the end of the cache, which holds at most {@link #INDEX_LIMIT}
+     * instructions.
+     */
+    private int count(AbstractInsnNode insn) {
+        int index = INDEX_LIMIT - 1;
+        for (AbstractInsnNode i = cache[index]; i != insn; i = i.next) {
+            ++index;
+        }
+        return index;
+    }
+
+    /**
+     * Extends the cache until it holds the given number of instructions, or
+     * until it reaches the given instruction.
+     */
+    private void fill(int end, AbstractInsnNode stop) {
+        int length = Math.min(size, INDEX_LIMIT);
+        if (cache == null || cache.length < length) {
+            AbstractInsnNode[] grown = new AbstractInsnNode[Math.min(Math.max(
+                    length, cache == null ? 0 : cache.length << 1), INDEX_LIMIT)];
+            if (cache != null) {
+                System.arraycopy(cache, 0, grown, 0, valid);
+            }
+            cache = grown;
+        }
+        AbstractInsnNode insn = valid == 0 ? first : cache[valid - 1].next;
+        while (valid < end && valid < INDEX_LIMIT && insn != null) {
+            cache[valid] = insn;
+            insn.setIndex(valid++);
+            if (insn == stop) {
+                return;
+            }
+            insn = insn.next;
+        }
+    }
+
+    /**
+     * Invalidates the cache from the position of the given instruction, plus
+     * the given offset, on. Positions after the valid part of the cache are
+     * already invalid.
+     */
+    private void invalidate(AbstractInsnNode insn, int offset) {
+        if (isCached(insn)) {
+            valid = Math.min(valid, insn.index() + offset);
+        }
+    }
+
+    /**
+     * Returns a negative number, zero or a positive number as the first
+     * instruction comes before, is the same as or comes after the second
+     * instruction. This method runs in constant time.
+     *
+     * @param a
+     *            an instruction <i>of this list</i>.
+     * @param b
+     *            an instruction <i>of this list</i>.
+     * @return the relative order of the given instructions.
+     */
+    public int compare(AbstractInsnNode a, AbstractInsnNode b) {
+        long x = a.order();
+        long y = b.order();
+        return x < y ? -1 : x == y ? 0 : 1;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the first instruction comes before the second
+     * one. This method runs in constant time.
+     *
+     * @param a
+     *            an instruction <i>of this list</i>.
+     * @param b
+     *            an instruction <i>of this list</i>.
+     * @return <tt>true</tt> if a comes before b.
+     */
+    public boolean isBefore(AbstractInsnNode a, AbstractInsnNode b) {
+        return a.order() < b.order();
+    }
+
+    /**
+     * Gives order labels to the given run of instructions, which has just been
+     * linked into this list, and marks them as belonging to this list. The run
+     * is spread over the gap between its neighbours; if the gap is too small,
+     * the labels around the run are redistributed.
+     */
+    void label(AbstractInsnNode from, AbstractInsnNode to) {
+        AbstractInsnNode prev = from.prev;
+        AbstractInsnNode next = to.next;
+        int count = 1;
+        for (AbstractInsnNode insn = from; insn != to; insn = insn.next) {
+            insn.list = this;
+            ++count;
+        }
+        to.list = this;
+        if (journal != null) {
+            for (AbstractInsnNode insn = from; insn != next; insn = insn.next) {
+                journal.inserted(insn);
+            }
+        }
+        long low = prev == null ? -1 : prev.order();
+        long high = next == null ? ORDER_LIMIT : next.order();
+        long step = (high - low) / (count + 1);
+        if (next == null) {
+            step = Math.min(step, ORDER_GAP);
+        }
+        if (step > 0) {
+            long order = low;
+            for (AbstractInsnNode insn = from; insn != next; insn = insn.next) {
+                insn.setOrder(order += step);
+            }
+            return;
+        }
+        long order = prev == null ? high : low;
+        for (AbstractInsnNode insn = from; insn != next; insn = insn.next) {
+            insn.setOrder(order);
+        }
+        relabel(from);
+    }
+
+    /**
+     * Evenly redistributes the labels of the smallest aligned label range
+     * around the given instruction that is sparse enough. A range of 2^i
+     * labels is sparse enough when it holds at most (4/3)^i instructions, so
+     * that relabeling costs amortized O(log n) per insertion.
+     */
+    private static void relabel(AbstractInsnNode insn) {
+        AbstractInsnNode low = insn;
+        AbstractInsnNode high = insn;
+        int count = 1;
+        double capacity = 1;
+        for (int bits = 1; bits <= ORDER_BITS; ++bits) {
+            long range = 1L << bits;
+            long base = insn.order() & -range;
+            while (low.prev != null && low.prev.order() >= base) {
+                low = low.prev;
+                ++count;
+            }
+            while (high.next != null && high.next.order() < base + range) {
+                high = high.next;
+                ++count;
+            }
+            capacity *= 4.0 / 3.0;
+            if (count <= capacity || bits == ORDER_BITS) {
+                long step = range / count;
+                long order = base;
+                for (AbstractInsnNode i = low; i != high.next; i = i.next) {
+                    i.setOrder(order);
+                    order += step;
+                }
+                return;
+            }
         }
-        return insn.index;
     }
 
     /**
@@ -167,7 +519,7 @@ public class InsnList implements Serializable {
         AbstractInsnNode[] insns = new AbstractInsnNode[size];
         while (elem != null) {
             insns[i] = elem;
-            elem.index = i++;
+            elem.setIndex(i++);
             elem = elem.next;
         }
         return insns;
@@ -181,8 +533,17 @@ public class InsnList implements Serializable {
      * @param insn
      *            another instruction, <i>which must not belong to any
      *            {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if location does not belong to this list, or if insn
+     *             belongs to a list.
      */
     public void set(AbstractInsnNode location, AbstractInsnNode insn) {
+        checkOwned(location);
+        checkFree(insn);
+        if (journal != null) {
+            journal.removed(location);
+            journal.inserted(insn);
+        }
         AbstractInsnNode next = location.next;
         insn.next = next;
         if (next != null) {
@@ -197,16 +558,21 @@ public class InsnList implements Serializable {
         } else {
             first = insn;
         }
-        if (cache != null) {
-            int index = location.index;
+        if (isCached(location)) {
+            int index = location.index();
             cache[index] = insn;
-            insn.index = index;
-        } else {
-            insn.index = 0; // insn now belongs to an InsnList
+            insn.setIndex(index);
         }
-        location.index = -1; // i no longer belongs to an InsnList
+        insn.setOrder(location.order());
+        insn.list = this;
+        summary = null;
+        location.list = null;
         location.prev = null;
         location.next = null;
+        if (listeners != null) {
+            fireRemoved(location);
+            fireInserted(insn);
+        }
     }
 
     /**
@@ -215,8 +581,11 @@ public class InsnList implements Serializable {
      * @param insn
      *            an instruction, <i>which must not belong to any
      *            {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if the instruction already belongs to a list.
      */
     public void add(AbstractInsnNode insn) {
+        checkFree(insn);
         ++size;
         if (last == null) {
             first = insn;
@@ -226,8 +595,11 @@ public class InsnList implements Serializable {
             insn.prev = last;
         }
         last = insn;
-        cache = null;
-        insn.index = 0; // insn now belongs to an InsnList
+        label(insn, insn);
+        summary = null;
+        if (listeners != null) {
+            fireInserted(insn);
+        }
     }
 
     /**
@@ -236,11 +608,15 @@ public class InsnList implements Serializable {
      * @param insns
      *            an instruction list, which is cleared during the process. This
      *            list must be different from 'this'.
+     * @throws IllegalArgumentException
+     *             if the given list is this list.
      */
     public void add(InsnList insns) {
+        checkOther(insns);
         if (insns.size == 0) {
             return;
         }
+        fireMoved(insns);
         size += insns.size;
         if (last == null) {
             first = insns.first;
@@ -251,7 +627,8 @@ public class InsnList implements Serializable {
             elem.prev = last;
             last = insns.last;
         }
-        cache = null;
+        label(insns.first, insns.last);
+        summary = null;
         insns.removeAll(false);
     }
 
@@ -261,8 +638,11 @@ public class InsnList implements Serializable {
      * @param insn
      *            an instruction, <i>which must not belong to any
      *            {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if the instruction already belongs to a list.
      */
     public void insert(AbstractInsnNode insn) {
+        checkFree(insn);
         ++size;
         if (first == null) {
             first = insn;
@@ -272,8 +652,12 @@ public class InsnList implements Serializable {
             insn.next = first;
         }
         first = insn;
-        cache = null;
-        insn.index = 0; // insn now belongs to an InsnList
+        valid = 0;
+        label(insn, insn);
+        summary = null;
+        if (listeners != null) {
+            fireInserted(insn);
+        }
     }
 
     /**
@@ -282,11 +666,15 @@ public class InsnList implements Serializable {
      * @param insns
      *            an instruction list, which is cleared during the process. This
      *            list must be different from 'this'.
+     * @throws IllegalArgumentException
+     *             if the given list is this list.
      */
     public void insert(InsnList insns) {
+        checkOther(insns);
         if (insns.size == 0) {
             return;
         }
+        fireMoved(insns);
         size += insns.size;
         if (first == null) {
             first = insns.first;
@@ -297,7 +685,9 @@ public class InsnList implements Serializable {
             elem.next = first;
             first = insns.first;
         }
-        cache = null;
+        valid = 0;
+        label(insns.first, insns.last);
+        summary = null;
         insns.removeAll(false);
     }
 
@@ -310,8 +700,13 @@ public class InsnList implements Serializable {
      * @param insn
      *            the instruction to be inserted, <i>which must not belong to
      *            any {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if location does not belong to this list, or if insn
+     *             belongs to a list.
      */
     public void insert(AbstractInsnNode location, AbstractInsnNode insn) {
+        checkOwned(location);
+        checkFree(insn);
         ++size;
         AbstractInsnNode next = location.next;
         if (next == null) {
@@ -322,8 +717,12 @@ public class InsnList implements Serializable {
         location.next = insn;
         insn.next = next;
         insn.prev = location;
-        cache = null;
-        insn.index = 0; // insn now belongs to an InsnList
+        invalidate(location, 1);
+        label(insn, insn);
+        summary = null;
+        if (listeners != null) {
+            fireInserted(insn);
+        }
     }
 
     /**
@@ -335,11 +734,17 @@ public class InsnList implements Serializable {
      * @param insns
      *            the instruction list to be inserted, which is cleared during
      *            the process. This list must be different from 'this'.
+     * @throws IllegalArgumentException
+     *             if location does not belong to this list, or if the given
+     *             list is this list.
      */
     public void insert(AbstractInsnNode location, InsnList insns) {
+        checkOwned(location);
+        checkOther(insns);
         if (insns.size == 0) {
             return;
         }
+        fireMoved(insns);
         size += insns.size;
         AbstractInsnNode ifirst = insns.first;
         AbstractInsnNode ilast = insns.last;
@@ -352,7 +757,9 @@ public class InsnList implements Serializable {
         location.next = ifirst;
         ilast.next = next;
         ifirst.prev = location;
-        cache = null;
+        invalidate(location, 1);
+        label(ifirst, ilast);
+        summary = null;
         insns.removeAll(false);
     }
 
@@ -365,8 +772,13 @@ public class InsnList implements Serializable {
      * @param insn
      *            the instruction to be inserted, <i>which must not belong to
      *            any {@link InsnList}</i>.
+     * @throws IllegalArgumentException
+     *             if location does not belong to this list, or if insn
+     *             belongs to a list.
      */
     public void insertBefore(AbstractInsnNode location, AbstractInsnNode insn) {
+        checkOwned(location);
+        checkFree(insn);
         ++size;
         AbstractInsnNode prev = location.prev;
         if (prev == null) {
@@ -377,8 +789,12 @@ public class InsnList implements Serializable {
         location.prev = insn;
         insn.next = location;
         insn.prev = prev;
-        cache = null;
-        insn.index = 0; // insn now belongs to an InsnList
+        invalidate(location, 0);
+        label(insn, insn);
+        summary = null;
+        if (listeners != null) {
+            fireInserted(insn);
+        }
     }
 
     /**
@@ -390,11 +806,17 @@ public class InsnList implements Serializable {
      * @param insns
      *            the instruction list to be inserted, which is cleared during
      *            the process. This list must be different from 'this'.
+     * @throws IllegalArgumentException
+     *             if location does not belong to this list, or if the given
+     *             list is this list.
      */
     public void insertBefore(AbstractInsnNode location, InsnList insns) {
+        checkOwned(location);
+        checkOther(insns);
         if (insns.size == 0) {
             return;
         }
+        fireMoved(insns);
         size += insns.size;
         AbstractInsnNode ifirst = insns.first;
         AbstractInsnNode ilast = insns.last;
@@ -407,7 +829,9 @@ public class InsnList implements Serializable {
         location.prev = ilast;
         ilast.next = location;
         ifirst.prev = prev;
-        cache = null;
+        invalidate(location, 0);
+        label(ifirst, ilast);
+        summary = null;
         insns.removeAll(false);
     }
 
@@ -416,8 +840,14 @@ public class InsnList implements Serializable {
      *
      * @param insn
      *            the instruction <i>of this list</i> that must be removed.
+     * @throws IllegalArgumentException
+     *             if the instruction does not belong to this list.
      */
     public void remove(AbstractInsnNode insn) {
+        checkOwned(insn);
+        if (journal != null) {
+            journal.removed(insn);
+        }
         --size;
         AbstractInsnNode next = insn.next;
         AbstractInsnNode prev = insn.prev;
@@ -438,10 +868,14 @@ public class InsnList implements Serializable {
                 next.prev = prev;
             }
         }
-        cache = null;
-        insn.index = -1; // insn no longer belongs to an InsnList
+        invalidate(insn, 0);
+        summary = null;
+        insn.list = null;
         insn.prev = null;
         insn.next = null;
+        if (listeners != null) {
+            fireRemoved(insn);
+        }
     }
 
     /**
@@ -456,7 +890,7 @@ public class InsnList implements Serializable {
             AbstractInsnNode insn = first;
             while (insn != null) {
                 AbstractInsnNode next = insn.next;
-                insn.index = -1; // insn no longer belongs to an InsnList
+                        insn.list = null;
                 insn.prev = null;
                 insn.next = null;
                 insn = next;
@@ -466,13 +900,97 @@ public class InsnList implements Serializable {
         first = null;
         last = null;
         cache = null;
+        valid = 0;
+        summary = null;
     }
 
     /**
-     * Removes all of the instructions of this list.
+     * Removes all of the instructions of this list. They are marked as no
+     * longer belonging to any {@link InsnList}, so that they can be added to
+     * another list.
      */
     public void clear() {
-        removeAll(false);
+        if (listeners != null) {
+            for (AbstractInsnNode insn = first; insn != null; insn = insn.next) {
+                fireRemoved(insn);
+            }
+        }
+        if (journal != null && first != null) {
+            journal.removed(first, last);
+        }
+        removeAll(true);
+    }
+
+    /**
+     * Saves the operands of the given instruction, so that rolling back the
+     * open snapshots of this list restores them. This method must be called
+     * before the fields of an instruction are modified in place, and does
+     * nothing if no snapshot is open.
+     *
+     * @param insn
+     *            an instruction <i>of this list</i>.
+     */
+    public void save(AbstractInsnNode insn) {
+        if (journal != null && insn.getType() != AbstractInsnNode.LABEL) {
+            journal.saved(insn);
+        }
+    }
+
+    /**
+     * Opens a snapshot of this list. From now on, the modifications of this
+     * list are journaled until the snapshot is closed.
+     *
+     * @return the serial number of the snapshot.
+     */
+    long open() {
+        if (journal == null) {
+            journal = new InsnJournal();
+        }
+        return journal.open();
+    }
+
+    /**
+     * Undoes the modifications made since the given snapshot was opened, and
+     * closes it along with the snapshots opened after it.
+     *
+     * @throws IllegalStateException
+     *             if the snapshot is closed.
+     */
+    void rollback(long serial) {
+        int depth = depthOf(serial);
+        InsnJournal journal = this.journal;
+        this.journal = null;
+        try {
+            journal.undo(this, depth);
+        } finally {
+            this.journal = journal;
+        }
+        close(depth);
+    }
+
+    /**
+     * Closes the given snapshot along with the snapshots opened after it,
+     * keeping the modifications made since it was opened.
+     *
+     * @throws IllegalStateException
+     *             if the snapshot is closed.
+     */
+    void release(long serial) {
+        close(depthOf(serial));
+    }
+
+    private int depthOf(long serial) {
+        int depth = journal == null ? -1 : journal.depthOf(serial);
+        if (depth == -1) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        return depth;
+    }
+
+    private void close(int depth) {
+        if (journal.close(depth)) {
+            journal = null;
+        }
     }
 
     /**
@@ -541,20 +1059,14 @@ public class InsnList implements Serializable {
             if (next == null) {
                 return size();
             }
-            if (cache == null) {
-                cache = toArray();
-            }
-            return next.index;
+            return indexOf(next);
         }
 
         public int previousIndex() {
             if (prev == null) {
                 return -1;
             }
-            if (cache == null) {
-                cache = toArray();
-            }
-            return prev.index;
+            return indexOf(prev);
         }
 
         public void add(Object o) {
@@ -0,0 +1,32 @@
+package org.sasm.tree;
+
+/**
+ * A listener that is notified when instructions are added to or removed from
+ * an {@link InsnList}. Instructions moved from one list to another are
+ * reported as removed from the source list and inserted into the target list.
+ *
+ * @author Tyler Sedlar
+ */
+public interface InsnListListener {
+
+    /**
+     * Called after an instruction has been added to a list.
+     *
+     * @param list
+     *            the list the instruction was added to.
+     * @param insn
+     *            the added instruction.
+     */
+    void inserted(InsnList list, AbstractInsnNode insn);
+
+    /**
+     * Called when an instruction is removed from a list. Bulk removals
+     * report each instruction before the list is emptied.
+     *
+     * @param list
+     *            the list the instruction was removed from.
+     * @param insn
+     *            the removed instruction.
+     */
+    void removed(InsnList list, AbstractInsnNode insn);
+}
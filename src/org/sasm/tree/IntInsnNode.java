@@ -38,7 +38,7 @@ public class IntInsnNode extends AbstractInsnNode {
      *            or NEWARRAY.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
@@ -41,7 +41,7 @@ public class JumpInsnNode extends AbstractInsnNode {
      *            JSR, IFNULL or IFNONNULL.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
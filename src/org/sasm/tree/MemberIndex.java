@@ -0,0 +1,156 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the fields or methods of a {@link ClassNode} by name, by
+ * descriptor and by name and descriptor. Each key maps to the members that
+ * had this key when the index was built, in the order of the member list. An
+ * index is immutable: its tables are filled in its constructor and frozen
+ * with it, so it can be published without synchronization and read by
+ * several threads. It is replaced by a new one when its member list is
+ * modified, or when a member is found renamed in place.
+ *
+ * @author Tyler Sedlar
+ */
+final class MemberIndex<T> {
+
+    private final MemberList<T> list;
+
+    private final int modCount;
+
+    private final String[] signatures;
+
+    private final Map<String, List<T>> names;
+
+    private final Map<String, List<T>> descs;
+
+    private final Map<String, List<T>> keys;
+
+    /**
+     * Builds the index of the given list.
+     *
+     * @param list
+     *            a member list.
+     * @param signatures
+     *            the name and descriptor of each member of the list, in
+     *            turn.
+     */
+    private MemberIndex(MemberList<T> list, String[] signatures) {
+        this.list = list;
+        this.modCount = list.modCount();
+        this.signatures = signatures;
+        Map<String, List<T>> names = new HashMap<>();
+        Map<String, List<T>> descs = new HashMap<>();
+        Map<String, List<T>> keys = new HashMap<>();
+        for (int i = 0; i < list.size(); ++i) {
+            T member = list.get(i);
+            String name = signatures[i << 1];
+            String desc = signatures[(i << 1) + 1];
+            put(names, name, member);
+            put(descs, desc, member);
+            put(keys, key(name, desc), member);
+        }
+        this.names = freeze(names);
+        this.descs = freeze(descs);
+        this.keys = freeze(keys);
+    }
+
+    static MemberIndex<FieldNode> fields(MemberList<FieldNode> fields) {
+        String[] signatures = new String[fields.size() << 1];
+        for (int i = 0; i < fields.size(); ++i) {
+            FieldNode fn = fields.get(i);
+            signatures[i << 1] = fn.name;
+            signatures[(i << 1) + 1] = fn.desc;
+        }
+        return new MemberIndex<>(fields, signatures);
+    }
+
+    static MemberIndex<MethodNode> methods(MemberList<MethodNode> methods) {
+        String[] signatures = new String[methods.size() << 1];
+        for (int i = 0; i < methods.size(); ++i) {
+            MethodNode mn = methods.get(i);
+            signatures[i << 1] = mn.name;
+            signatures[(i << 1) + 1] = mn.desc;
+        }
+        return new MemberIndex<>(methods, signatures);
+    }
+
+    private static <T> void put(Map<String, List<T>> map, String key, T member) {
+        List<T> members = map.get(key);
+        if (members == null) {
+            map.put(key, Collections.singletonList(member));
+        } else {
+            if (members.size() == 1) {
+                members = new ArrayList<>(members);
+                map.put(key, members);
+            }
+            members.add(member);
+        }
+    }
+
+    /**
+     * Makes the given table and its buckets unmodifiable.
+     */
+    private static <T> Map<String, List<T>> freeze(Map<String, List<T>> map) {
+        for (Map.Entry<String, List<T>> entry : map.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Returns the key of a name and a descriptor. A name cannot contain a
+     * '.', so the key is unambiguous.
+     */
+    private static String key(String name, String desc) {
+        return name + '.' + desc;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this index is an index of the given list, and
+     * the list was not modified since the index was built.
+     */
+    boolean isCurrent(List<T> list) {
+        return list == this.list && this.list.modCount() == modCount;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the member at the given position of the list
+     * had the given name and descriptor when this index was built. The
+     * strings are compared by identity, which is enough to detect members
+     * renamed in place.
+     */
+    boolean isIndexed(int i, String name, String desc) {
+        return signatures[i << 1] == name && signatures[(i << 1) + 1] == desc;
+    }
+
+    /**
+     * Returns the members that had the given name and descriptor when this
+     * index was built. Members renamed since are not reindexed, and callers
+     * must check the name and descriptor of the returned members.
+     *
+     * @param name
+     *            a member name, or <tt>null</tt> to match any name.
+     * @param desc
+     *            a member descriptor, or <tt>null</tt> to match any
+     *            descriptor.
+     * @return the members of the given name and descriptor, in the order of
+     *         the member list.
+     */
+    List<T> get(String name, String desc) {
+        List<T> members;
+        if (name == null) {
+            members = desc == null ? list : descs.get(desc);
+        } else {
+            members = desc == null ? names.get(name) : keys.get(key(name, desc));
+        }
+        return members == null ? Collections.<T> emptyList() : members;
+    }
+}
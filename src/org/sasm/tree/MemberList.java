@@ -0,0 +1,38 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The list of the fields or methods of a {@link ClassNode}. It behaves as an
+ * {@link ArrayList}, but also counts the elements it replaces as a
+ * modification, so that the member index of its class can tell whether it is
+ * still up to date.
+ *
+ * @author Tyler Sedlar
+ */
+final class MemberList<T> extends ArrayList<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    MemberList() {
+    }
+
+    MemberList(Collection<? extends T> c) {
+        super(c);
+    }
+
+    /**
+     * Returns the number of structural modifications and replacements made to
+     * this list.
+     */
+    int modCount() {
+        return modCount;
+    }
+
+    @Override
+    public T set(int index, T element) {
+        ++modCount;
+        return super.set(index, element);
+    }
+}
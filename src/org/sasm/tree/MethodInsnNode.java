@@ -59,7 +59,7 @@ public class MethodInsnNode extends AbstractInsnNode {
      *            INVOKESPECIAL, INVOKESTATIC or INVOKEINTERFACE.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
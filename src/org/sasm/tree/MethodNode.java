@@ -195,6 +195,7 @@ public class MethodNode extends MethodVisitor {
     public MethodNode(int api) {
         super(api);
         this.instructions = new InsnList();
+        this.instructions.method = this;
     }
 
     /**
@@ -258,6 +259,7 @@ public class MethodNode extends MethodVisitor {
             this.exceptions.addAll(Arrays.asList(exceptions));
         }
         this.instructions = new InsnList();
+        this.instructions.method = this;
     }
 
     // ------------------------------------------------------------------------
@@ -601,6 +603,16 @@ public class MethodNode extends MethodVisitor {
         return nodes;
     }
 
+    /**
+     * Takes a snapshot of this method, which can later restore it. See
+     * {@link MethodSnapshot}.
+     *
+     * @return a new open snapshot of this method.
+     */
+    public MethodSnapshot snapshot() {
+        return new MethodSnapshot(this);
+    }
+
     // ------------------------------------------------------------------------
     // Accept method
     // ------------------------------------------------------------------------
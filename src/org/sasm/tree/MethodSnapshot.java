@@ -0,0 +1,203 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of a {@link MethodNode}, to attempt a transformation and roll it
+ * back if it turns out to be unwanted. Taking a snapshot does not copy the
+ * instructions: while it is open, the instruction list journals how to undo
+ * its modifications, so that a rollback only costs as much as the
+ * modifications made since the snapshot. The other code attributes (try catch
+ * blocks, local variables, max stack and locals) and the signature of the
+ * method are small and copied when the snapshot is taken.
+ * <p>
+ * Instructions inserted, removed, replaced or moved through {@link InsnList}
+ * or {@link InsnEditor}, and opcodes changed with <tt>setOpcode</tt>, are
+ * restored by a rollback. The operands of an instruction that are modified in
+ * place are only restored if the instruction was passed to
+ * {@link InsnList#save} beforehand. Annotations are not restored.
+ * <p>
+ * Snapshots of the same method may be nested. Closing a snapshot, by a
+ * rollback or a release, also closes the snapshots taken after it.
+ *
+ * @author Tyler Sedlar
+ */
+public class MethodSnapshot {
+
+    private final MethodNode method;
+
+    private final InsnList instructions;
+
+    private final long serial;
+
+    private final int access;
+
+    private final String name;
+
+    private final String desc;
+
+    private final String signature;
+
+    private final List<String> exceptionList;
+
+    private final List<String> exceptions;
+
+    private final int maxStack;
+
+    private final int maxLocals;
+
+    private final List<TryCatchBlockNode> tryCatchBlockList;
+
+    private final List<TryCatchBlockNode> tryCatchBlocks;
+
+    private final Object[] tryCatchFields;
+
+    private final List<LocalVariableNode> localVariableList;
+
+    private final List<LocalVariableNode> localVariables;
+
+    private final Object[] localVariableFields;
+
+    /**
+     * Takes a snapshot of the given method.
+     *
+     * @param method
+     *            a method.
+     */
+    MethodSnapshot(MethodNode method) {
+        this.method = method;
+        this.instructions = method.instructions;
+        this.serial = instructions.open();
+        this.access = method.access;
+        this.name = method.name;
+        this.desc = method.desc;
+        this.signature = method.signature;
+        this.exceptionList = method.exceptions;
+        this.exceptions = copy(method.exceptions);
+        this.maxStack = method.maxStack;
+        this.maxLocals = method.maxLocals;
+        this.tryCatchBlockList = method.tryCatchBlocks;
+        this.tryCatchBlocks = copy(method.tryCatchBlocks);
+        if (tryCatchBlocks == null) {
+            this.tryCatchFields = null;
+        } else {
+            Object[] fields = new Object[tryCatchBlocks.size() * 4];
+            int i = 0;
+            for (TryCatchBlockNode tcb : tryCatchBlocks) {
+                fields[i++] = tcb.start;
+                fields[i++] = tcb.end;
+                fields[i++] = tcb.handler;
+                fields[i++] = tcb.type;
+            }
+            this.tryCatchFields = fields;
+        }
+        this.localVariableList = method.localVariables;
+        this.localVariables = copy(method.localVariables);
+        if (localVariables == null) {
+            this.localVariableFields = null;
+        } else {
+            Object[] fields = new Object[localVariables.size() * 6];
+            int i = 0;
+            for (LocalVariableNode lvn : localVariables) {
+                fields[i++] = lvn.name;
+                fields[i++] = lvn.desc;
+                fields[i++] = lvn.signature;
+                fields[i++] = lvn.start;
+                fields[i++] = lvn.end;
+                fields[i++] = lvn.index;
+            }
+            this.localVariableFields = fields;
+        }
+    }
+
+    private static <T> List<T> copy(List<T> list) {
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    /**
+     * Returns the method of this snapshot.
+     *
+     * @return the method of this snapshot.
+     */
+    public MethodNode getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this snapshot is open.
+     *
+     * @return <tt>true</tt> if this snapshot can still be rolled back or
+     *         released.
+     */
+    public boolean isOpen() {
+        InsnJournal journal = instructions.journal;
+        return journal != null && journal.depthOf(serial) != -1;
+    }
+
+    /**
+     * Restores the method to its state when this snapshot was taken, and
+     * closes this snapshot.
+     *
+     * @throws IllegalStateException
+     *             if this snapshot is closed.
+     */
+    public void rollback() {
+        instructions.rollback(serial);
+        method.instructions = instructions;
+        if (method.owner != null && (method.name != name || method.desc != desc)) {
+            method.owner.reindex();
+        }
+        method.access = access;
+        method.name = name;
+        method.desc = desc;
+        method.signature = signature;
+        method.exceptions = restore(exceptionList, exceptions);
+        method.maxStack = maxStack;
+        method.maxLocals = maxLocals;
+        method.tryCatchBlocks = restore(tryCatchBlockList, tryCatchBlocks);
+        if (tryCatchBlocks != null) {
+            int i = 0;
+            for (TryCatchBlockNode tcb : tryCatchBlocks) {
+                tcb.start = (LabelNode) tryCatchFields[i++];
+                tcb.end = (LabelNode) tryCatchFields[i++];
+                tcb.handler = (LabelNode) tryCatchFields[i++];
+                tcb.type = (String) tryCatchFields[i++];
+            }
+        }
+        method.localVariables = restore(localVariableList, localVariables);
+        if (localVariables != null) {
+            int i = 0;
+            for (LocalVariableNode lvn : localVariables) {
+                lvn.name = (String) localVariableFields[i++];
+                lvn.desc = (String) localVariableFields[i++];
+                lvn.signature = (String) localVariableFields[i++];
+                lvn.start = (LabelNode) localVariableFields[i++];
+                lvn.end = (LabelNode) localVariableFields[i++];
+                lvn.index = (Integer) localVariableFields[i++];
+            }
+        }
+    }
+
+    /**
+     * Restores the content of a list of the method.
+     */
+    private static <T> List<T> restore(List<T> list, List<T> saved) {
+        if (list != null) {
+            list.clear();
+            list.addAll(saved);
+        }
+        return list;
+    }
+
+    /**
+     * Keeps the modifications made since this snapshot was taken, and closes
+     * this snapshot.
+     *
+     * @throws IllegalStateException
+     *             if this snapshot is closed.
+     */
+    public void release() {
+        instructions.release(serial);
+    }
+}
@@ -0,0 +1,108 @@
+package org.sasm.tree;
+
+/**
+ * An immutable summary of the opcodes used by an {@link InsnList}: which
+ * opcodes are present and how often each occurs. Labels, frames and line
+ * numbers are counted under opcode -1. Presence is kept as a bitset indexed
+ * by opcode + 1, the same layout used by pattern selectors, so a list can be
+ * rejected with a few word operations before any instruction is scanned.
+ *
+ * @author Tyler Sedlar
+ */
+public final class OpcodeSummary {
+
+    /**
+     * The number of 64 bit words in an opcode set (opcodes -1 to 255).
+     */
+    public static final int WORDS = 5;
+
+    private final long[] bits;
+
+    /**
+     * The counts of the present opcodes, ordered by opcode.
+     */
+    private final int[] counts;
+
+    OpcodeSummary(InsnList insns) {
+        int[] all = new int[257];
+        long[] bits = new long[WORDS];
+        for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.next) {
+            int bit = insn.getOpcode() + 1;
+            all[bit]++;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        int present = 0;
+        for (long word : bits) {
+            present += Long.bitCount(word);
+        }
+        int[] counts = new int[present];
+        int i = 0;
+        for (int bit = 0; bit < all.length; bit++) {
+            if (all[bit] != 0) {
+                counts[i++] = all[bit];
+            }
+        }
+        this.bits = bits;
+        this.counts = counts;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the list contains an instruction with the given
+     * opcode.
+     *
+     * @param opcode
+     *            an opcode, or -1 for labels, frames and line numbers.
+     * @return <tt>true</tt> if the list contains the given opcode.
+     */
+    public boolean contains(int opcode) {
+        int bit = opcode + 1;
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Returns the number of instructions with the given opcode.
+     *
+     * @param opcode
+     *            an opcode, or -1 for labels, frames and line numbers.
+     * @return the number of instructions with the given opcode.
+     */
+    public int count(int opcode) {
+        int bit = opcode + 1;
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        if ((bits[word] & mask) == 0) {
+            return 0;
+        }
+        int rank = Long.bitCount(bits[word] & (mask - 1));
+        for (int i = 0; i < word; i++) {
+            rank += Long.bitCount(bits[i]);
+        }
+        return counts[rank];
+    }
+
+    /**
+     * Returns the number of distinct opcodes in the list.
+     *
+     * @return the number of distinct opcodes in the list.
+     */
+    public int distinct() {
+        return counts.length;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the list contains any of the opcodes of the
+     * given set.
+     *
+     * @param set
+     *            an opcode set of {@link #WORDS} words, indexed by opcode + 1.
+     * @return <tt>true</tt> if the list contains any opcode of the set.
+     */
+    public boolean intersects(long[] set) {
+        for (int i = 0; i < WORDS; i++) {
+            if ((bits[i] & set[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,164 @@
+package org.sasm.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of the symbolic operands of the {@link CompactCode} of a class.
+ * Strings, constants, {@link org.sasm.Type Type} and {@link org.sasm.Handle
+ * Handle} objects and field or method references are stored once and
+ * referred to by their index. Two equal symbols always have the same index, so
+ * an instruction operand can be compared against a symbol without looking the
+ * symbol up.
+ * <p>
+ * A table only grows. It is not thread-safe while symbols are added, but may
+ * be read by several threads once the code of its class is built.
+ *
+ * @author Tyler Sedlar
+ */
+public class SymbolTable {
+
+    /**
+     * The symbols of this table, by index.
+     */
+    private final List<Object> symbols = new ArrayList<>();
+
+    /**
+     * The index of each symbol of this table.
+     */
+    private final Map<Object, Integer> indexes = new HashMap<>();
+
+    /**
+     * A reference to a field or a method, as used by field and method
+     * instructions.
+     */
+    public static final class Member {
+
+        /**
+         * The internal name of the class that owns the member.
+         */
+        public final String owner;
+
+        /**
+         * The name of the member.
+         */
+        public final String name;
+
+        /**
+         * The descriptor of the member.
+         */
+        public final String desc;
+
+        /**
+         * Constructs a new {@link Member}.
+         *
+         * @param owner
+         *            the internal name of the class that owns the member.
+         * @param name
+         *            the name of the member.
+         * @param desc
+         *            the descriptor of the member.
+         */
+        public Member(String owner, String name, String desc) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member)) {
+                return false;
+            }
+            Member m = (Member) o;
+            return owner.equals(m.owner) && name.equals(m.name)
+                    && desc.equals(m.desc);
+        }
+
+        @Override
+        public int hashCode() {
+            return owner.hashCode() ^ name.hashCode() * 31 ^ desc.hashCode() * 961;
+        }
+
+        @Override
+        public String toString() {
+            return owner + '.' + name + desc;
+        }
+    }
+
+    /**
+     * Returns the number of symbols in this table.
+     *
+     * @return the number of symbols in this table.
+     */
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * Adds a symbol to this table, unless an equal symbol is already stored.
+     *
+     * @param symbol
+     *            a {@link String}, {@link Integer}, {@link Float},
+     *            {@link Long}, {@link Double}, {@link org.sasm.Type Type},
+     *            {@link org.sasm.Handle Handle} or {@link Member}.
+     * @return the index of the symbol.
+     */
+    public int add(Object symbol) {
+        Integer index = indexes.get(symbol);
+        if (index == null) {
+            index = symbols.size();
+            symbols.add(symbol);
+            indexes.put(symbol, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the given symbol.
+     *
+     * @param symbol
+     *            a symbol.
+     * @return the index of the symbol, or -1 if this table does not contain
+     *         it.
+     */
+    public int indexOf(Object symbol) {
+        Integer index = indexes.get(symbol);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the symbol at the given index.
+     *
+     * @param index
+     *            the index of a symbol.
+     * @return the symbol at the given index.
+     */
+    public Object get(int index) {
+        return symbols.get(index);
+    }
+
+    /**
+     * Returns the string at the given index.
+     *
+     * @param index
+     *            the index of a string symbol.
+     * @return the string at the given index.
+     */
+    public String getString(int index) {
+        return (String) symbols.get(index);
+    }
+
+    /**
+     * Returns the member reference at the given index.
+     *
+     * @param index
+     *            the index of a member symbol.
+     * @return the member reference at the given index.
+     */
+    public Member getMember(int index) {
+        return (Member) symbols.get(index);
+    }
+}
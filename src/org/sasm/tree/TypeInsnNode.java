@@ -41,7 +41,7 @@ public class TypeInsnNode extends AbstractInsnNode {
      *            ANEWARRAY, CHECKCAST or INSTANCEOF.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
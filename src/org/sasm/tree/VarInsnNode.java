@@ -44,7 +44,7 @@ public class VarInsnNode extends AbstractInsnNode {
      *            RET.
      */
     public void setOpcode(int opcode) {
-        this.opcode = opcode;
+        changeOpcode(opcode);
     }
 
     @Override
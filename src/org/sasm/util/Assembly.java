@@ -85,27 +85,33 @@ public class Assembly {
 			for (FieldNode fn : cn.fields) {
 				if (fn.desc.contains("L" + oldValue + ";")) {
 					fn.desc = fn.desc.replaceAll("L" + oldValue + ";", "L" + newValue + ";");
+					cn.reindex();
 				}
 			}
 			for (MethodNode mn : cn.methods) {
 				if (mn.desc.contains("L" + oldValue + ";")) {
 					mn.desc = mn.desc.replaceAll("L" + oldValue + ";", "L" + newValue + ";");
+					cn.reindex();
 				}
 				for (AbstractInsnNode ain : mn.instructions.toArray()) {
 					if (ain instanceof FieldInsnNode) {
 						FieldInsnNode fin = (FieldInsnNode) ain;
 						if (fin.owner.equals(oldValue)) {
+							mn.instructions.save(fin);
 							fin.owner = newValue;
 						}
 						if (fin.desc.contains(oldValue + ";")) {
+							mn.instructions.save(fin);
 							fin.desc = fin.desc.replaceAll("L" + oldValue + ";", "L" + newValue + ";");
 						}
 					} else if (ain instanceof MethodInsnNode) {
 						MethodInsnNode min = (MethodInsnNode) ain;
 						if (min.owner.equals(oldValue)) {
+							mn.instructions.save(min);
 							min.owner = newValue;
 						}
 						if (min.desc.contains("L" + oldValue + ";")) {
+							mn.instructions.save(min);
 							min.desc = min.desc.replaceAll("L" + oldValue + ";", "L" + newValue + ";");
 						}
 					} else if (ain instanceof LdcInsnNode) {
@@ -114,6 +120,7 @@ public class Assembly {
 						if (cst != null && cst instanceof String) {
 							String str = cst.toString();
 							if (str.startsWith(oldValue + ".") && str.endsWith("(")) {
+								mn.instructions.save(ldc);
 								ldc.cst = str.replaceFirst(oldValue + ".", newValue + ".");
 							}
 						}
@@ -143,9 +150,11 @@ public class Assembly {
 	 * @param newValue The class name to change to.
 	 */
 	public static void renameField(Map<String, ClassNode> classes, String clazz, String oldValue, String newValue) {
-		for (FieldNode fn : classes.get(clazz).fields) {
+		ClassNode owner = classes.get(clazz);
+		for (FieldNode fn : owner.fields) {
 			if (fn.name.equals(oldValue)) {
 				fn.name = newValue;
+				owner.reindex();
 				break;
 			}
 		}
@@ -155,6 +164,7 @@ public class Assembly {
 					if (ain instanceof FieldInsnNode) {
 						FieldInsnNode fin = (FieldInsnNode) ain;
 						if (fin.owner.equals(clazz) && fin.name.equals(oldValue)) {
+							mn.instructions.save(fin);
 							fin.name = newValue;
 						}
 					}
@@ -163,6 +173,31 @@ public class Assembly {
 		}
 	}
 
+	/**
+	 * Renames the given field from old to new value, looking its accesses up within a usage index.
+	 *
+	 * @param classes A map of classnodes.
+	 * @param index The usage index of the classes, which is updated to the new name.
+	 * @param clazz The class that owns the field.
+	 * @param oldValue The field name to change from.
+	 * @param newValue The field name to change to.
+	 */
+	public static void renameField(Map<String, ClassNode> classes, UsageIndex index, String clazz, String oldValue,
+	                               String newValue) {
+		ClassNode owner = classes.get(clazz);
+		for (FieldNode fn : owner.fields) {
+			if (fn.name.equals(oldValue)) {
+				for (UsageIndex.Usage usage : index.getUsages(clazz, oldValue, fn.desc)) {
+					((FieldInsnNode) usage.insn).name = newValue;
+					index.update(usage.insn);
+				}
+				fn.name = newValue;
+				owner.reindex();
+				break;
+			}
+		}
+	}
+
 	/**
 	 * Writes the given class to a file.
 	 *
@@ -0,0 +1,152 @@
+package org.sasm.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache holding at most a fixed amount of entries. Entries are
+ * evicted in clock (second chance) order: an entry that has been read since
+ * the clock hand last passed it is skipped once before it may be evicted.
+ *
+ * @author Tyler Sedlar
+ */
+public class BoundedCache<K, V> {
+
+	private final int capacity;
+	private final ConcurrentHashMap<K, Entry<V>> map;
+	private final Queue<K> clock = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	private static class Entry<V> {
+
+		private final V value;
+		private volatile boolean referenced;
+
+		private Entry(V value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Creates a cache holding at most the given amount of entries.
+	 *
+	 * @param capacity The maximum amount of entries.
+	 */
+	public BoundedCache(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.map = new ConcurrentHashMap<>(Math.min(capacity, 1024));
+	}
+
+	/**
+	 * Gets the value cached for the given key.
+	 *
+	 * @param key The key to look up.
+	 * @return The cached value, or <tt>null</tt> if the key is not cached.
+	 */
+	public V get(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (!entry.referenced) entry.referenced = true;
+		return entry.value;
+	}
+
+	/**
+	 * Caches the given value unless the key is already cached, evicting other entries if the cache is full.
+	 *
+	 * @param key The key to cache the value under.
+	 * @param value The value to cache.
+	 * @return The value that is cached for the key after this call.
+	 */
+	public V putIfAbsent(K key, V value) {
+		Entry<V> existing = map.putIfAbsent(key, new Entry<>(value));
+		if (existing != null) return existing.value;
+		clock.offer(key);
+		if (size.incrementAndGet() > capacity) evict();
+		return value;
+	}
+
+	private void evict() {
+		K key;
+		while (size.get() > capacity && (key = clock.poll()) != null) {
+			Entry<V> entry = map.get(key);
+			if (entry == null) continue;
+			if (entry.referenced) {
+				entry.referenced = false;
+				clock.offer(key);
+			} else if (map.remove(key, entry)) {
+				size.decrementAndGet();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes every cached entry. The counters are left untouched.
+	 */
+	public void clear() {
+		K key;
+		while ((key = clock.poll()) != null) {
+			if (map.remove(key) != null) size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the amount of cached entries.
+	 *
+	 * @return The amount of cached entries.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the maximum amount of cached entries.
+	 *
+	 * @return The maximum amount of cached entries.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the amount of lookups that found a cached value.
+	 *
+	 * @return The amount of cache hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the amount of lookups that found no cached value.
+	 *
+	 * @return The amount of cache misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the amount of entries evicted to stay within capacity.
+	 *
+	 * @return The amount of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[size=%d,capacity=%d,hits=%d,misses=%d,evictions=%d]", getClass().getSimpleName(),
+				size(), capacity, getHits(), getMisses(), getEvictions());
+	}
+}
@@ -0,0 +1,392 @@
+package org.sasm.util;
+
+import org.sasm.ClassReader;
+import org.sasm.ClassWriter;
+import org.sasm.tree.ClassNode;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A map of classes that keeps at most a given memory budget of them decoded. Each class is decoded on
+ * first access, and decoded classes are evicted in clock (second chance) order once their estimated
+ * size exceeds the budget. A clean class is simply dropped, to be decoded again from its source; a
+ * dirty class is first written through a {@link ClassWriter} into a spill file, which it is decoded
+ * from on its next access.
+ * <p>
+ * A class is dirty once it was {@link #put} into the map, handed out by {@link #getForEdit} or
+ * reported through {@link #markDirty}. Classes modified in place must be obtained through
+ * {@link #getForEdit} or reported, or their changes are lost when they are evicted.
+ * Since an evicted class is decoded into a new node, references to a node must not be kept across
+ * accesses to other classes. Non standard attributes, debug information and frames are not kept.
+ * <i>The iterators of this map are not thread safe.</i>
+ *
+ * @author Tyler Sedlar
+ */
+public class ClassCache extends AbstractMap<String, ClassNode> implements Closeable {
+
+	// rough heap costs of a decoded class, measured on the JDK class library
+	private static final int CLASS_COST = 1024, MEMBER_COST = 256, INSN_COST = 64;
+
+	private static final int FLAGS = ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG;
+
+	/**
+	 * Reads the bytes of the classes of a cache.
+	 */
+	public interface Source {
+
+		/**
+		 * Reads the class file of the given class.
+		 *
+		 * @param name The name of the class.
+		 * @return The bytes of the class file.
+		 * @throws IOException If the class cannot be read.
+		 */
+		byte[] read(String name) throws IOException;
+	}
+
+	private final Source source;
+	private final long budget;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private final Queue<Entry> clock = new ArrayDeque<>();
+	private long used, loads, evictions, spills;
+	private File spillFile;
+	private RandomAccessFile spill;
+	private long spillLength;
+	private Set<Map.Entry<String, ClassNode>> entrySet;
+
+	private static class Entry {
+
+		private final String name;
+		private ClassNode node;
+		private int cost;
+		private boolean referenced, dirty, queued;
+		private long spillOffset = -1;
+		private int spillSize;
+
+		private Entry(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Creates a cache of the given classes.
+	 *
+	 * @param names The names of the classes that the source can read.
+	 * @param source The source of the classes.
+	 * @param budget The estimated amount of bytes of decoded classes to keep.
+	 */
+	public ClassCache(Collection<String> names, Source source, long budget) {
+		if (budget <= 0) throw new IllegalArgumentException("budget must be positive: " + budget);
+		this.source = source;
+		this.budget = budget;
+		for (String name : names) {
+			entries.put(name, new Entry(name));
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public synchronized ClassNode get(Object key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : load(entry);
+	}
+
+	/**
+	 * Puts a class into this cache, marking it dirty.
+	 *
+	 * @return The previous class if it was decoded, or <tt>null</tt>.
+	 */
+	@Override
+	public synchronized ClassNode put(String key, ClassNode value) {
+		if (value == null) throw new NullPointerException();
+		Entry entry = entries.get(key);
+		ClassNode previous = null;
+		if (entry == null) {
+			entries.put(key, entry = new Entry(key));
+		} else {
+			previous = entry.node;
+			if (previous != null) used -= entry.cost;
+		}
+		entry.spillOffset = -1;
+		entry.dirty = true;
+		cache(entry, value);
+		return previous;
+	}
+
+	/**
+	 * Removes a class from this cache, without decoding it.
+	 *
+	 * @return The removed class if it was decoded, or <tt>null</tt>.
+	 */
+	@Override
+	public synchronized ClassNode remove(Object key) {
+		Entry entry = entries.remove(key);
+		if (entry == null || entry.node == null) return null;
+		// the clock skips entries without a node
+		ClassNode cn = entry.node;
+		entry.node = null;
+		used -= entry.cost;
+		return cn;
+	}
+
+	@Override
+	public synchronized void clear() {
+		for (Entry entry : clock) {
+			entry.node = null;
+			entry.queued = false;
+		}
+		entries.clear();
+		clock.clear();
+		used = 0;
+	}
+
+	/**
+	 * Gets the given class to modify it in place, marking it dirty so that it is spilled rather than
+	 * dropped when evicted.
+	 *
+	 * @param name The name of the class.
+	 * @return The class, or <tt>null</tt> if it is not part of this cache.
+	 */
+	public synchronized ClassNode getForEdit(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null) return null;
+		ClassNode cn = load(entry);
+		entry.dirty = true;
+		return cn;
+	}
+
+	/**
+	 * Reports that the given class was modified in place, so that it is spilled rather than dropped
+	 * when evicted. The class must still be decoded: accessing other classes since it was modified
+	 * may have evicted it, losing the modification. Use {@link #getForEdit} to avoid this.
+	 *
+	 * @param name The name of the class.
+	 * @throws IllegalArgumentException If the class is not part of this cache.
+	 * @throws IllegalStateException If the class was evicted since it was last accessed.
+	 */
+	public synchronized void markDirty(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null) throw new IllegalArgumentException("Unknown class " + name);
+		if (entry.node == null) throw new IllegalStateException("Class " + name + " was evicted before it was marked dirty");
+		entry.dirty = true;
+	}
+
+	private ClassNode load(Entry entry) {
+		if (entry.node != null) {
+			if (!entry.referenced) entry.referenced = true;
+			return entry.node;
+		}
+		byte[] bytes;
+		try {
+			if (entry.spillOffset != -1) {
+				bytes = new byte[entry.spillSize];
+				spill.seek(entry.spillOffset);
+				spill.readFully(bytes);
+			} else {
+				bytes = source.read(entry.name);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to load " + entry.name, e);
+		}
+		ClassNode cn = new ClassNode();
+		new ClassReader(bytes).accept(cn, FLAGS);
+		loads++;
+		cache(entry, cn);
+		return cn;
+	}
+
+	private void cache(Entry entry, ClassNode cn) {
+		entry.node = cn;
+		entry.cost = cost(cn);
+		entry.referenced = true;
+		used += entry.cost;
+		if (!entry.queued) {
+			entry.queued = true;
+			clock.offer(entry);
+		}
+		evict(entry);
+	}
+
+	private static int cost(ClassNode cn) {
+		int cost = CLASS_COST + MEMBER_COST * (cn.fields.size() + cn.methods.size());
+		for (int i = 0; i < cn.methods.size(); i++) {
+			cost += INSN_COST * cn.methods.get(i).instructions.size();
+		}
+		return cost;
+	}
+
+	/**
+	 * Evicts classes until the budget is met, keeping the given class.
+	 */
+	private void evict(Entry keep) {
+		Entry entry;
+		while (used > budget && clock.size() > 1 && (entry = clock.poll()) != null) {
+			if (entry.node == null) {
+				entry.queued = false;
+				continue;
+			}
+			if (entry == keep || entry.referenced) {
+				entry.referenced = false;
+				clock.offer(entry);
+				continue;
+			}
+			if (entry.dirty) spill(entry);
+			entry.node = null;
+			entry.queued = false;
+			used -= entry.cost;
+			evictions++;
+		}
+	}
+
+	private void spill(Entry entry) {
+		ClassWriter writer = new ClassWriter(0);
+		entry.node.accept(writer);
+		byte[] bytes = writer.toByteArray();
+		try {
+			if (spill == null) {
+				spillFile = File.createTempFile("sasm", ".spill");
+				spillFile.deleteOnExit();
+				spill = new RandomAccessFile(spillFile, "rw");
+			}
+			spill.seek(spillLength);
+			spill.write(bytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to spill " + entry.name, e);
+		}
+		entry.spillOffset = spillLength;
+		entry.spillSize = bytes.length;
+		entry.dirty = false;
+		spillLength += bytes.length;
+		spills++;
+	}
+
+	@Override
+	public synchronized Set<String> keySet() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(entries.keySet()));
+	}
+
+	/**
+	 * Gets a view of the classes of this cache. Iterating over it decodes the classes one at a time,
+	 * and setting the value of an entry puts the class into the cache.
+	 */
+	@Override
+	public Set<Map.Entry<String, ClassNode>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<String, ClassNode>>() {
+
+				@Override
+				public int size() {
+					return ClassCache.this.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, ClassNode>> iterator() {
+					final Iterator<String> names = keySet().iterator();
+					return new Iterator<Map.Entry<String, ClassNode>>() {
+
+						private String name;
+
+						@Override
+						public boolean hasNext() {
+							return names.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, ClassNode> next() {
+							final String name = this.name = names.next();
+							return new SimpleEntry<String, ClassNode>(name, null) {
+
+								@Override
+								public ClassNode getValue() {
+									return get(name);
+								}
+
+								@Override
+								public ClassNode setValue(ClassNode value) {
+									return put(name, value);
+								}
+							};
+						}
+
+						@Override
+						public void remove() {
+							if (name == null) throw new IllegalStateException();
+							ClassCache.this.remove(name);
+							name = null;
+						}
+					};
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Gets the estimated amount of bytes of the decoded classes.
+	 *
+	 * @return The estimated amount of bytes in use.
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Gets the estimated amount of bytes of decoded classes to keep.
+	 *
+	 * @return The memory budget.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Gets the amount of times a class was decoded from its source or from the spill file.
+	 *
+	 * @return The amount of loads.
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Gets the amount of classes evicted to stay within budget.
+	 *
+	 * @return The amount of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the amount of dirty classes written to the spill file.
+	 *
+	 * @return The amount of spills.
+	 */
+	public synchronized long getSpills() {
+		return spills;
+	}
+
+	/**
+	 * Closes and deletes the spill file. Spilled classes can no longer be decoded afterwards.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+			spillFile.delete();
+		}
+	}
+}
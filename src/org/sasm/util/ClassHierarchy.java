@@ -0,0 +1,476 @@
+package org.sasm.util;
+
+import org.sasm.ClassWriter;
+import org.sasm.Opcodes;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.MethodNode;
+
+import java.util.*;
+
+/**
+ * An index of the type hierarchy of a set of classes and the library classes
+ * they extend. Every type is given an int id; superclass relations are labelled
+ * with preorder intervals and interface relations with bitsets, so subtype
+ * checks run in constant time.
+ *
+ * The index reflects the classes at the time it was built.
+ *
+ * @author Tyler Sedlar
+ */
+public class ClassHierarchy {
+
+	private static final int[] EMPTY = new int[0];
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final String[] names;
+	private final ClassNode[] nodes;
+	private final LibraryClass[] libraries;
+	private final boolean[] interfaceTypes;
+	private final int[] superOf;
+	private final int[][] interfacesOf;
+	private final boolean[] complete;
+	private final int[][] subtypes;
+	private final int[] pre, end, order;
+	private final int[] interfaceIndex;
+	private final int words;
+	private final long[] interfaceBits;
+	private final int[][] implementors;
+	private final Map<String, Declarations> declarations = new HashMap<>();
+
+	private static class Declarations {
+
+		private int[] types = new int[2];
+		private MethodNode[] methods = new MethodNode[2];
+		private int size;
+
+		private void add(int type, MethodNode mn) {
+			if (size == types.length) {
+				types = Arrays.copyOf(types, size << 1);
+				methods = Arrays.copyOf(methods, size << 1);
+			}
+			types[size] = type;
+			methods[size++] = mn;
+		}
+	}
+
+	/**
+	 * Builds the hierarchy of the given classes and the library classes they extend.
+	 *
+	 * @param classes A map of classes to index. The classes are indexed by their own name.
+	 * @throws IllegalArgumentException If two of the classes have the same name.
+	 */
+	public ClassHierarchy(Map<String, ClassNode> classes) {
+		List<String> names = new ArrayList<>(classes.size());
+		List<ClassNode> indexed = new ArrayList<>(classes.values());
+		List<LibraryClass> libraries = new ArrayList<>();
+		for (ClassNode cn : indexed) {
+			if (ids.put(cn.name, names.size()) != null) throw new IllegalArgumentException("Duplicate class " + cn.name);
+			names.add(cn.name);
+		}
+		int classCount = indexed.size();
+		// pull in the library supertypes, in breadth first order
+		for (int i = 0; i < names.size(); i++) {
+			if (i < classCount) {
+				ClassNode cn = indexed.get(i);
+				addLibrary(cn.superName, names, libraries);
+				for (String iface : cn.interfaces) addLibrary(iface, names, libraries);
+			} else {
+				LibraryClass lc = libraries.get(i - classCount);
+				addLibrary(lc.superName, names, libraries);
+				for (String iface : lc.interfaces) addLibrary(iface, names, libraries);
+			}
+		}
+		int size = names.size();
+		this.names = names.toArray(new String[size]);
+		this.nodes = new ClassNode[size];
+		this.libraries = new LibraryClass[size];
+		this.interfaceTypes = new boolean[size];
+		this.superOf = new int[size];
+		this.interfacesOf = new int[size][];
+		this.complete = new boolean[size];
+		boolean[] resolved = new boolean[size];
+		int[] subtypeCount = new int[size];
+		int interfaces = 0;
+		for (int i = 0; i < size; i++) {
+			String superName;
+			List<String> supers;
+			int access;
+			if (i < classCount) {
+				ClassNode cn = nodes[i] = indexed.get(i);
+				superName = cn.superName;
+				supers = cn.interfaces;
+				access = cn.access;
+			} else {
+				LibraryClass lc = this.libraries[i] = libraries.get(i - classCount);
+				superName = lc.superName;
+				supers = Arrays.asList(lc.interfaces);
+				access = lc.access;
+			}
+			interfaceTypes[i] = (access & Opcodes.ACC_INTERFACE) != 0;
+			if (interfaceTypes[i]) interfaces++;
+			superOf[i] = superName == null ? -1 : getId(superName);
+			if (superOf[i] != -1) subtypeCount[superOf[i]]++;
+			int[] direct = new int[supers.size()];
+			int count = 0;
+			for (String iface : supers) {
+				int id = getId(iface);
+				if (id != -1) {
+					direct[count++] = id;
+					subtypeCount[id]++;
+				}
+			}
+			interfacesOf[i] = count == 0 ? EMPTY : Arrays.copyOf(direct, count);
+			resolved[i] = (superName == null || superOf[i] != -1) && count == supers.size();
+		}
+		byte[] completeState = new byte[size];
+		for (int i = 0; i < size; i++) collectComplete(i, resolved, completeState);
+		this.subtypes = new int[size][];
+		for (int i = 0; i < size; i++) {
+			subtypes[i] = subtypeCount[i] == 0 ? EMPTY : new int[subtypeCount[i]];
+			subtypeCount[i] = 0;
+		}
+		for (int i = 0; i < size; i++) {
+			if (superOf[i] != -1) subtypes[superOf[i]][subtypeCount[superOf[i]]++] = i;
+			for (int iface : interfacesOf[i]) subtypes[iface][subtypeCount[iface]++] = i;
+		}
+		this.pre = new int[size];
+		this.end = new int[size];
+		this.order = new int[size];
+		label();
+		this.interfaceIndex = new int[size];
+		Arrays.fill(interfaceIndex, -1);
+		int[] interfaceIds = new int[interfaces];
+		interfaces = 0;
+		for (int i = 0; i < size; i++) {
+			if (interfaceTypes[i]) {
+				interfaceIds[interfaces] = i;
+				interfaceIndex[i] = interfaces++;
+			}
+		}
+		this.words = (interfaces + 63) >>> 6;
+		this.interfaceBits = new long[size * words];
+		byte[] state = new byte[size];
+		for (int i = 0; i < size; i++) collectInterfaces(i, state);
+		this.implementors = new int[interfaces][];
+		int[] buffer = new int[size];
+		for (int j = 0; j < interfaces; j++) {
+			int count = 0;
+			int word = j >>> 6;
+			long mask = 1L << j;
+			for (int i = 0; i < size; i++) {
+				if (i != interfaceIds[j] && (interfaceBits[i * words + word] & mask) != 0) buffer[count++] = i;
+			}
+			implementors[j] = Arrays.copyOf(buffer, count);
+		}
+		for (int index = 0; index < size; index++) {
+			int i = order[index];
+			if (nodes[i] == null) continue;
+			for (MethodNode mn : nodes[i].methods) {
+				if ((mn.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) != 0 || mn.name.charAt(0) == '<') {
+					continue;
+				}
+				String key = mn.name + mn.desc;
+				Declarations decls = declarations.get(key);
+				if (decls == null) declarations.put(key, decls = new Declarations());
+				decls.add(i, mn);
+			}
+		}
+	}
+
+	private void addLibrary(String name, List<String> names, List<LibraryClass> libraries) {
+		if (name == null || ids.containsKey(name)) return;
+		LibraryClass lc = LibraryClass.get(name);
+		if (lc == null) return;
+		ids.put(name, names.size());
+		names.add(name);
+		libraries.add(lc);
+	}
+
+	private void label() {
+		int size = names.length;
+		boolean[] visited = new boolean[size];
+		int[] stack = new int[size];
+		int[] child = new int[size];
+		int counter = 0;
+		// roots first; anything left over afterwards sits on a superclass cycle
+		for (int pass = 0; pass < 2; pass++) {
+			for (int root = 0; root < size; root++) {
+				if (visited[root] || (pass == 0 && superOf[root] != -1)) continue;
+				int depth = 0;
+				stack[0] = root;
+				child[0] = 0;
+				visited[root] = true;
+				order[counter] = root;
+				pre[root] = counter++;
+				while (depth >= 0) {
+					int type = stack[depth];
+					int[] subs = subtypes[type];
+					int next = -1;
+					while (child[depth] < subs.length) {
+						int sub = subs[child[depth]++];
+						if (superOf[sub] == type && !visited[sub]) {
+							next = sub;
+							break;
+						}
+					}
+					if (next == -1) {
+						end[type] = counter;
+						depth--;
+					} else {
+						visited[next] = true;
+						order[counter] = next;
+						pre[next] = counter++;
+						stack[++depth] = next;
+						child[depth] = 0;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the types whose supertypes are all part of this hierarchy. Types on a cycle are not complete.
+	 */
+	private boolean collectComplete(int type, boolean[] resolved, byte[] state) {
+		if (state[type] != 0) return complete[type];
+		state[type] = 1;
+		boolean result = resolved[type] && (superOf[type] == -1 || collectComplete(superOf[type], resolved, state));
+		for (int iface : interfacesOf[type]) {
+			if (!result) break;
+			result = collectComplete(iface, resolved, state);
+		}
+		complete[type] = result;
+		state[type] = 2;
+		return result;
+	}
+
+	private void collectInterfaces(int type, byte[] state) {
+		if (state[type] != 0) return;
+		state[type] = 1;
+		int offset = type * words;
+		if (interfaceTypes[type]) {
+			int index = interfaceIndex[type];
+			interfaceBits[offset + (index >>> 6)] |= 1L << index;
+		}
+		if (superOf[type] != -1) merge(type, superOf[type], state);
+		for (int iface : interfacesOf[type]) merge(type, iface, state);
+		state[type] = 2;
+	}
+
+	private void merge(int type, int parent, byte[] state) {
+		collectInterfaces(parent, state);
+		int offset = type * words, parentOffset = parent * words;
+		for (int w = 0; w < words; w++) interfaceBits[offset + w] |= interfaceBits[parentOffset + w];
+	}
+
+	/**
+	 * Gets the amount of types in this hierarchy.
+	 *
+	 * @return The amount of types in this hierarchy.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Gets the id of the given type.
+	 *
+	 * @param name The internal name of the type.
+	 * @return The id of the given type, or -1 if it is not part of this hierarchy.
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Gets the internal name of the type with the given id.
+	 *
+	 * @param id The id of the type.
+	 * @return The internal name of the type.
+	 */
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/**
+	 * Gets the class node of the type with the given id.
+	 *
+	 * @param id The id of the type.
+	 * @return The class node of the type, or <tt>null</tt> if it is a library class.
+	 */
+	public ClassNode getNode(int id) {
+		return nodes[id];
+	}
+
+	/**
+	 * Gets the library descriptor of the type with the given id.
+	 *
+	 * @param id The id of the type.
+	 * @return The library descriptor of the type, or <tt>null</tt> if it is one of the indexed classes.
+	 */
+	public LibraryClass getLibrary(int id) {
+		return libraries[id];
+	}
+
+	/**
+	 * Checks whether the type with the given id is an interface.
+	 *
+	 * @param id The id of the type.
+	 * @return <t>true</t> if the type is an interface, otherwise <t>false</t>.
+	 */
+	public boolean isInterface(int id) {
+		return interfaceTypes[id];
+	}
+
+	/**
+	 * Gets the superclass of the type with the given id.
+	 *
+	 * @param id The id of the type.
+	 * @return The id of the superclass, or -1 if it has none or it is not part of this hierarchy.
+	 */
+	public int getSuperclass(int id) {
+		return superOf[id];
+	}
+
+	/**
+	 * Gets the interfaces that the type with the given id directly implements.
+	 *
+	 * @param id The id of the type.
+	 * @return The ids of the direct interfaces that are part of this hierarchy.
+	 */
+	public int[] getInterfaces(int id) {
+		return interfacesOf[id];
+	}
+
+	/**
+	 * Gets the types that directly extend or implement the type with the given id.
+	 *
+	 * @param id The id of the type.
+	 * @return The ids of the direct subtypes.
+	 */
+	public int[] getSubtypes(int id) {
+		return subtypes[id];
+	}
+
+	/**
+	 * Checks whether one type is a subtype of, or the same as, another.
+	 *
+	 * @param type The id of the possible subtype.
+	 * @param parent The id of the possible supertype.
+	 * @return <t>true</t> if type is assignable to parent, otherwise <t>false</t>.
+	 */
+	public boolean isSubtype(int type, int parent) {
+		if (type == parent) return true;
+		if (interfaceTypes[parent]) {
+			int index = interfaceIndex[parent];
+			return (interfaceBits[type * words + (index >>> 6)] & (1L << index)) != 0;
+		}
+		return pre[parent] <= pre[type] && pre[type] < end[parent];
+	}
+
+	/**
+	 * Checks whether one type is a subtype of, or the same as, another.
+	 *
+	 * @param type The internal name of the possible subtype.
+	 * @param parent The internal name of the possible supertype.
+	 * @return <t>true</t> if type is assignable to parent, otherwise <t>false</t>.
+	 */
+	public boolean isSubtype(String type, String parent) {
+		if (type.equals(parent) || parent.equals("java/lang/Object")) return true;
+		int typeId = getId(type), parentId = getId(parent);
+		return typeId != -1 && parentId != -1 && isSubtype(typeId, parentId);
+	}
+
+	/**
+	 * Gets the closest common superclass of two types, the same way that
+	 * {@link ClassWriter#getCommonSuperClass(String, String)} does.
+	 *
+	 * @param type1 The internal name of a type.
+	 * @param type2 The internal name of another type.
+	 * @return The internal name of the common superclass, or <tt>null</tt> if either type is not part of this hierarchy
+	 * or has supertypes outside of it.
+	 */
+	public String getCommonSuperClass(String type1, String type2) {
+		int a = getId(type1), b = getId(type2);
+		if (a == -1 || b == -1) return null;
+		if (isSubtype(b, a)) return type1;
+		if (isSubtype(a, b)) return type2;
+		// a supertype outside the hierarchy may still relate the two types
+		if (!complete[a] || !complete[b]) return null;
+		if (interfaceTypes[a] || interfaceTypes[b]) return "java/lang/Object";
+		for (int type = superOf[a]; type != -1; type = superOf[type]) {
+			if (pre[type] <= pre[b] && pre[b] < end[type]) return names[type];
+		}
+		return "java/lang/Object";
+	}
+
+	/**
+	 * Gets every indexed method that overrides the given method, i.e. every
+	 * non-static, non-private method with the same name and descriptor that is
+	 * declared by a proper subtype of the owner.
+	 *
+	 * @param owner The internal name of the method owner.
+	 * @param name The name of the method.
+	 * @param desc The descriptor of the method.
+	 * @return The overriding methods, in superclass tree preorder.
+	 */
+	public List<MethodNode> getOverriders(String owner, String name, String desc) {
+		int id = getId(owner);
+		Declarations decls = declarations.get(name + desc);
+		if (id == -1 || decls == null) return Collections.emptyList();
+		List<MethodNode> overriders = new ArrayList<>();
+		if (interfaceTypes[id] && implementors[interfaceIndex[id]].length < decls.size) {
+			int[] implementors = this.implementors[interfaceIndex[id]];
+			int[] matches = new int[implementors.length];
+			int count = 0;
+			for (int type : implementors) {
+				int index = lowerBound(decls, pre[type]);
+				if (index < decls.size && decls.types[index] == type) matches[count++] = index;
+			}
+			Arrays.sort(matches, 0, count);
+			for (int i = 0; i < count; i++) overriders.add(decls.methods[matches[i]]);
+		} else if (interfaceTypes[id]) {
+			for (int i = 0; i < decls.size; i++) {
+				if (decls.types[i] != id && isSubtype(decls.types[i], id)) overriders.add(decls.methods[i]);
+			}
+		} else {
+			// declarations are kept in preorder, so the subclasses of the owner form one range
+			int low = lowerBound(decls, pre[id] + 1);
+			for (int i = low; i < decls.size && pre[decls.types[i]] < end[id]; i++) {
+				overriders.add(decls.methods[i]);
+			}
+		}
+		return overriders;
+	}
+
+	private int lowerBound(Declarations decls, int position) {
+		int low = 0, high = decls.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (pre[decls.types[mid]] < position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Creates a ClassWriter that computes common superclasses from this hierarchy,
+	 * falling back to loading the classes for types it does not know.
+	 *
+	 * @param flags The ClassWriter flags.
+	 * @return A ClassWriter backed by this hierarchy.
+	 */
+	public ClassWriter newClassWriter(int flags) {
+		return new ClassWriter(flags) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				String common = ClassHierarchy.this.getCommonSuperClass(type1, type2);
+				return common != null ? common : super.getCommonSuperClass(type1, type2);
+			}
+		};
+	}
+}
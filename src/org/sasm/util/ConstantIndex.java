@@ -0,0 +1,347 @@
+package org.sasm.util;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.*;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * An index of the string and numeric constants loaded within a set of classes. Strings are held in a
+ * trie, and in a second trie of the reversed strings, so exact, prefix and suffix lookups never scan the
+ * jar. Other operators test each distinct string once rather than every instruction. Numbers are hashed
+ * by value. The index reflects the classes at the time it was built.
+ *
+ * @author Tyler Sedlar
+ */
+public class ConstantIndex {
+
+	private static final int PARALLEL_LEAF = 64;
+
+	private final Map<String, List<Site>> strings;
+	private final Map<Long, List<Site>> integers;
+	private final Map<Double, List<Site>> decimals;
+	private final String[] distinct;
+	private final Trie prefixes = new Trie(), suffixes = new Trie();
+
+	/**
+	 * An instruction loading a constant.
+	 */
+	public static final class Site {
+
+		public final ClassNode owner;
+		public final MethodNode method;
+		public final AbstractInsnNode insn;
+		public final Object value;
+
+		private Site(ClassNode owner, MethodNode method, AbstractInsnNode insn, Object value) {
+			this.owner = owner;
+			this.method = method;
+			this.insn = insn;
+			this.value = value;
+		}
+
+		@Override
+		public String toString() {
+			return owner.name + "." + method.name + method.desc + " -> " + value;
+		}
+	}
+
+	/**
+	 * Creates an index of the constants within the given classes, built on a shared pool.
+	 *
+	 * @param classes A map of classes to index.
+	 */
+	public ConstantIndex(Map<String, ClassNode> classes) {
+		this(classes, InsnSearcher.getPool());
+	}
+
+	/**
+	 * Creates an index of the constants within the given classes, built on the given pool. The classes
+	 * must not be modified while the index is built.
+	 *
+	 * @param classes A map of classes to index.
+	 * @param pool The pool to build on.
+	 */
+	public ConstantIndex(Map<String, ClassNode> classes, ForkJoinPool pool) {
+		List<String> names = new ArrayList<>(classes.keySet());
+		Collections.sort(names);
+		List<ClassNode> owners = new ArrayList<>();
+		List<MethodNode> methods = new ArrayList<>();
+		for (String name : names) {
+			ClassNode cn = classes.get(name);
+			for (MethodNode mn : cn.methods) {
+				owners.add(cn);
+				methods.add(mn);
+			}
+		}
+		Tables tables = pool.invoke(new BuildTask(owners.toArray(new ClassNode[owners.size()]),
+				methods.toArray(new MethodNode[methods.size()]), 0, methods.size()));
+		this.strings = tables.strings;
+		this.integers = tables.integers;
+		this.decimals = tables.decimals;
+		this.distinct = strings.keySet().toArray(new String[strings.size()]);
+		Arrays.sort(distinct);
+		for (String string : distinct) {
+			List<Site> sites = strings.get(string);
+			prefixes.put(string, sites);
+			suffixes.put(new StringBuilder(string).reverse().toString(), sites);
+		}
+	}
+
+	private static final class Tables {
+
+		private final Map<String, List<Site>> strings = new HashMap<>();
+		private final Map<Long, List<Site>> integers = new HashMap<>();
+		private final Map<Double, List<Site>> decimals = new HashMap<>();
+
+		private static <K> void add(Map<K, List<Site>> table, K key, Site site) {
+			List<Site> sites = table.get(key);
+			if (sites == null) table.put(key, sites = new ArrayList<>(2));
+			sites.add(site);
+		}
+
+		private static <K> void merge(Map<K, List<Site>> table, Map<K, List<Site>> other) {
+			for (Map.Entry<K, List<Site>> entry : other.entrySet()) {
+				List<Site> sites = table.get(entry.getKey());
+				if (sites == null) {
+					table.put(entry.getKey(), entry.getValue());
+				} else {
+					sites.addAll(entry.getValue());
+				}
+			}
+		}
+
+		private void index(ClassNode cn, MethodNode mn) {
+			for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+				Object value = valueOf(ain);
+				if (value == null) continue;
+				Site site = new Site(cn, mn, ain, value);
+				if (value instanceof String) {
+					add(strings, (String) value, site);
+				} else if (value instanceof Integer || value instanceof Long) {
+					add(integers, ((Number) value).longValue(), site);
+				} else {
+					add(decimals, ((Number) value).doubleValue(), site);
+				}
+			}
+		}
+
+		private Tables merge(Tables other) {
+			merge(strings, other.strings);
+			merge(integers, other.integers);
+			merge(decimals, other.decimals);
+			return this;
+		}
+	}
+
+	/**
+	 * Gets the constant loaded by the given instruction.
+	 *
+	 * @param ain The instruction to get the constant of.
+	 * @return The String, Integer, Long, Float or Double loaded, or <tt>null</tt> if the instruction loads no such constant.
+	 */
+	public static Object valueOf(AbstractInsnNode ain) {
+		int opcode = ain.getOpcode();
+		if (ain instanceof LdcInsnNode) {
+			Object cst = ((LdcInsnNode) ain).cst;
+			return cst instanceof String || cst instanceof Number ? cst : null;
+		} else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+			return ((IntInsnNode) ain).operand;
+		} else if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+			return opcode - Opcodes.ICONST_0;
+		} else if (opcode == Opcodes.LCONST_0 || opcode == Opcodes.LCONST_1) {
+			return (long) (opcode - Opcodes.LCONST_0);
+		} else if (opcode >= Opcodes.FCONST_0 && opcode <= Opcodes.FCONST_2) {
+			return (float) (opcode - Opcodes.FCONST_0);
+		} else if (opcode == Opcodes.DCONST_0 || opcode == Opcodes.DCONST_1) {
+			return (double) (opcode - Opcodes.DCONST_0);
+		}
+		return null;
+	}
+
+	private static class BuildTask extends RecursiveTask<Tables> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ClassNode[] owners;
+		private final MethodNode[] methods;
+		private final int from, to;
+
+		private BuildTask(ClassNode[] owners, MethodNode[] methods, int from, int to) {
+			this.owners = owners;
+			this.methods = methods;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Tables compute() {
+			if (to - from > PARALLEL_LEAF) {
+				int mid = (from + to) >>> 1;
+				BuildTask left = new BuildTask(owners, methods, from, mid);
+				BuildTask right = new BuildTask(owners, methods, mid, to);
+				right.fork();
+				Tables tables = left.compute();
+				// merging right into left keeps the sites in method order
+				return tables.merge(right.join());
+			}
+			Tables tables = new Tables();
+			for (int i = from; i < to; i++) tables.index(owners[i], methods[i]);
+			return tables;
+		}
+	}
+
+	private static final class Trie {
+
+		private char[] keys = new char[0];
+		private Trie[] children = new Trie[0];
+		private List<Site> sites;
+
+		private void put(String string, List<Site> sites) {
+			Trie node = this;
+			for (int i = 0; i < string.length(); i++) {
+				char c = string.charAt(i);
+				int index = Arrays.binarySearch(node.keys, c);
+				if (index < 0) {
+					index = -index - 1;
+					char[] keys = new char[node.keys.length + 1];
+					Trie[] children = new Trie[keys.length];
+					System.arraycopy(node.keys, 0, keys, 0, index);
+					System.arraycopy(node.children, 0, children, 0, index);
+					System.arraycopy(node.keys, index, keys, index + 1, node.keys.length - index);
+					System.arraycopy(node.children, index, children, index + 1, node.keys.length - index);
+					keys[index] = c;
+					children[index] = new Trie();
+					node.keys = keys;
+					node.children = children;
+				}
+				node = node.children[index];
+			}
+			node.sites = sites;
+		}
+
+		private Trie find(String prefix) {
+			Trie node = this;
+			for (int i = 0; i < prefix.length() && node != null; i++) {
+				int index = Arrays.binarySearch(node.keys, prefix.charAt(i));
+				node = index < 0 ? null : node.children[index];
+			}
+			return node;
+		}
+
+		private void collect(List<Site> out) {
+			// iterative, as a node is as deep as its string is long
+			Deque<Trie> stack = new ArrayDeque<>();
+			stack.push(this);
+			while (!stack.isEmpty()) {
+				Trie node = stack.pop();
+				if (node.sites != null) out.addAll(node.sites);
+				for (int i = node.children.length - 1; i >= 0; i--) stack.push(node.children[i]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the amount of distinct strings loaded.
+	 *
+	 * @return The amount of distinct strings loaded.
+	 */
+	public int distinctStrings() {
+		return distinct.length;
+	}
+
+	/**
+	 * Gets the instructions loading a string matching the given matcher.
+	 *
+	 * @param matcher The matcher to test strings with (uses Stringer).
+	 * @return A List of the matching instructions, ordered by string, then by class name and method order.
+	 */
+	public List<Site> getStrings(String matcher) {
+		List<Site> found = new ArrayList<>();
+		if (matcher.isEmpty()) {
+			List<Site> sites = strings.get("");
+			if (sites != null) found.addAll(sites);
+			return found;
+		}
+		String subbed = matcher.substring(1);
+		switch (matcher.charAt(0)) {
+			case '^': {
+				Trie node = prefixes.find(subbed);
+				if (node != null) node.collect(found);
+				return found;
+			}
+			case '$': {
+				Trie node = suffixes.find(new StringBuilder(subbed).reverse().toString());
+				if (node == null) return found;
+				List<Site> reversed = new ArrayList<>();
+				node.collect(reversed);
+				// the reversed trie yields strings out of order, so group them by their string again
+				Map<String, List<Site>> grouped = new TreeMap<>();
+				for (Site site : reversed) {
+					String string = (String) site.value;
+					if (!grouped.containsKey(string)) grouped.put(string, strings.get(string));
+				}
+				for (List<Site> sites : grouped.values()) found.addAll(sites);
+				return found;
+			}
+			case '*':
+			case '|':
+			case '!':
+			case '~': {
+				Stringer.Matcher compiled = Stringer.compile(matcher);
+				for (String string : distinct) {
+					if (compiled.matches(string)) found.addAll(strings.get(string));
+				}
+				return found;
+			}
+			default: {
+				List<Site> sites = strings.get(matcher);
+				if (sites != null) found.addAll(sites);
+				return found;
+			}
+		}
+	}
+
+	/**
+	 * Gets the instructions loading the given int or long value, whether through ldc, bipush, sipush or
+	 * a constant instruction.
+	 *
+	 * @param value The value to look up.
+	 * @return A List of the instructions loading the value, ordered by class name and method order.
+	 */
+	public List<Site> getNumbers(long value) {
+		List<Site> sites = integers.get(value);
+		return sites == null ? new ArrayList<Site>() : new ArrayList<>(sites);
+	}
+
+	/**
+	 * Gets the instructions loading the given float or double value.
+	 *
+	 * @param value The value to look up.
+	 * @return A List of the instructions loading the value, ordered by class name and method order.
+	 */
+	public List<Site> getNumbers(double value) {
+		List<Site> sites = decimals.get(value);
+		return sites == null ? new ArrayList<Site>() : new ArrayList<>(sites);
+	}
+
+	/**
+	 * Gets the instructions loading an int or long value within the given range.
+	 *
+	 * @param min The smallest value, inclusive.
+	 * @param max The largest value, inclusive.
+	 * @return A List of the instructions loading a value within the range, ordered by value.
+	 */
+	public List<Site> getNumbers(long min, long max) {
+		List<Long> values = new ArrayList<>();
+		for (Long value : integers.keySet()) {
+			if (value >= min && value <= max) values.add(value);
+		}
+		Collections.sort(values);
+		List<Site> found = new ArrayList<>();
+		for (Long value : values) found.addAll(integers.get(value));
+		return found;
+	}
+}
@@ -0,0 +1,101 @@
+package org.sasm.util;
+
+import org.sasm.tree.AbstractInsnNode;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A match of an {@link InsnPattern}, holding one instruction per step. A single
+ * instance is reused for every match reported to an {@link InsnMatchHandler}.
+ *
+ * @author Tyler Sedlar
+ */
+public final class InsnMatch {
+
+	final AbstractInsnNode[] insns;
+	private ClassNode cn;
+	private MethodNode mn;
+
+	InsnMatch(int size) {
+		this.insns = new AbstractInsnNode[size];
+	}
+
+	void set(ClassNode cn, MethodNode mn) {
+		this.cn = cn;
+		this.mn = mn;
+	}
+
+	/**
+	 * Gets the class the match was found in.
+	 *
+	 * @return The class the match was found in, or <tt>null</tt> if a single method was searched.
+	 */
+	public ClassNode getClassNode() {
+		return cn;
+	}
+
+	/**
+	 * Gets the method the match was found in.
+	 *
+	 * @return The method the match was found in.
+	 */
+	public MethodNode getMethod() {
+		return mn;
+	}
+
+	/**
+	 * Gets the amount of matched instructions, one per pattern step.
+	 *
+	 * @return The amount of matched instructions.
+	 */
+	public int size() {
+		return insns.length;
+	}
+
+	/**
+	 * Gets the instruction matched by the given step.
+	 *
+	 * @param step The index of the step.
+	 * @return The instruction matched by the given step.
+	 */
+	public AbstractInsnNode get(int step) {
+		return insns[step];
+	}
+
+	/**
+	 * Gets the instruction matched by the first step.
+	 *
+	 * @return The first matched instruction.
+	 */
+	public AbstractInsnNode getFirst() {
+		return insns[0];
+	}
+
+	/**
+	 * Gets the instruction matched by the last step.
+	 *
+	 * @return The last matched instruction.
+	 */
+	public AbstractInsnNode getLast() {
+		return insns[insns.length - 1];
+	}
+
+	/**
+	 * Copies the matched instructions into a new list.
+	 *
+	 * @return A List of the matched instructions.
+	 */
+	public List<AbstractInsnNode> toList() {
+		return new ArrayList<>(Arrays.asList(insns));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[method=%s,insns=%s]", getClass().getSimpleName(),
+				mn == null ? null : (cn == null ? "" : cn.name + ".") + mn.name + mn.desc, Arrays.toString(insns));
+	}
+}
@@ -0,0 +1,18 @@
+package org.sasm.util;
+
+/**
+ * Receives the matches of an {@link InsnPattern} as they are found.
+ *
+ * @author Tyler Sedlar
+ */
+public interface InsnMatchHandler {
+
+	/**
+	 * Called for every match. The match object is reused for the next match, so
+	 * anything that has to outlive this call should be copied out of it.
+	 *
+	 * @param match The current match.
+	 * @return <t>true</t> to continue searching, <t>false</t> to stop.
+	 */
+	boolean onMatch(InsnMatch match);
+}
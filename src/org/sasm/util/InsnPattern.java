@@ -0,0 +1,317 @@
+package org.sasm.util;
+
+import org.sasm.tree.AbstractInsnNode;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.MethodNode;
+import org.sasm.tree.OpcodeSummary;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compiled pattern ("getfield[desc=I]", "imul") made up of a sequence of
+ * {@link InsnSelector} steps. Patterns are immutable and may be shared between threads.
+ *
+ * @author Tyler Sedlar
+ */
+public final class InsnPattern {
+
+	private static final int PARALLEL_CHUNK = 64, PARALLEL_LEAF = 8;
+
+	private final InsnSelector[] steps;
+
+	InsnPattern(InsnSelector[] steps) {
+		this.steps = steps;
+	}
+
+	/**
+	 * Gets the amount of steps in this pattern.
+	 *
+	 * @return The amount of steps in this pattern.
+	 */
+	public int size() {
+		return steps.length;
+	}
+
+	/**
+	 * Gets the selector for the given step.
+	 *
+	 * @param index The index of the step.
+	 * @return The selector for the given step.
+	 */
+	public InsnSelector getStep(int index) {
+		return steps[index];
+	}
+
+	/**
+	 * Searches for this pattern inside of the given method. The first step must
+	 * match the starting instruction; each following step matches the nearest
+	 * instruction within its dist of the previous match.
+	 *
+	 * @param mn The method to search within.
+	 * @return A List of instructions that matches this pattern, or <tt>null</tt> if there is no match.
+	 */
+	public List<AbstractInsnNode> search(MethodNode mn) {
+		if (!mayMatch(mn)) return null;
+		AbstractInsnNode[] matched = new AbstractInsnNode[steps.length];
+		for (AbstractInsnNode start = mn.instructions.getFirst(); start != null; start = start.getNext()) {
+			if (chain(start, matched)) return new ArrayList<>(Arrays.asList(matched));
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether the given method could contain a match of this pattern, using
+	 * only its opcode summary.
+	 *
+	 * @param mn The method to check.
+	 * @return <t>false</t> if the method cannot contain a match, otherwise <t>true</t>.
+	 */
+	public boolean mayMatch(MethodNode mn) {
+		if (steps.length == 0) return false;
+		OpcodeSummary summary = mn.instructions.getSummary();
+		for (InsnSelector step : steps) {
+			if (!step.mayMatch(summary)) return false;
+		}
+		return true;
+	}
+
+	private boolean chain(AbstractInsnNode start, AbstractInsnNode[] matched) {
+		if (!steps[0].matches(start)) return false;
+		matched[0] = start;
+		for (int i = 1; i < steps.length; i++) {
+			if ((matched[i] = steps[i].next(matched[i - 1])) == null) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds every match of this pattern inside of the given method. A match may be
+	 * edited from within the handler, but instructions after it must be left alone.
+	 *
+	 * @param mn The method to search within.
+	 * @param overlapping <t>true</t> to resume after the first instruction of each match, <t>false</t> to resume after the last.
+	 * @param handler The handler to report matches to.
+	 * @return The amount of matches reported.
+	 */
+	public int findAll(MethodNode mn, boolean overlapping, InsnMatchHandler handler) {
+		return Math.abs(findAll(null, mn, overlapping, handler, new InsnMatch(steps.length)));
+	}
+
+	/**
+	 * Finds every match of this pattern inside of the given class, method by method.
+	 *
+	 * @param cn The class to search within.
+	 * @param overlapping <t>true</t> to resume after the first instruction of each match, <t>false</t> to resume after the last.
+	 * @param handler The handler to report matches to.
+	 * @return The amount of matches reported.
+	 */
+	public int findAll(ClassNode cn, boolean overlapping, InsnMatchHandler handler) {
+		return Math.abs(findAll(cn, overlapping, handler, new InsnMatch(steps.length)));
+	}
+
+	/**
+	 * Finds every match of this pattern inside of the given classes, in order of class name.
+	 *
+	 * @param classes A map of classes to search within.
+	 * @param overlapping <t>true</t> to resume after the first instruction of each match, <t>false</t> to resume after the last.
+	 * @param handler The handler to report matches to.
+	 * @return The amount of matches reported.
+	 */
+	public int findAll(Map<String, ClassNode> classes, boolean overlapping, InsnMatchHandler handler) {
+		InsnMatch match = new InsnMatch(steps.length);
+		List<String> names = new ArrayList<>(classes.keySet());
+		Collections.sort(names);
+		int count = 0;
+		for (String name : names) {
+			int found = findAll(classes.get(name), overlapping, handler, match);
+			count += Math.abs(found);
+			if (found < 0) break;
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the matches of this pattern inside of the given classes in parallel.
+	 * Methods are searched on the given pool in ordered chunks, and matches are
+	 * reported on the calling thread in order of class name, then method order,
+	 * the same as {@link #findAll(Map, boolean, InsnMatchHandler)}. The classes
+	 * must not be modified while the search runs.
+	 *
+	 * @param classes A map of classes to search within.
+	 * @param overlapping <t>true</t> to resume after the first instruction of each match, <t>false</t> to resume after the last.
+	 * @param limit The maximum amount of matches to report, or 0 for no limit.
+	 * @param pool The pool to search on.
+	 * @param handler The handler to report matches to.
+	 * @return The amount of matches reported.
+	 */
+	public int findAll(Map<String, ClassNode> classes, boolean overlapping, int limit, ForkJoinPool pool,
+	                   InsnMatchHandler handler) {
+		if (limit <= 0) limit = Integer.MAX_VALUE;
+		List<String> names = new ArrayList<>(classes.keySet());
+		Collections.sort(names);
+		int total = 0;
+		for (ClassNode cn : classes.values()) total += cn.methods.size();
+		ClassNode[] owners = new ClassNode[total];
+		MethodNode[] methods = new MethodNode[total];
+		int index = 0;
+		for (String name : names) {
+			ClassNode cn = classes.get(name);
+			for (MethodNode mn : cn.methods) {
+				owners[index] = cn;
+				methods[index++] = mn;
+			}
+		}
+		InsnMatch match = new InsnMatch(steps.length);
+		int reported = 0;
+		// chunks start small so that a low limit is met quickly, then grow to amortize the fork overhead
+		int chunk = PARALLEL_CHUNK;
+		for (int from = 0; from < total; from += chunk, chunk = Math.min(chunk << 1, PARALLEL_CHUNK << 6)) {
+			int to = Math.min(total, from + chunk);
+			List<AbstractInsnNode[]>[] results = pool.invoke(new SearchTask(methods, from, to, overlapping,
+					limit - reported, new AtomicInteger(to)));
+			for (int i = from; i < to; i++) {
+				List<AbstractInsnNode[]> found = results[i - from];
+				if (found == null) continue;
+				for (AbstractInsnNode[] insns : found) {
+					System.arraycopy(insns, 0, match.insns, 0, insns.length);
+					match.set(owners[i], methods[i]);
+					reported++;
+					if (!handler.onMatch(match) || reported == limit) return reported;
+				}
+			}
+		}
+		return reported;
+	}
+
+	private List<AbstractInsnNode[]> collect(MethodNode mn, boolean overlapping, final int limit) {
+		final List<AbstractInsnNode[]> found = new ArrayList<>();
+		findAll(null, mn, overlapping, new InsnMatchHandler() {
+			public boolean onMatch(InsnMatch match) {
+				found.add(match.insns.clone());
+				return found.size() < limit;
+			}
+		}, new InsnMatch(steps.length));
+		return found;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<AbstractInsnNode[]>[] newResults(int length) {
+		return (List<AbstractInsnNode[]>[]) new List<?>[length];
+	}
+
+	private class SearchTask extends RecursiveTask<List<AbstractInsnNode[]>[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MethodNode[] methods;
+		private final int from, to;
+		private final boolean overlapping;
+		private final int limit;
+		private final AtomicInteger cutoff;
+		private final List<AbstractInsnNode[]>[] results;
+		private final int base;
+
+		private SearchTask(MethodNode[] methods, int from, int to, boolean overlapping, int limit,
+		                   AtomicInteger cutoff) {
+			this(methods, from, to, overlapping, limit, cutoff, newResults(to - from), from);
+		}
+
+		private SearchTask(MethodNode[] methods, int from, int to, boolean overlapping, int limit,
+		                   AtomicInteger cutoff, List<AbstractInsnNode[]>[] results, int base) {
+			this.methods = methods;
+			this.from = from;
+			this.to = to;
+			this.overlapping = overlapping;
+			this.limit = limit;
+			this.cutoff = cutoff;
+			this.results = results;
+			this.base = base;
+		}
+
+		@Override
+		protected List<AbstractInsnNode[]>[] compute() {
+			if (to - from > PARALLEL_LEAF) {
+				int mid = (from + to) >>> 1;
+				SearchTask left = new SearchTask(methods, from, mid, overlapping, limit, cutoff, results, base);
+				SearchTask right = new SearchTask(methods, mid, to, overlapping, limit, cutoff, results, base);
+				right.fork();
+				left.compute();
+				right.join();
+				return results;
+			}
+			for (int i = from; i < to; i++) {
+				// a single method already holding enough matches makes everything after it irrelevant
+				if (i > cutoff.get()) break;
+				List<AbstractInsnNode[]> found = collect(methods[i], overlapping, limit);
+				if (found.isEmpty()) continue;
+				results[i - base] = found;
+				if (found.size() >= limit) {
+					int current;
+					while (i < (current = cutoff.get()) && !cutoff.compareAndSet(current, i)) ;
+				}
+			}
+			return results;
+		}
+	}
+
+	// counts are negated once the handler asks to stop
+	private int findAll(ClassNode cn, boolean overlapping, InsnMatchHandler handler, InsnMatch match) {
+		int count = 0;
+		for (MethodNode mn : cn.methods) {
+			int found = findAll(cn, mn, overlapping, handler, match);
+			count += Math.abs(found);
+			if (found < 0) return -count;
+		}
+		return count;
+	}
+
+	private int findAll(ClassNode cn, MethodNode mn, boolean overlapping, InsnMatchHandler handler, InsnMatch match) {
+		if (!mayMatch(mn)) return 0;
+		AbstractInsnNode[] matched = match.insns;
+		int count = 0;
+		AbstractInsnNode start = mn.instructions.getFirst();
+		while (start != null) {
+			if (!chain(start, matched)) {
+				start = start.getNext();
+				continue;
+			}
+			AbstractInsnNode resume = overlapping ? start.getNext() : matched[matched.length - 1].getNext();
+			count++;
+			match.set(cn, mn);
+			if (!handler.onMatch(match)) return -count;
+			start = resume;
+		}
+		return count;
+	}
+
+	/**
+	 * Searches for this pattern inside of the given class and matching a method with the given description.
+	 *
+	 * @param cn The class to search within.
+	 * @param methodDesc The method descriptor to match (uses Stringer), or <tt>null</tt> to search every method.
+	 * @return A List of instructions that matches this pattern, or <tt>null</tt> if there is no match.
+	 */
+	public List<AbstractInsnNode> search(ClassNode cn, String methodDesc) {
+		Stringer.Matcher matcher = methodDesc == null ? null : Stringer.compile(methodDesc);
+		for (MethodNode mn : cn.methods) {
+			if (matcher == null || matcher.matches(mn.desc)) {
+				List<AbstractInsnNode> insn = search(mn);
+				if (insn != null) return insn;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Searches for this pattern inside of the given class.
+	 *
+	 * @param cn The class to search within.
+	 * @return A List of instructions that matches this pattern, or <tt>null</tt> if there is no match.
+	 */
+	public List<AbstractInsnNode> search(ClassNode cn) {
+		return search(cn, null);
+	}
+}
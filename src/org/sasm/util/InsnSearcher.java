@@ -3,6 +3,7 @@ package org.sasm.util;
 import org.sasm.tree.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Offers CSS-selector search functionality to instruction nodes.
@@ -14,7 +15,10 @@ public class InsnSearcher {
 
 	public static final String[] OPCODES = {"NOP", "ACONST_NULL", "ICONST_M1", "ICONST_0", "ICONST_1", "ICONST_2", "ICONST_3", "ICONST_4", "ICONST_5", "LCONST_0", "LCONST_1", "FCONST_0", "FCONST_1", "FCONST_2", "DCONST_0", "DCONST_1", "BIPUSH", "SIPUSH", "LDC", "", "", "ILOAD", "LLOAD", "FLOAD", "DLOAD", "ALOAD", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "IALOAD", "LALOAD", "FALOAD", "DALOAD", "AALOAD", "BALOAD", "CALOAD", "SALOAD", "ISTORE", "LSTORE", "FSTORE", "DSTORE", "ASTORE", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "IASTORE", "LASTORE", "FASTORE", "DASTORE", "AASTORE", "BASTORE", "CASTORE", "SASTORE", "POP", "POP2", "DUP", "DUP_X1", "DUP_X2", "DUP2", "DUP2_X1", "DUP2_X2", "SWAP", "IADD", "LADD", "FADD", "DADD", "ISUB", "LSUB", "FSUB", "DSUB", "IMUL", "LMUL", "FMUL", "DMUL", "IDIV", "LDIV", "FDIV", "DDIV", "IREM", "LREM", "FREM", "DREM", "INEG", "LNEG", "FNEG", "DNEG", "ISHL", "LSHL", "ISHR", "LSHR", "IUSHR", "LUSHR", "IAND", "LAND", "IOR", "LOR", "IXOR", "LXOR", "IINC", "I2L", "I2F", "I2D", "L2I", "L2F", "L2D", "F2I", "F2L", "F2D", "D2I", "D2L", "D2F", "I2B", "I2C", "I2S", "LCMP", "FCMPL", "FCMPG", "DCMPL", "DCMPG", "IFEQ", "IFNE", "IFLT", "IFGE", "IFGT", "IFLE", "IF_ICMPEQ", "IF_ICMPNE", "IF_ICMPLT", "IF_ICMPGE", "IF_ICMPGT", "IF_ICMPLE", "IF_ACMPEQ", "IF_ACMPNE", "GOTO", "JSR", "RET", "TABLESWITCH", "LOOKUPSWITCH", "IRETURN", "LRETURN", "FRETURN", "DRETURN", "ARETURN", "RETURN", "GETSTATIC", "PUTSTATIC", "GETFIELD", "PUTFIELD", "INVOKEVIRTUAL", "INVOKESPECIAL", "INVOKESTATIC", "INVOKEINTERFACE", "INVOKEDYNAMIC", "NEW", "NEWARRAY", "ANEWARRAY", "ARRAYLENGTH", "ATHROW", "CHECKCAST", "INSTANCEOF", "MONITORENTER", "MONITOREXIT", "", "MULTIANEWARRAY", "IFNULL", "IFNONNULL"};
 
-	private static final Map<String, List<Map<String, SelectorValue>>> CACHE = new HashMap<>();
+	private static volatile ForkJoinPool POOL;
+
+	private static final BoundedCache<String, InsnSelector[]> CACHE =
+			new BoundedCache<>(Integer.getInteger("sasm.patternCacheSize", 4096));
 
 	private static class SelectorValue {
 		public final char operator;
@@ -50,30 +54,67 @@ public class InsnSearcher {
 		return -1;
 	}
 
-	private static List<List<Map<String, SelectorValue>>> parse(String[] pattern) {
-		List<List<Map<String, SelectorValue>>> parsed = new ArrayList<>(pattern.length);
-		boolean[] filled = new boolean[pattern.length];
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < pattern.length; i++) {
-			if (CACHE.containsKey(pattern[i])) {
-				parsed.add(CACHE.get(pattern[i]));
-				filled[i] = true;
-			} else {
-				sb.append(pattern[i]).append(' ');
-			}
+	/**
+	 * Compiles the given pattern into an immutable matcher that can be reused across searches.
+	 *
+	 * @param pattern The pattern to compile. ("getfield[desc=I]", "imul")
+	 * @return The compiled pattern.
+	 */
+	public static InsnPattern compile(String... pattern) {
+		List<InsnSelector> steps = new ArrayList<>(pattern.length);
+		for (String single : pattern) {
+			InsnSelector[] compiled = CACHE.get(single);
+			if (compiled == null) compiled = CACHE.putIfAbsent(single, compile(parse(single), single));
+			Collections.addAll(steps, compiled);
 		}
-		if (sb.length() > 0) {
-			List<List<Map<String, SelectorValue>>> temp = parse(sb.substring(0, sb.length() - 1));
-			int idx = 0;
-			for (int i = 0; i < pattern.length; i++) {
-				if (!filled[i]) {
-					List<Map<String, SelectorValue>> current = temp.get(idx++);
-					parsed.add(i, current);
-					CACHE.put(pattern[i], current);
-				}
+		return new InsnPattern(steps.toArray(new InsnSelector[steps.size()]));
+	}
+
+	/**
+	 * Gets the cache of compiled single-patterns shared by every search. Its size
+	 * can be set through the sasm.patternCacheSize system property.
+	 *
+	 * @return The cache of compiled single-patterns.
+	 */
+	public static BoundedCache<String, InsnSelector[]> getCache() {
+		return CACHE;
+	}
+
+	/**
+	 * Compiles the given single-pattern, so that it can be passed to the navigation
+	 * methods without being looked up again.
+	 *
+	 * @param pattern A single-pattern string ("getfield[desc=I]")
+	 * @return The compiled single-pattern.
+	 */
+	public static InsnSelector selector(String pattern) {
+		return compile(pattern).getStep(0);
+	}
+
+	private static InsnSelector[] compile(List<List<Map<String, SelectorValue>>> parsed, String pattern) {
+		InsnSelector[] steps = new InsnSelector[parsed.size()];
+		for (int i = 0; i < steps.length; i++) {
+			List<Map<String, SelectorValue>> maps = parsed.get(i);
+			InsnSelector.Alternative[] alternatives = new InsnSelector.Alternative[maps.size()];
+			for (int j = 0; j < alternatives.length; j++) {
+				Map<String, SelectorValue> map = maps.get(j);
+				SelectorValue opcode = map.get("opcode");
+				if (opcode == null) throw new IllegalArgumentException("Missing opcode in pattern: " + pattern);
+				boolean any = opcode.value.equals("*");
+				SelectorValue dist = map.get("dist");
+				alternatives[j] = new InsnSelector.Alternative(any, any ? -1 : Integer.parseInt(opcode.value),
+						dist != null ? Integer.parseInt(dist.value) : InsnSelector.DEFAULT_DIST, attribute(map, "owner"),
+						attribute(map, "name"), attribute(map, "desc"), attribute(map, "operand"),
+						attribute(map, "var"), attribute(map, "cst"));
 			}
+			steps[i] = new InsnSelector(alternatives);
 		}
-		return parsed;
+		return steps;
+	}
+
+	private static InsnSelector.Attribute attribute(Map<String, SelectorValue> map, String key) {
+		SelectorValue value = map.get(key);
+		return value == null ? null : new InsnSelector.Attribute(value.operator, value.value);
 	}
 
 	private static List<List<Map<String, SelectorValue>>> parse(String pattern) {
@@ -213,69 +254,6 @@ public class InsnSearcher {
 		return parsed;
 	}
 
-	private static boolean match(String str, SelectorValue value) {
-		if (str.isEmpty()) {
-			return value.value.isEmpty();
-		}
-		if (value.operator > 0) {
-			switch (value.operator) {
-				case '^':
-					return str.startsWith(value.value);
-				case '$':
-					return str.endsWith(value.value);
-				case '*':
-					return str.contains(value.value);
-				case '!':
-					return !str.contains(value.value);
-				case '~':
-					return str.matches(value.value);
-			}
-		}
-		return str.equals(value.value);
-	}
-
-	private static boolean equals(AbstractInsnNode ain, Map<String, SelectorValue> insn) {
-		String opcode = insn.get("opcode").value;
-		if (!opcode.equals("*") && !Integer.toString(ain.getOpcode()).equals(opcode)) return false;
-		SelectorValue owner = insn.get("owner");
-		SelectorValue name = insn.get("name");
-		SelectorValue desc = insn.get("desc");
-		if (ain instanceof FieldInsnNode) {
-			FieldInsnNode fin = (FieldInsnNode) ain;
-			return (name == null || match(fin.name, name)) &&
-					(owner == null || match(fin.owner, owner)) &&
-					(desc == null || match(fin.desc, desc));
-		} else if (ain instanceof MethodInsnNode) {
-			MethodInsnNode min = (MethodInsnNode) ain;
-			return (name == null || match(min.name, name)) &&
-					(owner == null || match(min.owner, owner)) &&
-					(desc == null || match(min.desc, desc));
-		} else if (ain instanceof TypeInsnNode) {
-			TypeInsnNode tin = (TypeInsnNode) ain;
-			return desc == null || match(tin.desc, desc);
-		} else if (ain instanceof IntInsnNode) {
-			IntInsnNode iin = (IntInsnNode) ain;
-			SelectorValue operand = insn.get("operand");
-			return operand == null || match(Integer.toString(iin.operand), operand);
-		} else if (ain instanceof VarInsnNode) {
-			VarInsnNode vin = (VarInsnNode) ain;
-			SelectorValue var = insn.get("var");
-			return var == null || match(Integer.toString(vin.var), var);
-		} else if (ain instanceof LdcInsnNode) {
-			LdcInsnNode lin = (LdcInsnNode) ain;
-			SelectorValue cst = insn.get("cst");
-			return cst == null || (lin.cst != null && match(lin.cst.toString(), cst));
-		}
-		return true;
-	}
-
-	private static boolean equals(AbstractInsnNode ain, List<Map<String, SelectorValue>> maps) {
-		for (Map<String, SelectorValue> map : maps) {
-			if (equals(ain, map)) return true;
-		}
-		return false;
-	}
-
 	/**
 	 * Checks if the instruction matches the given single-pattern.
 	 *
@@ -284,26 +262,7 @@ public class InsnSearcher {
 	 * @return <t>true</t> if the instruction matches the single-pattern, else <t>false.</t>
 	 */
 	public static boolean equals(AbstractInsnNode ain, String pattern) {
-		return equals(ain, parse(pattern).get(0));
-	}
-
-	private static AbstractInsnNode next(AbstractInsnNode ain, List<Map<String, SelectorValue>> parsed) {
-		int highestDist = -1;
-		for (Map<String, SelectorValue> map : parsed) {
-			int dist = map.containsKey("dist") ? Integer.parseInt(map.get("dist").value) : 10;
-			if (dist > highestDist) highestDist = dist;
-		}
-		int dist = 0;
-		while ((ain = ain.getNext()) != null && dist < highestDist) {
-			for (Map<String, SelectorValue> map : parsed) {
-				int d = map.containsKey("dist") ? Integer.parseInt(map.get("dist").value) : 10;
-				if (dist < d) {
-					if (equals(ain, map)) return ain;
-				}
-			}
-			dist++;
-		}
-		return null;
+		return selector(pattern).matches(ain);
 	}
 
 	/**
@@ -314,44 +273,43 @@ public class InsnSearcher {
 	 * @return The next instruction matching the given single-pattern.
 	 */
 	public static AbstractInsnNode next(AbstractInsnNode ain, String pattern) {
-		return next(ain, parse(pattern).get(0));
+		return selector(pattern).next(ain);
 	}
 
+	/**
+	 * Gets the next instruction matching the given selector.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @param selector The compiled single-pattern to search for.
+	 * @param dist The maximum amount of instructions to look ahead.
+	 * @return The next instruction matching the given selector, or <tt>null</tt> if there is none.
+	 */
+	public static AbstractInsnNode next(AbstractInsnNode ain, InsnSelector selector, int dist) {
+		return selector.next(ain, dist);
+	}
 
 	/**
-	 * Gets the next instruction matching the given single-pattern.
+	 * Gets the first instruction of the given method matching the given single-pattern.
 	 *
 	 * @param mn The method to start search within.
 	 * @param pattern The single-pattern to search for. ("getfield[desc=I]")
-	 * @return The next instruction matching the given single-pattern.
+	 * @return The first instruction matching the given single-pattern.
 	 */
 	public static AbstractInsnNode next(MethodNode mn, String pattern) {
-		if (mn.instructions.size() == 0) return null;
-		if (pattern.contains("dist=10")) {
-			pattern = pattern.replace("dist=10", "dist=" + (mn.instructions.size() - 2));
-		} else {
-			pattern += "[dist=" + (mn.instructions.size() - 2) + "]";
-		}
-		return next(mn.instructions.get(0), pattern);
+		return next(mn, selector(pattern));
 	}
 
-	private static AbstractInsnNode prev(AbstractInsnNode ain, List<Map<String, SelectorValue>> parsed) {
-		int highestDist = -1;
-		for (Map<String, SelectorValue> map : parsed) {
-			int dist = map.containsKey("dist") ? Integer.parseInt(map.get("dist").value) : 10;
-			if (dist > highestDist) highestDist = dist;
-		}
-		int dist = 0;
-		while ((ain = ain.getPrevious()) != null && dist < highestDist) {
-			for (Map<String, SelectorValue> map : parsed) {
-				int d = map.containsKey("dist") ? Integer.parseInt(map.get("dist").value) : 10;
-				if (dist < d) {
-					if (equals(ain, map)) return ain;
-				}
-			}
-			dist++;
-		}
-		return null;
+	/**
+	 * Gets the first instruction of the given method matching the given selector.
+	 *
+	 * @param mn The method to start search within.
+	 * @param selector The compiled single-pattern to search for.
+	 * @return The first instruction matching the given selector, or <tt>null</tt> if there is none.
+	 */
+	public static AbstractInsnNode next(MethodNode mn, InsnSelector selector) {
+		AbstractInsnNode first = mn.instructions.getFirst();
+		if (first == null || !selector.mayMatch(mn.instructions.getSummary())) return null;
+		return selector.matches(first) ? first : selector.next(first, mn.instructions.size());
 	}
 
 	/**
@@ -362,30 +320,19 @@ public class InsnSearcher {
 	 * @return The previous instruction matching the given single-pattern.
 	 */
 	public static AbstractInsnNode prev(AbstractInsnNode ain, String pattern) {
-		return prev(ain, parse(pattern).get(0));
+		return selector(pattern).prev(ain);
 	}
 
-	private static List<AbstractInsnNode> search(MethodNode mn, List<List<Map<String, SelectorValue>>> parsed) {
-		loop: for (AbstractInsnNode insn : mn.instructions.toArray()) {
-			List<AbstractInsnNode> instructions = new ArrayList<>();
-			for (int i = 0; i < parsed.size(); i++) {
-				if (insn == null) {
-					instructions.clear();
-					continue loop;
-				}
-				if (equals(insn, parsed.get(i))) {
-					instructions.add(insn);
-					if (i + 1 < parsed.size()) {
-						insn = next(insn, parsed.get(i + 1));
-					}
-				} else {
-					instructions.clear();
-					continue loop;
-				}
-			}
-			return instructions;
-		}
-		return null;
+	/**
+	 * Gets the previous instruction matching the given selector.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @param selector The compiled single-pattern to search for.
+	 * @param dist The maximum amount of instructions to look behind.
+	 * @return The previous instruction matching the given selector, or <tt>null</tt> if there is none.
+	 */
+	public static AbstractInsnNode prev(AbstractInsnNode ain, InsnSelector selector, int dist) {
+		return selector.prev(ain, dist);
 	}
 
 	/**
@@ -396,7 +343,7 @@ public class InsnSearcher {
 	 * @return A List of instructions that matches the given pattern.
 	 */
 	public static List<AbstractInsnNode> search(MethodNode mn, String... pattern) {
-		return search(mn, parse(pattern));
+		return compile(pattern).search(mn);
 	}
 
 	/**
@@ -408,14 +355,7 @@ public class InsnSearcher {
 	 * @return A List of instructions that matches the given pattern.
 	 */
 	public static List<AbstractInsnNode> search(ClassNode cn, String methodDesc, String[] pattern) {
-		List<List<Map<String, SelectorValue>>> parsed = parse(pattern);
-		for (MethodNode mn : cn.methods) {
-			if (methodDesc == null || Stringer.match(mn.desc, methodDesc)) {
-				List<AbstractInsnNode> insn = search(mn, parsed);
-				if (insn != null) return insn;
-			}
-		}
-		return null;
+		return compile(pattern).search(cn, methodDesc);
 	}
 
 	/**
@@ -429,6 +369,66 @@ public class InsnSearcher {
 		return search(cn, null, pattern);
 	}
 
+	/**
+	 * Finds every non-overlapping match of the given pattern inside of the given method.
+	 *
+	 * @param mn The method to search within.
+	 * @param handler The handler to report matches to.
+	 * @param pattern The pattern to search for. ("getfield[desc=I]", "imul")
+	 * @return The amount of matches reported.
+	 */
+	public static int findAll(MethodNode mn, InsnMatchHandler handler, String... pattern) {
+		return compile(pattern).findAll(mn, false, handler);
+	}
+
+	/**
+	 * Finds every non-overlapping match of the given pattern inside of the given class.
+	 *
+	 * @param cn The class to search within.
+	 * @param handler The handler to report matches to.
+	 * @param pattern The pattern to search for. ("getfield[desc=I]", "imul")
+	 * @return The amount of matches reported.
+	 */
+	public static int findAll(ClassNode cn, InsnMatchHandler handler, String... pattern) {
+		return compile(pattern).findAll(cn, false, handler);
+	}
+
+	/**
+	 * Finds every non-overlapping match of the given pattern inside of the given jar, in order of class name.
+	 *
+	 * @param archive The jar to search within.
+	 * @param handler The handler to report matches to.
+	 * @param pattern The pattern to search for. ("getfield[desc=I]", "imul")
+	 * @return The amount of matches reported.
+	 */
+	public static int findAll(JarArchive archive, InsnMatchHandler handler, String... pattern) {
+		return compile(pattern).findAll(archive.classes, false, handler);
+	}
+
+	/**
+	 * Finds the first non-overlapping matches of the given pattern inside of the given jar,
+	 * searching its methods in parallel. Matches are reported in order of class name, then method order.
+	 *
+	 * @param archive The jar to search within.
+	 * @param limit The maximum amount of matches to report, or 0 for no limit.
+	 * @param handler The handler to report matches to.
+	 * @param pattern The pattern to search for. ("getfield[desc=I]", "imul")
+	 * @return The amount of matches reported.
+	 */
+	public static int findAll(JarArchive archive, int limit, InsnMatchHandler handler, String... pattern) {
+		return compile(pattern).findAll(archive.classes, false, limit, getPool(), handler);
+	}
+
+	static ForkJoinPool getPool() {
+		ForkJoinPool pool = POOL;
+		if (pool == null) {
+			synchronized (InsnSearcher.class) {
+				if ((pool = POOL) == null) POOL = pool = new ForkJoinPool();
+			}
+		}
+		return pool;
+	}
+
 	/**
 	 * Counts the amount of matching instructions based off the given single-pattern.
 	 *
@@ -437,12 +437,7 @@ public class InsnSearcher {
 	 * @return The amount of matching instructions passed off the given single-pattern.
 	 */
 	public static int count(MethodNode mn, String pattern) {
-		List<Map<String, SelectorValue>> parsed = parse(pattern).get(0);
-		int count = 0;
-		for (AbstractInsnNode ain : mn.instructions.toArray()) {
-			if (equals(ain, parsed)) count++;
-		}
-		return count;
+		return selector(pattern).count(mn);
 	}
 
 	/**
@@ -453,10 +448,11 @@ public class InsnSearcher {
 	 * @return The index of the first found matching instruction.
 	 */
 	public static int indexOf(MethodNode mn, String pattern) {
-		List<Map<String, SelectorValue>> parsed = parse(pattern).get(0);
-		AbstractInsnNode[] insn = mn.instructions.toArray();
-		for (int i = 0; i < insn.length; i++) {
-			if (equals(insn[i], parsed)) return i;
+		InsnSelector selector = selector(pattern);
+		if (!selector.mayMatch(mn.instructions.getSummary())) return -1;
+		int index = 0;
+		for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext(), index++) {
+			if (selector.matches(ain)) return index;
 		}
 		return -1;
 	}
@@ -469,10 +465,11 @@ public class InsnSearcher {
 	 * @return The last index of the first found matching instruction.
 	 */
 	public static int lastIndexOf(MethodNode mn, String pattern) {
-		List<Map<String, SelectorValue>> parsed = parse(pattern).get(0);
-		AbstractInsnNode[] insn = mn.instructions.toArray();
-		for (int i = insn.length - 1; i > 0; i--) {
-			if (equals(insn[i], parsed)) return i;
+		InsnSelector selector = selector(pattern);
+		if (!selector.mayMatch(mn.instructions.getSummary())) return -1;
+		int index = mn.instructions.size() - 1;
+		for (AbstractInsnNode ain = mn.instructions.getLast(); index > 0; ain = ain.getPrevious(), index--) {
+			if (selector.matches(ain)) return index;
 		}
 		return -1;
 	}
@@ -0,0 +1,283 @@
+package org.sasm.util;
+
+import org.sasm.tree.*;
+
+/**
+ * A compiled single-pattern ("getfield[desc=I]|putfield") that matches one instruction.
+ * Selectors are immutable and may be shared between threads.
+ *
+ * @author Tyler Sedlar
+ */
+public final class InsnSelector {
+
+	/**
+	 * The distance that alternatives without a dist attribute may look ahead.
+	 */
+	public static final int DEFAULT_DIST = 10;
+
+	private final Alternative[] alternatives;
+	private final long[] opcodes = new long[OpcodeSummary.WORDS];
+	private final int dist;
+	private final boolean opcodeOnly;
+
+	InsnSelector(Alternative[] alternatives) {
+		this.alternatives = alternatives;
+		int dist = -1;
+		boolean opcodeOnly = true;
+		for (Alternative alternative : alternatives) {
+			opcodeOnly &= alternative.owner == null && alternative.name == null && alternative.desc == null &&
+					alternative.operand == null && alternative.var == null && alternative.cst == null;
+			if (alternative.any) {
+				for (int i = 0; i < opcodes.length; i++) opcodes[i] = -1L;
+			} else {
+				int bit = alternative.opcode + 1;
+				opcodes[bit >>> 6] |= 1L << bit;
+			}
+			dist = Math.max(dist, alternative.dist);
+		}
+		this.dist = dist;
+		this.opcodeOnly = opcodeOnly;
+	}
+
+	/**
+	 * Gets the distance this selector may look ahead or behind within {@link #next} and {@link #prev}.
+	 *
+	 * @return The largest dist of this selector's alternatives.
+	 */
+	public int getDist() {
+		return dist;
+	}
+
+	/**
+	 * Checks whether an instruction with the given opcode could match this selector.
+	 *
+	 * @param opcode The opcode to check, or -1 for labels, frames and line numbers.
+	 * @return <t>true</t> if the opcode is accepted by one of the alternatives, otherwise <t>false</t>.
+	 */
+	public boolean accepts(int opcode) {
+		int bit = opcode + 1;
+		return (opcodes[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Checks whether a list with the given opcode summary could contain a match of this selector.
+	 *
+	 * @param summary The opcode summary of the list.
+	 * @return <t>false</t> if the list cannot contain a match, otherwise <t>true</t>.
+	 */
+	public boolean mayMatch(OpcodeSummary summary) {
+		return summary.intersects(opcodes);
+	}
+
+	/**
+	 * Counts the instructions of the given method that match this selector. Selectors
+	 * that only test opcodes are answered from the method's opcode summary.
+	 *
+	 * @param mn The method to count within.
+	 * @return The amount of matching instructions.
+	 */
+	public int count(MethodNode mn) {
+		OpcodeSummary summary = mn.instructions.getSummary();
+		if (!mayMatch(summary)) return 0;
+		if (opcodeOnly) {
+			int count = 0;
+			for (int bit = 0; bit < 257; bit++) {
+				if ((opcodes[bit >>> 6] & (1L << bit)) != 0) count += summary.count(bit - 1);
+			}
+			return count;
+		}
+		int count = 0;
+		for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			if (matches(ain)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Checks whether the given instruction matches this selector.
+	 *
+	 * @param ain The instruction to check.
+	 * @return <t>true</t> if the instruction matches, otherwise <t>false</t>.
+	 */
+	public boolean matches(AbstractInsnNode ain) {
+		if (!accepts(ain.getOpcode())) return false;
+		for (Alternative alternative : alternatives) {
+			if (alternative.matches(ain)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the next instruction matching this selector, within each alternative's dist.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @return The next matching instruction, or <tt>null</tt> if there is none.
+	 */
+	public AbstractInsnNode next(AbstractInsnNode ain) {
+		int dist = 0;
+		while ((ain = ain.getNext()) != null && dist < this.dist) {
+			if (matches(ain, dist)) return ain;
+			dist++;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the previous instruction matching this selector, within each alternative's dist.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @return The previous matching instruction, or <tt>null</tt> if there is none.
+	 */
+	public AbstractInsnNode prev(AbstractInsnNode ain) {
+		int dist = 0;
+		while ((ain = ain.getPrevious()) != null && dist < this.dist) {
+			if (matches(ain, dist)) return ain;
+			dist++;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the next instruction matching this selector within the given distance,
+	 * ignoring the dist of each alternative.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @param dist The maximum amount of instructions to look ahead.
+	 * @return The next matching instruction, or <tt>null</tt> if there is none.
+	 */
+	public AbstractInsnNode next(AbstractInsnNode ain, int dist) {
+		while (dist-- > 0 && (ain = ain.getNext()) != null) {
+			if (matches(ain)) return ain;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the previous instruction matching this selector within the given distance,
+	 * ignoring the dist of each alternative.
+	 *
+	 * @param ain The instruction to start search at.
+	 * @param dist The maximum amount of instructions to look behind.
+	 * @return The previous matching instruction, or <tt>null</tt> if there is none.
+	 */
+	public AbstractInsnNode prev(AbstractInsnNode ain, int dist) {
+		while (dist-- > 0 && (ain = ain.getPrevious()) != null) {
+			if (matches(ain)) return ain;
+		}
+		return null;
+	}
+
+	private boolean matches(AbstractInsnNode ain, int dist) {
+		if (!accepts(ain.getOpcode())) return false;
+		for (Alternative alternative : alternatives) {
+			if (dist < alternative.dist && alternative.matches(ain)) return true;
+		}
+		return false;
+	}
+
+	static final class Alternative {
+
+		final boolean any;
+		final int opcode;
+		final int dist;
+		final Attribute owner, name, desc, operand, var, cst;
+
+		Alternative(boolean any, int opcode, int dist, Attribute owner, Attribute name, Attribute desc,
+		            Attribute operand, Attribute var, Attribute cst) {
+			this.any = any;
+			this.opcode = opcode;
+			this.dist = dist;
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.operand = operand;
+			this.var = var;
+			this.cst = cst;
+		}
+
+		boolean matches(AbstractInsnNode ain) {
+			if (!any && ain.getOpcode() != opcode) return false;
+			switch (ain.getType()) {
+				case AbstractInsnNode.FIELD_INSN: {
+					FieldInsnNode fin = (FieldInsnNode) ain;
+					return (name == null || name.test(fin.name)) && (owner == null || owner.test(fin.owner)) &&
+							(desc == null || desc.test(fin.desc));
+				}
+				case AbstractInsnNode.METHOD_INSN: {
+					MethodInsnNode min = (MethodInsnNode) ain;
+					return (name == null || name.test(min.name)) && (owner == null || owner.test(min.owner)) &&
+							(desc == null || desc.test(min.desc));
+				}
+				case AbstractInsnNode.TYPE_INSN:
+					return desc == null || desc.test(((TypeInsnNode) ain).desc);
+				case AbstractInsnNode.INT_INSN:
+					return operand == null || operand.test(((IntInsnNode) ain).operand);
+				case AbstractInsnNode.VAR_INSN:
+					return var == null || var.test(((VarInsnNode) ain).var);
+				case AbstractInsnNode.LDC_INSN: {
+					Object value = ((LdcInsnNode) ain).cst;
+					return cst == null || (value != null && cst.test(value));
+				}
+				default:
+					return true;
+			}
+		}
+	}
+
+	static final class Attribute {
+
+		final char operator;
+		final String value;
+		private final Stringer.Matcher regex;
+		private final boolean numeric;
+		private final long number;
+
+		Attribute(char operator, String value) {
+			this.operator = operator;
+			this.value = value;
+			// '~' must match the whole string, where Stringer only needs to find the regex
+			this.regex = operator == '~' ? Stringer.compile("~\\A(?:" + value + ")\\z") : null;
+			long number = 0;
+			boolean numeric = false;
+			try {
+				number = Long.parseLong(value);
+				// only canonical forms can equal a formatted number
+				numeric = Long.toString(number).equals(value);
+			} catch (NumberFormatException ignored) {
+			}
+			this.number = number;
+			this.numeric = numeric;
+		}
+
+		boolean test(String str) {
+			if (str.isEmpty()) return value.isEmpty();
+			switch (operator) {
+				case '^':
+					return str.startsWith(value);
+				case '$':
+					return str.endsWith(value);
+				case '*':
+					return str.contains(value);
+				case '!':
+					return !str.contains(value);
+				case '~':
+					return regex.matches(str);
+				default:
+					return str.equals(value);
+			}
+		}
+
+		boolean test(int n) {
+			if (operator == 0) return numeric && n == number;
+			return test(Integer.toString(n));
+		}
+
+		boolean test(Object cst) {
+			if (cst instanceof String) return test((String) cst);
+			if (operator == 0 && (cst instanceof Integer || cst instanceof Long)) {
+				return numeric && ((Number) cst).longValue() == number;
+			}
+			return test(cst.toString());
+		}
+	}
+}
@@ -5,20 +5,21 @@ import org.sasm.ClassWriter;
 import org.sasm.tree.ClassNode;
 
 import java.io.*;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.jar.*;
 
 /**
  * @author Tyler Sedlar
  */
-public class JarArchive {
+public class JarArchive implements Closeable {
 
 	private final File jarFile;
+	private final JarFile jar;
 	public final Manifest manifest;
 	public final Map<String, byte[]> rawClasses = new HashMap<>();
-	public final Map<String, ClassNode> classes = new HashMap<>();
+	public final Map<String, ClassNode> classes;
 
 	/**
 	 * Constructs a JarArchive based on the given jar file location.
@@ -27,6 +28,8 @@ public class JarArchive {
 	 * @throws IOException
 	 */
 	public JarArchive(File jarFile) throws IOException {
+		this.classes = new HashMap<>();
+		this.jar = null;
 		try (JarFile jar = new JarFile(jarFile)) {
 			this.jarFile = jarFile;
 			manifest = jar.getManifest();
@@ -47,6 +50,70 @@ public class JarArchive {
 		}
 	}
 
+	/**
+	 * Constructs a JarArchive that decodes its classes on access and keeps at most the given memory
+	 * budget of them decoded, see {@link ClassCache}. The jar stays open until the archive is closed,
+	 * and {@link #rawClasses} is left empty. Classes modified in place must be obtained through
+	 * {@link #getForEdit} or reported through {@link #markDirty}, so transforms that modify the
+	 * classes in place without reporting them must run on an archive without a memory budget.
+	 *
+	 * @param jarFile The jar to read from.
+	 * @param budget The estimated amount of bytes of decoded classes to keep.
+	 * @throws IOException
+	 */
+	public JarArchive(File jarFile, long budget) throws IOException {
+		this.jarFile = jarFile;
+		final JarFile jar = this.jar = new JarFile(jarFile);
+		try {
+			this.manifest = jar.getManifest();
+			List<String> names = new ArrayList<>();
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class")) names.add(name.replace(".class", ""));
+			}
+			this.classes = new ClassCache(names, new ClassCache.Source() {
+				@Override
+				public byte[] read(String name) throws IOException {
+					try (InputStream input = jar.getInputStream(jar.getEntry(name + ".class"))) {
+						ByteArrayOutputStream output = new ByteArrayOutputStream();
+						byte[] buffer = new byte[8192];
+						int read;
+						while ((read = input.read(buffer)) != -1) {
+							output.write(buffer, 0, read);
+						}
+						return output.toByteArray();
+					}
+				}
+			}, budget);
+		} catch (IOException | RuntimeException e) {
+			jar.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the given class to modify it in place. With a memory budget, the class is marked dirty so
+	 * that its changes survive eviction.
+	 *
+	 * @param name The name of the class.
+	 * @return The class, or <tt>null</tt> if it is not part of the archive.
+	 */
+	public ClassNode getForEdit(String name) {
+		return classes instanceof ClassCache ? ((ClassCache) classes).getForEdit(name) : classes.get(name);
+	}
+
+	/**
+	 * Reports that the given class was modified in place. Only classes of an archive with a memory
+	 * budget need to be reported, so that their changes survive eviction, see
+	 * {@link ClassCache#markDirty}.
+	 *
+	 * @param name The name of the class.
+	 */
+	public void markDirty(String name) {
+		if (classes instanceof ClassCache) ((ClassCache) classes).markDirty(name);
+	}
+
 	/**
 	 * Dumps the jar to the given location.
 	 *
@@ -54,6 +121,21 @@ public class JarArchive {
 	 * @throws IOException
 	 */
 	public void dump(File target) throws IOException {
+		if (jar != null) {
+			// the classes are still read from the jar, so it is replaced only once written
+			File temp = File.createTempFile("sasm", ".jar", target.getAbsoluteFile().getParentFile());
+			try {
+				write(temp);
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				temp.delete();
+			}
+		} else {
+			write(target);
+		}
+	}
+
+	private void write(File target) throws IOException {
 		try (JarOutputStream output = new JarOutputStream(new FileOutputStream(target), manifest)) {
 			for (Map.Entry<String, ClassNode> entry : classes.entrySet()) {
 				output.putNextEntry(new JarEntry(entry.getKey().replaceAll("\\.", "/") + ".class"));
@@ -74,4 +156,17 @@ public class JarArchive {
 	public void dump() throws IOException {
 		dump(jarFile);
 	}
+
+	/**
+	 * Closes the jar and the spill file of an archive with a memory budget.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (jar != null) {
+			jar.close();
+			((ClassCache) classes).close();
+		}
+	}
 }
@@ -0,0 +1,106 @@
+package org.sasm.util;
+
+import org.sasm.Type;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cached descriptor table of a class outside of the jar being processed,
+ * such as a JDK class. Each class is resolved at most once per run; lookups
+ * after that are plain map reads.
+ *
+ * @author Tyler Sedlar
+ */
+public class LibraryClass {
+
+	private static final ConcurrentMap<String, LibraryClass> CACHE = new ConcurrentHashMap<>();
+	private static final LibraryClass MISSING = new LibraryClass(null, 0, null, new String[0],
+			Collections.<String>emptySet());
+
+	public final String name;
+	public final int access;
+	public final String superName;
+	public final String[] interfaces;
+
+	/**
+	 * The name + descriptor of every overridable method this class declares.
+	 */
+	public final Set<String> methods;
+
+	private volatile Set<String> allMethods;
+
+	private LibraryClass(String name, int access, String superName, String[] interfaces, Set<String> methods) {
+		this.name = name;
+		this.access = access;
+		this.superName = superName;
+		this.interfaces = interfaces;
+		this.methods = methods;
+	}
+
+	/**
+	 * Gets the descriptor table for the given class.
+	 *
+	 * @param name The internal name of the class.
+	 * @return The descriptor table for the class, or <t>null</t> if the class could not be found.
+	 */
+	public static LibraryClass get(String name) {
+		LibraryClass lc = CACHE.get(name);
+		if (lc == null) {
+			lc = load(name);
+			LibraryClass existing = CACHE.putIfAbsent(name, lc);
+			if (existing != null) lc = existing;
+		}
+		return lc == MISSING ? null : lc;
+	}
+
+	private static LibraryClass load(String name) {
+		Class<?> clazz;
+		try {
+			// the bundled ClassReader only reads up to Java 8 class files, so the table is built reflectively
+			clazz = Class.forName(name.replace('/', '.'), false, LibraryClass.class.getClassLoader());
+		} catch (ClassNotFoundException | LinkageError e) {
+			return MISSING;
+		}
+		Set<String> methods = new HashSet<>();
+		for (Method method : clazz.getDeclaredMethods()) {
+			int mods = method.getModifiers();
+			if (Modifier.isPrivate(mods) || Modifier.isStatic(mods)) continue;
+			methods.add(method.getName() + Type.getMethodDescriptor(method));
+		}
+		Class<?>[] ifaces = clazz.getInterfaces();
+		String[] interfaces = new String[ifaces.length];
+		for (int i = 0; i < ifaces.length; i++) {
+			interfaces[i] = Type.getInternalName(ifaces[i]);
+		}
+		Class<?> superClass = clazz.getSuperclass();
+		String superName = superClass == null ? (clazz.isInterface() ? "java/lang/Object" : null) :
+				Type.getInternalName(superClass);
+		return new LibraryClass(name, clazz.getModifiers(), superName, interfaces, Collections.unmodifiableSet(methods));
+	}
+
+	/**
+	 * Gets the name + descriptor of every overridable method this class declares or inherits.
+	 *
+	 * @return The methods this class declares or inherits.
+	 */
+	public Set<String> getAllMethods() {
+		Set<String> all = allMethods;
+		if (all == null) {
+			all = new HashSet<>(methods);
+			if (superName != null) {
+				LibraryClass parent = get(superName);
+				if (parent != null) all.addAll(parent.getAllMethods());
+			}
+			for (String iface : interfaces) {
+				LibraryClass parent = get(iface);
+				if (parent != null) all.addAll(parent.getAllMethods());
+			}
+			allMethods = all = Collections.unmodifiableSet(all);
+		}
+		return all;
+	}
+}
@@ -0,0 +1,1207 @@
+package org.sasm.util;
+
+import org.sasm.*;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.SymbolTable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A compact binary image of a set of decoded classes, to save a workspace and load it back without
+ * parsing its class files again. The image starts with a versioned header, followed by a symbol table
+ * shared by every class, an index of the offset of each class, and one section per class. A section
+ * holds the events of {@link ClassNode#accept}, with every string and constant replaced by its index
+ * in the symbol table, and labels by their number within their method.
+ * <p>
+ * An archive is read through a memory mapped buffer. Opening it only reads the header, the index and
+ * the bytes of the symbol table; symbols are decoded the first time they are needed, and each class is
+ * decoded on its own when read, into a new {@link ClassNode}. Non standard attributes are not stored.
+ * An archive can be read by several threads.
+ *
+ * @author Tyler Sedlar
+ */
+public class NodeArchive {
+
+	/**
+	 * The first four bytes of an archive: "SASN".
+	 */
+	public static final int MAGIC = 0x5341534E;
+
+	/**
+	 * The version of the archive format written by this class. Archives of another version are rejected.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int STRING = 1, INTEGER = 2, FLOAT = 3, LONG = 4, DOUBLE = 5, TYPE = 6, HANDLE = 7;
+
+	// events; instructions are stored as their opcode, which is lower than any event
+	private static final int END = 200, HEADER = 201, SOURCE = 202, OUTER_CLASS = 203, ANNOTATION = 204,
+			TYPE_ANNOTATION = 205, INNER_CLASS = 206, FIELD = 207, METHOD = 208, PARAMETER = 209,
+			ANNOTATION_DEFAULT = 210, PARAMETER_ANNOTATION = 211, CODE = 212, FRAME = 213, LABEL = 214,
+			INSN_ANNOTATION = 215, TRY_CATCH_BLOCK = 216, TRY_CATCH_ANNOTATION = 217, LOCAL_VARIABLE = 218,
+			LOCAL_VARIABLE_ANNOTATION = 219, LINE_NUMBER = 220, MAXS = 221, VALUE = 222, ENUM = 223,
+			ARRAY = 224, BYTE = 225, BOOLEAN = 226, CHAR = 227, SHORT = 228;
+
+	// frame elements other than the Opcodes.TOP to UNINITIALIZED_THIS constants
+	private static final int FRAME_TYPE = 7, FRAME_LABEL = 8;
+
+	private final ByteBuffer buffer;
+	private final byte[] symbolData;
+	private final int[] symbolOffsets;
+	private final Object[] symbols;
+	private final Map<String, Integer> sections;
+	private final int[] offsets, lengths;
+
+	/**
+	 * Opens the archive at the given location, mapping it to memory.
+	 *
+	 * @param file The archive to read from.
+	 * @throws IOException If the file cannot be read or is not an archive of this version.
+	 */
+	public NodeArchive(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() < 20 || buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a node archive: " + file);
+			}
+			if (buffer.getInt(4) != VERSION) {
+				throw new IOException("Unsupported node archive version " + buffer.getInt(4) + ": " + file);
+			}
+			this.buffer = buffer;
+		}
+		int classCount = buffer.getInt(8);
+		int symbolCount = buffer.getInt(12);
+		this.symbolOffsets = new int[symbolCount];
+		this.symbols = new Object[symbolCount];
+		int offset = 20;
+		for (int i = 0; i < symbolCount; i++, offset += 4) {
+			symbolOffsets[i] = buffer.getInt(offset);
+		}
+		this.offsets = new int[classCount];
+		this.lengths = new int[classCount];
+		int index = offset;
+		offset += 12 * classCount;
+		// the symbols are small next to the sections, and read by every class
+		this.symbolData = new byte[buffer.getInt(16)];
+		read(offset, symbolData);
+		this.sections = new LinkedHashMap<>(classCount * 2);
+		for (int i = 0; i < classCount; i++, index += 12) {
+			offsets[i] = buffer.getInt(index + 4);
+			lengths[i] = buffer.getInt(index + 8);
+			sections.put((String) symbol(buffer.getInt(index)), i);
+		}
+	}
+
+	private void read(int offset, byte[] b) {
+		ByteBuffer buffer = this.buffer.duplicate();
+		buffer.position(offset);
+		buffer.get(b);
+	}
+
+	/**
+	 * Gets the amount of classes within this archive.
+	 *
+	 * @return The amount of classes.
+	 */
+	public int size() {
+		return sections.size();
+	}
+
+	/**
+	 * Gets the names of the classes within this archive, in the order they were written.
+	 *
+	 * @return The names of the classes.
+	 */
+	public Set<String> names() {
+		return Collections.unmodifiableSet(sections.keySet());
+	}
+
+	/**
+	 * Checks whether this archive holds the given class.
+	 *
+	 * @param name The name of the class.
+	 * @return <tt>true</tt> if the class is within this archive.
+	 */
+	public boolean contains(String name) {
+		return sections.containsKey(name);
+	}
+
+	/**
+	 * Decodes the given class into a new node.
+	 *
+	 * @param name The name of the class.
+	 * @return The decoded class, or <tt>null</tt> if the class is not within this archive.
+	 */
+	public ClassNode read(String name) {
+		Integer section = sections.get(name);
+		if (section == null) return null;
+		byte[] b = new byte[lengths[section]];
+		read(offsets[section], b);
+		ClassNode cn = new ClassNode();
+		new Decoder(b, 0).readClass(cn);
+		return cn;
+	}
+
+	/**
+	 * Decodes every class of this archive.
+	 *
+	 * @return A map of the decoded classes, by name.
+	 */
+	public Map<String, ClassNode> readAll() {
+		Map<String, ClassNode> classes = new HashMap<>();
+		for (String name : sections.keySet()) {
+			classes.put(name, read(name));
+		}
+		return classes;
+	}
+
+	/**
+	 * Writes an archive of the given classes.
+	 *
+	 * @param classes A map of classnodes, by name.
+	 * @param file The location to write to.
+	 * @throws IOException If the archive cannot be written, or would exceed 2GB.
+	 */
+	public static void write(Map<String, ClassNode> classes, File file) throws IOException {
+		SymbolTable table = new SymbolTable();
+		Output sections = new Output();
+		int[] names = new int[classes.size()];
+		int[] offsets = new int[classes.size()];
+		int[] lengths = new int[classes.size()];
+		int count = 0;
+		for (Map.Entry<String, ClassNode> entry : classes.entrySet()) {
+			names[count] = table.add(entry.getKey());
+			offsets[count] = sections.length;
+			entry.getValue().accept(new ClassEncoder(sections, table));
+			lengths[count] = sections.length - offsets[count++];
+		}
+		Output symbols = new Output();
+		int[] symbolOffsets = new int[table.size()];
+		for (int i = 0; i < table.size(); i++) {
+			symbolOffsets[i] = symbols.length;
+			writeSymbol(symbols, table, table.get(i));
+		}
+		long header = 20 + 4L * table.size() + 12L * count;
+		if (header + symbols.length + sections.length > Integer.MAX_VALUE) {
+			throw new IOException("Node archive too large: " + file);
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			out.writeInt(table.size());
+			out.writeInt(symbols.length);
+			for (int offset : symbolOffsets) {
+				out.writeInt(offset);
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(names[i]);
+				out.writeInt((int) header + symbols.length + offsets[i]);
+				out.writeInt(lengths[i]);
+			}
+			out.write(symbols.data, 0, symbols.length);
+			out.write(sections.data, 0, sections.length);
+		}
+	}
+
+	private static void writeSymbol(Output out, SymbolTable table, Object symbol) {
+		if (symbol instanceof String) {
+			out.putByte(STRING);
+			out.putUTF((String) symbol);
+		} else if (symbol instanceof Integer) {
+			out.putByte(INTEGER);
+			out.putSigned((Integer) symbol);
+		} else if (symbol instanceof Float) {
+			out.putByte(FLOAT);
+			out.putInt(Float.floatToRawIntBits((Float) symbol));
+		} else if (symbol instanceof Long) {
+			out.putByte(LONG);
+			out.putLong((Long) symbol);
+		} else if (symbol instanceof Double) {
+			out.putByte(DOUBLE);
+			out.putLong(Double.doubleToRawLongBits((Double) symbol));
+		} else if (symbol instanceof Type) {
+			out.putByte(TYPE);
+			out.putUTF(((Type) symbol).getDescriptor());
+		} else {
+			Handle handle = (Handle) symbol;
+			out.putByte(HANDLE);
+			out.putVar(handle.getTag());
+			// the owner, name and desc were added before the handle
+			out.putVar(table.indexOf(handle.getOwner()));
+			out.putVar(table.indexOf(handle.getName()));
+			out.putVar(table.indexOf(handle.getDesc()));
+		}
+	}
+
+	/**
+	 * Gets the symbol at the given index, decoding it on first use.
+	 */
+	private Object symbol(int index) {
+		Object symbol = symbols[index];
+		if (symbol == null) {
+			Decoder in = new Decoder(symbolData, symbolOffsets[index]);
+			switch (in.readByte()) {
+				case STRING:
+					symbol = in.readUTF();
+					break;
+				case INTEGER:
+					symbol = in.readSigned();
+					break;
+				case FLOAT:
+					symbol = Float.intBitsToFloat(in.readInt());
+					break;
+				case LONG:
+					symbol = in.readLong();
+					break;
+				case DOUBLE:
+					symbol = Double.longBitsToDouble(in.readLong());
+					break;
+				case TYPE:
+					symbol = Type.getType(in.readUTF());
+					break;
+				default:
+					symbol = new Handle(in.readVar(), (String) symbol(in.readVar()), (String) symbol(in.readVar()),
+							(String) symbol(in.readVar()));
+			}
+			// a racing thread may decode the same symbol; either copy is equal
+			symbols[index] = symbol;
+		}
+		return symbol;
+	}
+
+	/**
+	 * A growable byte array with variable length integers.
+	 */
+	private static final class Output {
+
+		private byte[] data = new byte[4096];
+		private int length;
+
+		private void ensure(int size) {
+			if (length + size > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length << 1, length + size));
+			}
+		}
+
+		void putByte(int b) {
+			ensure(1);
+			data[length++] = (byte) b;
+		}
+
+		void putVar(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				data[length++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+
+		void putSigned(int value) {
+			putVar(value << 1 ^ value >> 31);
+		}
+
+		void putInt(int value) {
+			ensure(4);
+			data[length++] = (byte) (value >>> 24);
+			data[length++] = (byte) (value >>> 16);
+			data[length++] = (byte) (value >>> 8);
+			data[length++] = (byte) value;
+		}
+
+		void putLong(long value) {
+			putInt((int) (value >>> 32));
+			putInt((int) value);
+		}
+
+		// modified UTF-8, which encodes each char on its own, so that unpaired surrogates survive
+		void putUTF(String s) {
+			int n = s.length();
+			putVar(n);
+			ensure(3 * n);
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c >= 1 && c <= 0x7F) {
+					data[length++] = (byte) c;
+				} else if (c <= 0x7FF) {
+					data[length++] = (byte) (0xC0 | c >> 6 & 0x1F);
+					data[length++] = (byte) (0x80 | c & 0x3F);
+				} else {
+					data[length++] = (byte) (0xE0 | c >> 12 & 0xF);
+					data[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+					data[length++] = (byte) (0x80 | c & 0x3F);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the events of a class into a section.
+	 */
+	private static class Encoder {
+
+		final Output out;
+		final SymbolTable table;
+
+		Encoder(Output out, SymbolTable table) {
+			this.out = out;
+			this.table = table;
+		}
+
+		void symbol(Object symbol) {
+			if (symbol == null) {
+				out.putVar(0);
+			} else {
+				if (symbol instanceof Handle) {
+					Handle handle = (Handle) symbol;
+					table.add(handle.getOwner());
+					table.add(handle.getName());
+					table.add(handle.getDesc());
+				}
+				out.putVar(table.add(symbol) + 1);
+			}
+		}
+
+		void symbols(Object[] symbols) {
+			out.putVar(symbols == null ? 0 : symbols.length + 1);
+			if (symbols != null) {
+				for (Object symbol : symbols) {
+					symbol(symbol);
+				}
+			}
+		}
+
+		void typeAnnotation(int event, int typeRef, TypePath typePath, String desc, boolean visible) {
+			out.putByte(event);
+			out.putInt(typeRef);
+			symbol(typePath == null ? null : typePath.toString());
+			symbol(desc);
+			out.putByte(visible ? 1 : 0);
+		}
+
+		AnnotationVisitor annotation(int event, String desc, boolean visible) {
+			out.putByte(event);
+			symbol(desc);
+			out.putByte(visible ? 1 : 0);
+			return new AnnotationEncoder(this);
+		}
+	}
+
+	private static final class AnnotationEncoder extends AnnotationVisitor {
+
+		private final Encoder encoder;
+		private final Output out;
+
+		AnnotationEncoder(Encoder encoder) {
+			super(Opcodes.ASM5);
+			this.encoder = encoder;
+			this.out = encoder.out;
+		}
+
+		@Override
+		public void visit(String name, Object value) {
+			if (value instanceof Byte) {
+				out.putByte(BYTE);
+				encoder.symbol(name);
+				out.putSigned((Byte) value);
+			} else if (value instanceof Boolean) {
+				out.putByte(BOOLEAN);
+				encoder.symbol(name);
+				out.putByte((Boolean) value ? 1 : 0);
+			} else if (value instanceof Character) {
+				out.putByte(CHAR);
+				encoder.symbol(name);
+				out.putVar((Character) value);
+			} else if (value instanceof Short) {
+				out.putByte(SHORT);
+				encoder.symbol(name);
+				out.putSigned((Short) value);
+			} else if (value.getClass().isArray()) {
+				AnnotationVisitor av = visitArray(name);
+				for (int i = 0, n = java.lang.reflect.Array.getLength(value); i < n; i++) {
+					av.visit(null, java.lang.reflect.Array.get(value, i));
+				}
+				av.visitEnd();
+			} else {
+				out.putByte(VALUE);
+				encoder.symbol(name);
+				encoder.symbol(value);
+			}
+		}
+
+		@Override
+		public void visitEnum(String name, String desc, String value) {
+			out.putByte(ENUM);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			encoder.symbol(value);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String name, String desc) {
+			out.putByte(ANNOTATION);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public AnnotationVisitor visitArray(String name) {
+			out.putByte(ARRAY);
+			encoder.symbol(name);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitEnd() {
+			out.putByte(END);
+		}
+	}
+
+	private static final class ClassEncoder extends ClassVisitor {
+
+		private final Encoder encoder;
+		private final Output out;
+
+		ClassEncoder(Output out, SymbolTable table) {
+			super(Opcodes.ASM5);
+			this.encoder = new Encoder(out, table);
+			this.out = out;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName,
+		                  String[] interfaces) {
+			out.putByte(HEADER);
+			out.putInt(version);
+			out.putVar(access);
+			encoder.symbol(name);
+			encoder.symbol(signature);
+			encoder.symbol(superName);
+			encoder.symbols(interfaces);
+		}
+
+		@Override
+		public void visitSource(String source, String debug) {
+			out.putByte(SOURCE);
+			encoder.symbol(source);
+			encoder.symbol(debug);
+		}
+
+		@Override
+		public void visitOuterClass(String owner, String name, String desc) {
+			out.putByte(OUTER_CLASS);
+			encoder.symbol(owner);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			return encoder.annotation(ANNOTATION, desc, visible);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+			encoder.typeAnnotation(TYPE_ANNOTATION, typeRef, typePath, desc, visible);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitInnerClass(String name, String outerName, String innerName, int access) {
+			out.putByte(INNER_CLASS);
+			encoder.symbol(name);
+			encoder.symbol(outerName);
+			encoder.symbol(innerName);
+			out.putVar(access);
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			out.putByte(FIELD);
+			out.putVar(access);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			encoder.symbol(signature);
+			encoder.symbol(value);
+			return new FieldEncoder(encoder);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+		                                 String[] exceptions) {
+			out.putByte(METHOD);
+			out.putVar(access);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			encoder.symbol(signature);
+			encoder.symbols(exceptions);
+			return new MethodEncoder(encoder);
+		}
+
+		@Override
+		public void visitEnd() {
+			out.putByte(END);
+		}
+	}
+
+	private static final class FieldEncoder extends FieldVisitor {
+
+		private final Encoder encoder;
+
+		FieldEncoder(Encoder encoder) {
+			super(Opcodes.ASM5);
+			this.encoder = encoder;
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			return encoder.annotation(ANNOTATION, desc, visible);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+			encoder.typeAnnotation(TYPE_ANNOTATION, typeRef, typePath, desc, visible);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitEnd() {
+			encoder.out.putByte(END);
+		}
+	}
+
+	private static final class MethodEncoder extends MethodVisitor {
+
+		private final Encoder encoder;
+		private final Output out;
+		private final Map<Label, Integer> labels = new IdentityHashMap<>();
+
+		MethodEncoder(Encoder encoder) {
+			super(Opcodes.ASM5);
+			this.encoder = encoder;
+			this.out = encoder.out;
+		}
+
+		private void label(Label label) {
+			Integer id = labels.get(label);
+			if (id == null) {
+				id = labels.size();
+				labels.put(label, id);
+			}
+			out.putVar(id);
+		}
+
+		private void labels(Label[] labels) {
+			out.putVar(labels.length);
+			for (Label label : labels) {
+				label(label);
+			}
+		}
+
+		private void frame(int n, Object[] elements) {
+			out.putVar(n);
+			out.putByte(elements == null ? 0 : 1);
+			if (elements == null) return;
+			for (int i = 0; i < n; i++) {
+				Object element = elements[i];
+				if (element instanceof Integer) {
+					out.putVar((Integer) element);
+				} else if (element instanceof String) {
+					out.putVar(FRAME_TYPE);
+					encoder.symbol(element);
+				} else {
+					out.putVar(FRAME_LABEL);
+					label((Label) element);
+				}
+			}
+		}
+
+		@Override
+		public void visitParameter(String name, int access) {
+			out.putByte(PARAMETER);
+			encoder.symbol(name);
+			out.putVar(access);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotationDefault() {
+			out.putByte(ANNOTATION_DEFAULT);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			return encoder.annotation(ANNOTATION, desc, visible);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+			encoder.typeAnnotation(TYPE_ANNOTATION, typeRef, typePath, desc, visible);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+			out.putByte(PARAMETER_ANNOTATION);
+			out.putVar(parameter);
+			encoder.symbol(desc);
+			out.putByte(visible ? 1 : 0);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitCode() {
+			out.putByte(CODE);
+		}
+
+		@Override
+		public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+			out.putByte(FRAME);
+			out.putSigned(type);
+			frame(nLocal, local);
+			frame(nStack, stack);
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			out.putByte(opcode);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			out.putByte(opcode);
+			out.putSigned(operand);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			out.putByte(opcode);
+			out.putVar(var);
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			out.putByte(opcode);
+			encoder.symbol(type);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			out.putByte(opcode);
+			encoder.symbol(owner);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+			out.putByte(opcode);
+			encoder.symbol(owner);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			out.putByte(Opcodes.INVOKEDYNAMIC);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			encoder.symbol(bsm);
+			encoder.symbols(bsmArgs);
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			out.putByte(opcode);
+			label(label);
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			out.putByte(LABEL);
+			label(label);
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			out.putByte(Opcodes.LDC);
+			encoder.symbol(cst);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			out.putByte(Opcodes.IINC);
+			out.putVar(var);
+			out.putSigned(increment);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			out.putByte(Opcodes.TABLESWITCH);
+			out.putSigned(min);
+			out.putSigned(max);
+			label(dflt);
+			labels(labels);
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			out.putByte(Opcodes.LOOKUPSWITCH);
+			label(dflt);
+			out.putVar(keys.length);
+			for (int key : keys) {
+				out.putSigned(key);
+			}
+			labels(labels);
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			out.putByte(Opcodes.MULTIANEWARRAY);
+			encoder.symbol(desc);
+			out.putVar(dims);
+		}
+
+		@Override
+		public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+			encoder.typeAnnotation(INSN_ANNOTATION, typeRef, typePath, desc, visible);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+			out.putByte(TRY_CATCH_BLOCK);
+			label(start);
+			label(end);
+			label(handler);
+			encoder.symbol(type);
+		}
+
+		@Override
+		public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String desc,
+		                                                 boolean visible) {
+			encoder.typeAnnotation(TRY_CATCH_ANNOTATION, typeRef, typePath, desc, visible);
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitLocalVariable(String name, String desc, String signature, Label start, Label end,
+		                               int index) {
+			out.putByte(LOCAL_VARIABLE);
+			encoder.symbol(name);
+			encoder.symbol(desc);
+			encoder.symbol(signature);
+			label(start);
+			label(end);
+			out.putVar(index);
+		}
+
+		@Override
+		public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start,
+		                                                      Label[] end, int[] index, String desc,
+		                                                      boolean visible) {
+			encoder.typeAnnotation(LOCAL_VARIABLE_ANNOTATION, typeRef, typePath, desc, visible);
+			labels(start);
+			labels(end);
+			for (int i : index) {
+				out.putVar(i);
+			}
+			return new AnnotationEncoder(encoder);
+		}
+
+		@Override
+		public void visitLineNumber(int line, Label start) {
+			out.putByte(LINE_NUMBER);
+			out.putVar(line);
+			label(start);
+		}
+
+		@Override
+		public void visitMaxs(int maxStack, int maxLocals) {
+			out.putByte(MAXS);
+			out.putVar(maxStack);
+			out.putVar(maxLocals);
+		}
+
+		@Override
+		public void visitEnd() {
+			out.putByte(END);
+		}
+	}
+
+	/**
+	 * Replays the events of a section, or decodes a symbol.
+	 */
+	private final class Decoder {
+
+		private final byte[] b;
+		private int offset;
+		private Label[] labels;
+
+		Decoder(byte[] b, int offset) {
+			this.b = b;
+			this.offset = offset;
+		}
+
+		int readByte() {
+			return b[offset++] & 0xFF;
+		}
+
+		int readVar() {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				int v = b[offset++];
+				value |= (v & 0x7F) << shift;
+				if (v >= 0) return value;
+			}
+		}
+
+		int readSigned() {
+			int value = readVar();
+			return value >>> 1 ^ -(value & 1);
+		}
+
+		int readInt() {
+			return (b[offset++] & 0xFF) << 24 | (b[offset++] & 0xFF) << 16 | (b[offset++] & 0xFF) << 8
+					| b[offset++] & 0xFF;
+		}
+
+		long readLong() {
+			long high = readInt();
+			return high << 32 | readInt() & 0xFFFFFFFFL;
+		}
+
+		String readUTF() {
+			char[] chars = new char[readVar()];
+			for (int i = 0; i < chars.length; i++) {
+				int c = b[offset++] & 0xFF;
+				if (c < 0x80) {
+					chars[i] = (char) c;
+				} else if (c < 0xE0) {
+					chars[i] = (char) ((c & 0x1F) << 6 | b[offset++] & 0x3F);
+				} else {
+					chars[i] = (char) ((c & 0xF) << 12 | (b[offset++] & 0x3F) << 6 | b[offset++] & 0x3F);
+				}
+			}
+			return new String(chars);
+		}
+
+		Object readSymbol() {
+			int index = readVar();
+			return index == 0 ? null : symbol(index - 1);
+		}
+
+		String readString() {
+			return (String) readSymbol();
+		}
+
+		String[] readStrings() {
+			int n = readVar();
+			if (n == 0) return null;
+			String[] strings = new String[n - 1];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = readString();
+			}
+			return strings;
+		}
+
+		Label readLabel() {
+			int id = readVar();
+			if (id >= labels.length) {
+				labels = Arrays.copyOf(labels, Math.max(labels.length << 1, id + 1));
+			}
+			Label label = labels[id];
+			if (label == null) {
+				label = labels[id] = new Label();
+			}
+			return label;
+		}
+
+		Label[] readLabels() {
+			Label[] labels = new Label[readVar()];
+			for (int i = 0; i < labels.length; i++) {
+				labels[i] = readLabel();
+			}
+			return labels;
+		}
+
+		TypePath readTypePath() {
+			String typePath = readString();
+			return typePath == null ? null : TypePath.fromString(typePath);
+		}
+
+		void readClass(ClassVisitor cv) {
+			for (int event; (event = readByte()) != END; ) {
+				switch (event) {
+					case HEADER:
+						cv.visit(readInt(), readVar(), readString(), readString(), readString(), readStrings());
+						break;
+					case SOURCE:
+						cv.visitSource(readString(), readString());
+						break;
+					case OUTER_CLASS:
+						cv.visitOuterClass(readString(), readString(), readString());
+						break;
+					case ANNOTATION:
+						readAnnotation(cv.visitAnnotation(readString(), readByte() != 0));
+						break;
+					case TYPE_ANNOTATION:
+						readAnnotation(cv.visitTypeAnnotation(readInt(), readTypePath(), readString(), readByte() != 0));
+						break;
+					case INNER_CLASS:
+						cv.visitInnerClass(readString(), readString(), readString(), readVar());
+						break;
+					case FIELD:
+						readField(cv.visitField(readVar(), readString(), readString(), readString(), readSymbol()));
+						break;
+					case METHOD:
+						readMethod(cv.visitMethod(readVar(), readString(), readString(), readString(), readStrings()));
+						break;
+					default:
+						throw new IllegalStateException("Corrupt node archive at " + (offset - 1));
+				}
+			}
+			cv.visitEnd();
+		}
+
+		void readField(FieldVisitor fv) {
+			for (int event; (event = readByte()) != END; ) {
+				if (event == ANNOTATION) {
+					readAnnotation(fv.visitAnnotation(readString(), readByte() != 0));
+				} else if (event == TYPE_ANNOTATION) {
+					readAnnotation(fv.visitTypeAnnotation(readInt(), readTypePath(), readString(), readByte() != 0));
+				} else {
+					throw new IllegalStateException("Corrupt node archive at " + (offset - 1));
+				}
+			}
+			fv.visitEnd();
+		}
+
+		void readAnnotation(AnnotationVisitor av) {
+			for (int event; (event = readByte()) != END; ) {
+				String name = readString();
+				switch (event) {
+					case VALUE:
+						av.visit(name, readSymbol());
+						break;
+					case BYTE:
+						av.visit(name, (byte) readSigned());
+						break;
+					case BOOLEAN:
+						av.visit(name, readByte() != 0);
+						break;
+					case CHAR:
+						av.visit(name, (char) readVar());
+						break;
+					case SHORT:
+						av.visit(name, (short) readSigned());
+						break;
+					case ENUM:
+						av.visitEnum(name, readString(), readString());
+						break;
+					case ANNOTATION:
+						readAnnotation(av.visitAnnotation(name, readString()));
+						break;
+					case ARRAY:
+						readAnnotation(av.visitArray(name));
+						break;
+					default:
+						throw new IllegalStateException("Corrupt node archive at " + (offset - 1));
+				}
+			}
+			av.visitEnd();
+		}
+
+		Object[] readFrame(int n) {
+			if (readByte() == 0) return null;
+			Object[] elements = new Object[n];
+			for (int i = 0; i < n; i++) {
+				int tag = readVar();
+				if (tag == FRAME_TYPE) {
+					elements[i] = readString();
+				} else if (tag == FRAME_LABEL) {
+					elements[i] = readLabel();
+				} else {
+					elements[i] = tag;
+				}
+			}
+			return elements;
+		}
+
+		void readMethod(MethodVisitor mv) {
+			labels = new Label[16];
+			for (int event; (event = readByte()) != END; ) {
+				switch (event) {
+					case PARAMETER:
+						mv.visitParameter(readString(), readVar());
+						break;
+					case ANNOTATION_DEFAULT:
+						readAnnotation(mv.visitAnnotationDefault());
+						break;
+					case ANNOTATION:
+						readAnnotation(mv.visitAnnotation(readString(), readByte() != 0));
+						break;
+					case TYPE_ANNOTATION:
+						readAnnotation(mv.visitTypeAnnotation(readInt(), readTypePath(), readString(), readByte() != 0));
+						break;
+					case PARAMETER_ANNOTATION:
+						readAnnotation(mv.visitParameterAnnotation(readVar(), readString(), readByte() != 0));
+						break;
+					case CODE:
+						mv.visitCode();
+						break;
+					case FRAME: {
+						int type = readSigned();
+						int nLocal = readVar();
+						Object[] local = readFrame(nLocal);
+						int nStack = readVar();
+						mv.visitFrame(type, nLocal, local, nStack, readFrame(nStack));
+						break;
+					}
+					case LABEL:
+						mv.visitLabel(readLabel());
+						break;
+					case INSN_ANNOTATION:
+						readAnnotation(mv.visitInsnAnnotation(readInt(), readTypePath(), readString(), readByte() != 0));
+						break;
+					case TRY_CATCH_BLOCK:
+						mv.visitTryCatchBlock(readLabel(), readLabel(), readLabel(), readString());
+						break;
+					case TRY_CATCH_ANNOTATION:
+						readAnnotation(mv.visitTryCatchAnnotation(readInt(), readTypePath(), readString(),
+								readByte() != 0));
+						break;
+					case LOCAL_VARIABLE:
+						mv.visitLocalVariable(readString(), readString(), readString(), readLabel(), readLabel(), readVar());
+						break;
+					case LOCAL_VARIABLE_ANNOTATION: {
+						int typeRef = readInt();
+						TypePath typePath = readTypePath();
+						String desc = readString();
+						boolean visible = readByte() != 0;
+						Label[] start = readLabels();
+						Label[] end = readLabels();
+						int[] index = new int[start.length];
+						for (int i = 0; i < index.length; i++) {
+							index[i] = readVar();
+						}
+						readAnnotation(mv.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, desc, visible));
+						break;
+					}
+					case LINE_NUMBER:
+						mv.visitLineNumber(readVar(), readLabel());
+						break;
+					case MAXS:
+						mv.visitMaxs(readVar(), readVar());
+						break;
+					default:
+						readInsn(mv, event);
+				}
+			}
+			mv.visitEnd();
+			labels = null;
+		}
+
+		void readInsn(MethodVisitor mv, int opcode) {
+			switch (opcode) {
+				case Opcodes.BIPUSH:
+				case Opcodes.SIPUSH:
+				case Opcodes.NEWARRAY:
+					mv.visitIntInsn(opcode, readSigned());
+					break;
+				case Opcodes.ILOAD:
+				case Opcodes.LLOAD:
+				case Opcodes.FLOAD:
+				case Opcodes.DLOAD:
+				case Opcodes.ALOAD:
+				case Opcodes.ISTORE:
+				case Opcodes.LSTORE:
+				case Opcodes.FSTORE:
+				case Opcodes.DSTORE:
+				case Opcodes.ASTORE:
+				case Opcodes.RET:
+					mv.visitVarInsn(opcode, readVar());
+					break;
+				case Opcodes.NEW:
+				case Opcodes.ANEWARRAY:
+				case Opcodes.CHECKCAST:
+				case Opcodes.INSTANCEOF:
+					mv.visitTypeInsn(opcode, readString());
+					break;
+				case Opcodes.GETSTATIC:
+				case Opcodes.PUTSTATIC:
+				case Opcodes.GETFIELD:
+				case Opcodes.PUTFIELD:
+					mv.visitFieldInsn(opcode, readString(), readString(), readString());
+					break;
+				case Opcodes.INVOKEVIRTUAL:
+				case Opcodes.INVOKESPECIAL:
+				case Opcodes.INVOKESTATIC:
+				case Opcodes.INVOKEINTERFACE:
+					mv.visitMethodInsn(opcode, readString(), readString(), readString());
+					break;
+				case Opcodes.INVOKEDYNAMIC: {
+					String name = readString();
+					String desc = readString();
+					Handle bsm = (Handle) readSymbol();
+					Object[] bsmArgs = new Object[readVar() - 1];
+					for (int i = 0; i < bsmArgs.length; i++) {
+						bsmArgs[i] = readSymbol();
+					}
+					mv.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+					break;
+				}
+				case Opcodes.IFEQ:
+				case Opcodes.IFNE:
+				case Opcodes.IFLT:
+				case Opcodes.IFGE:
+				case Opcodes.IFGT:
+				case Opcodes.IFLE:
+				case Opcodes.IF_ICMPEQ:
+				case Opcodes.IF_ICMPNE:
+				case Opcodes.IF_ICMPLT:
+				case Opcodes.IF_ICMPGE:
+				case Opcodes.IF_ICMPGT:
+				case Opcodes.IF_ICMPLE:
+				case Opcodes.IF_ACMPEQ:
+				case Opcodes.IF_ACMPNE:
+				case Opcodes.GOTO:
+				case Opcodes.JSR:
+				case Opcodes.IFNULL:
+				case Opcodes.IFNONNULL:
+					mv.visitJumpInsn(opcode, readLabel());
+					break;
+				case Opcodes.LDC:
+					mv.visitLdcInsn(readSymbol());
+					break;
+				case Opcodes.IINC:
+					mv.visitIincInsn(readVar(), readSigned());
+					break;
+				case Opcodes.TABLESWITCH:
+					mv.visitTableSwitchInsn(readSigned(), readSigned(), readLabel(), readLabels());
+					break;
+				case Opcodes.LOOKUPSWITCH: {
+					Label dflt = readLabel();
+					int[] keys = new int[readVar()];
+					for (int i = 0; i < keys.length; i++) {
+						keys[i] = readSigned();
+					}
+					mv.visitLookupSwitchInsn(dflt, keys, readLabels());
+					break;
+				}
+				case Opcodes.MULTIANEWARRAY:
+					mv.visitMultiANewArrayInsn(readString(), readVar());
+					break;
+				default:
+					if (opcode >= END) throw new IllegalStateException("Corrupt node archive at " + (offset - 1));
+					mv.visitInsn(opcode);
+			}
+		}
+	}
+}
@@ -7,6 +7,28 @@ import java.util.regex.Pattern;
  */
 public class Stringer {
 
+	private static final BoundedCache<String, Pattern> PATTERNS = new BoundedCache<>(256);
+
+	private static final Matcher EMPTY = new Matcher() {
+		public boolean matches(String string) {
+			return string.isEmpty();
+		}
+	};
+
+	/**
+	 * A compiled matcher sequence. Matchers are immutable and may be shared between threads.
+	 */
+	public interface Matcher {
+
+		/**
+		 * Matches a given string with this matcher.
+		 *
+		 * @param string String to match
+		 * @return <t>true</t> if the string has been matched, otherwise <t>false.</t>
+		 */
+		boolean matches(String string);
+	}
+
 	/**
 	 * Matches a given string with a given matcher sequence.
 	 * @param string String to match
@@ -34,12 +56,77 @@ public class Stringer {
 		} else if (start == '!') {
 			return !string.contains(subbed);
 		} else if (start == '~') {
-			return Pattern.compile(subbed).matcher(string).find();
+			return pattern(subbed).matcher(string).find();
 		} else {
 			return string.equals(matcher);
 		}
 	}
 
+	private static Pattern pattern(String regex) {
+		Pattern pattern = PATTERNS.get(regex);
+		return pattern != null ? pattern : PATTERNS.putIfAbsent(regex, Pattern.compile(regex));
+	}
+
+	/**
+	 * Compiles a matcher sequence into a reusable matcher, so that it is parsed (and its regex compiled)
+	 * once rather than on every {@link #match} call.
+	 * @param matcher Match sequence, with the same operators as {@link #match}.
+	 * @return A matcher that matches strings the same as {@link #match} does with the given sequence.
+	 * @throws java.util.regex.PatternSyntaxException If the sequence is a regex match with invalid syntax.
+	 */
+	public static Matcher compile(final String matcher) {
+		if (matcher.isEmpty()) return EMPTY;
+		final String subbed = matcher.substring(1);
+		switch (matcher.charAt(0)) {
+			case '^':
+				return new Matcher() {
+					public boolean matches(String string) {
+						return string.startsWith(subbed);
+					}
+				};
+			case '$':
+				return new Matcher() {
+					public boolean matches(String string) {
+						return string.endsWith(subbed);
+					}
+				};
+			case '*':
+				return new Matcher() {
+					public boolean matches(String string) {
+						return string.contains(subbed);
+					}
+				};
+			case '|': {
+				final String dashed = subbed + "-";
+				return new Matcher() {
+					public boolean matches(String string) {
+						return string.contains(dashed);
+					}
+				};
+			}
+			case '!':
+				return new Matcher() {
+					public boolean matches(String string) {
+						return !string.contains(subbed);
+					}
+				};
+			case '~': {
+				final Pattern pattern = Pattern.compile(subbed);
+				return new Matcher() {
+					public boolean matches(String string) {
+						return pattern.matcher(string).find();
+					}
+				};
+			}
+			default:
+				return new Matcher() {
+					public boolean matches(String string) {
+						return string.equals(matcher);
+					}
+				};
+		}
+	}
+
 	/**
 	 * Formats the string in sequential order, replacing the value '%s'.
 	 * @param string The string to format
@@ -0,0 +1,299 @@
+package org.sasm.util;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.*;
+
+import java.util.*;
+
+/**
+ * An inverted index from fields and methods (owner, name and desc) to the instructions that access or
+ * invoke them. The index listens to the instruction list of every indexed method, so instructions that
+ * are added or removed afterwards are picked up without another scan. Edits the lists do not see, such
+ * as renaming a member of an indexed instruction, assigning a new instruction list or adding methods,
+ * must be reported through {@link #update} and {@link #reindex}. <i>This implementation is not thread safe</i>.
+ *
+ * @author Tyler Sedlar
+ */
+public class UsageIndex {
+
+	private final Map<String, Map<AbstractInsnNode, Usage>> usages = new HashMap<>();
+	private final Map<AbstractInsnNode, Usage> sites = new IdentityHashMap<>();
+	private final Map<MethodNode, MethodListener> listeners = new IdentityHashMap<>();
+	private final Map<ClassNode, List<MethodListener>> classes = new IdentityHashMap<>();
+
+	/**
+	 * A single access to a field or invocation of a method.
+	 */
+	public static final class Usage {
+
+		public final ClassNode owner;
+		public final MethodNode method;
+		public final AbstractInsnNode insn;
+		private String key;
+
+		private Usage(ClassNode owner, MethodNode method, AbstractInsnNode insn, String key) {
+			this.owner = owner;
+			this.method = method;
+			this.insn = insn;
+			this.key = key;
+		}
+
+		@Override
+		public String toString() {
+			return owner.name + "." + method.name + method.desc + " -> " + key;
+		}
+	}
+
+	private class MethodListener implements InsnListListener {
+
+		private final ClassNode cn;
+		private final MethodNode mn;
+		private final InsnList list;
+
+		private MethodListener(ClassNode cn, MethodNode mn) {
+			this.cn = cn;
+			this.mn = mn;
+			this.list = mn.instructions;
+		}
+
+		@Override
+		public void inserted(InsnList list, AbstractInsnNode insn) {
+			add(cn, mn, insn);
+		}
+
+		@Override
+		public void removed(InsnList list, AbstractInsnNode insn) {
+			remove(insn);
+		}
+	}
+
+	/**
+	 * Creates an index of the usages within the given classes.
+	 *
+	 * @param classes A map of classes to index.
+	 */
+	public UsageIndex(Map<String, ClassNode> classes) {
+		for (ClassNode cn : classes.values()) reindex(cn);
+	}
+
+	private static String key(AbstractInsnNode ain) {
+		if (ain instanceof FieldInsnNode) {
+			FieldInsnNode fin = (FieldInsnNode) ain;
+			return key(fin.owner, fin.name, fin.desc);
+		} else if (ain instanceof MethodInsnNode) {
+			MethodInsnNode min = (MethodInsnNode) ain;
+			return key(min.owner, min.name, min.desc);
+		}
+		return null;
+	}
+
+	private static String key(String owner, String name, String desc) {
+		return owner + "." + name + desc;
+	}
+
+	private void add(ClassNode cn, MethodNode mn, AbstractInsnNode ain) {
+		String key = key(ain);
+		if (key == null) return;
+		Usage usage = new Usage(cn, mn, ain, key);
+		Usage old = sites.put(ain, usage);
+		if (old != null) unlink(old);
+		link(usage);
+	}
+
+	private void remove(AbstractInsnNode ain) {
+		Usage usage = sites.remove(ain);
+		if (usage != null) unlink(usage);
+	}
+
+	private void link(Usage usage) {
+		Map<AbstractInsnNode, Usage> insns = usages.get(usage.key);
+		if (insns == null) usages.put(usage.key, insns = new LinkedHashMap<>());
+		insns.put(usage.insn, usage);
+	}
+
+	private void unlink(Usage usage) {
+		Map<AbstractInsnNode, Usage> insns = usages.get(usage.key);
+		if (insns == null) return;
+		insns.remove(usage.insn);
+		if (insns.isEmpty()) usages.remove(usage.key);
+	}
+
+	private void index(ClassNode cn, MethodNode mn) {
+		MethodListener listener = new MethodListener(cn, mn);
+		for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			add(cn, mn, ain);
+		}
+		mn.instructions.addListener(listener);
+		listeners.put(mn, listener);
+		List<MethodListener> methods = classes.get(cn);
+		if (methods == null) classes.put(cn, methods = new ArrayList<>());
+		methods.add(listener);
+	}
+
+	private void unindex(MethodListener listener) {
+		listener.list.removeListener(listener);
+		listeners.remove(listener.mn);
+		for (AbstractInsnNode ain = listener.list.getFirst(); ain != null; ain = ain.getNext()) {
+			Usage usage = sites.get(ain);
+			// the same instruction may have been moved into another indexed method since
+			if (usage != null && usage.method == listener.mn) remove(ain);
+		}
+	}
+
+	/**
+	 * Indexes the given class again, picking up added, removed or replaced methods and instruction lists.
+	 * A class that is not yet part of the index is added to it.
+	 *
+	 * @param cn The class to index.
+	 */
+	public void reindex(ClassNode cn) {
+		remove(cn);
+		for (MethodNode mn : cn.methods) index(cn, mn);
+	}
+
+	/**
+	 * Indexes the given method again, picking up a replaced instruction list.
+	 *
+	 * @param cn The class that owns the method.
+	 * @param mn The method to index.
+	 */
+	public void reindex(ClassNode cn, MethodNode mn) {
+		MethodListener listener = listeners.get(mn);
+		if (listener != null) {
+			unindex(listener);
+			List<MethodListener> methods = classes.get(listener.cn);
+			methods.remove(listener);
+			if (methods.isEmpty()) classes.remove(listener.cn);
+		}
+		index(cn, mn);
+	}
+
+	/**
+	 * Removes the given class from the index and stops listening to its methods.
+	 *
+	 * @param cn The class to remove.
+	 */
+	public void remove(ClassNode cn) {
+		List<MethodListener> methods = classes.remove(cn);
+		if (methods == null) return;
+		for (MethodListener listener : methods) unindex(listener);
+	}
+
+	/**
+	 * Updates the index after the owner, name or desc of an indexed instruction was changed.
+	 *
+	 * @param ain The changed instruction.
+	 */
+	public void update(AbstractInsnNode ain) {
+		Usage usage = sites.get(ain);
+		if (usage == null) return;
+		String key = key(ain);
+		if (key.equals(usage.key)) return;
+		unlink(usage);
+		usage.key = key;
+		link(usage);
+	}
+
+	/**
+	 * Stops listening to every indexed method and empties the index.
+	 */
+	public void detach() {
+		for (MethodListener listener : listeners.values()) listener.list.removeListener(listener);
+		listeners.clear();
+		classes.clear();
+		sites.clear();
+		usages.clear();
+	}
+
+	/**
+	 * Gets the amount of indexed instructions.
+	 *
+	 * @return The amount of indexed instructions.
+	 */
+	public int size() {
+		return sites.size();
+	}
+
+	/**
+	 * Checks whether the given member is accessed or invoked anywhere.
+	 *
+	 * @param owner The owner of the member.
+	 * @param name The name of the member.
+	 * @param desc The desc of the member.
+	 * @return <t>true</t> if the member has a usage, otherwise <t>false</t>.
+	 */
+	public boolean isUsed(String owner, String name, String desc) {
+		return usages.containsKey(key(owner, name, desc));
+	}
+
+	/**
+	 * Gets the usage of the given instruction.
+	 *
+	 * @param ain The instruction to look up.
+	 * @return The usage of the instruction, or <tt>null</tt> if it is not indexed.
+	 */
+	public Usage getUsage(AbstractInsnNode ain) {
+		return sites.get(ain);
+	}
+
+	/**
+	 * Gets every access to or invocation of the given member.
+	 *
+	 * @param owner The owner of the member.
+	 * @param name The name of the member.
+	 * @param desc The desc of the member.
+	 * @return A List of the member's usages, in the order they were indexed.
+	 */
+	public List<Usage> getUsages(String owner, String name, String desc) {
+		Map<AbstractInsnNode, Usage> insns = usages.get(key(owner, name, desc));
+		return insns == null ? new ArrayList<Usage>() : new ArrayList<>(insns.values());
+	}
+
+	/**
+	 * Gets the GETFIELD and GETSTATIC instructions reading the given field.
+	 *
+	 * @param owner The owner of the field.
+	 * @param name The name of the field.
+	 * @param desc The desc of the field.
+	 * @return A List of the field's reads.
+	 */
+	public List<Usage> getReads(String owner, String name, String desc) {
+		return filter(getUsages(owner, name, desc), Opcodes.GETSTATIC, Opcodes.GETFIELD);
+	}
+
+	/**
+	 * Gets the PUTFIELD and PUTSTATIC instructions writing the given field.
+	 *
+	 * @param owner The owner of the field.
+	 * @param name The name of the field.
+	 * @param desc The desc of the field.
+	 * @return A List of the field's writes.
+	 */
+	public List<Usage> getWrites(String owner, String name, String desc) {
+		return filter(getUsages(owner, name, desc), Opcodes.PUTSTATIC, Opcodes.PUTFIELD);
+	}
+
+	/**
+	 * Gets the instructions invoking the given method.
+	 *
+	 * @param owner The owner of the method.
+	 * @param name The name of the method.
+	 * @param desc The desc of the method.
+	 * @return A List of the method's calls.
+	 */
+	public List<Usage> getCalls(String owner, String name, String desc) {
+		return filter(getUsages(owner, name, desc), Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL,
+				Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE);
+	}
+
+	private static List<Usage> filter(List<Usage> usages, int... opcodes) {
+		Iterator<Usage> it = usages.iterator();
+		while (it.hasNext()) {
+			int opcode = it.next().insn.getOpcode();
+			boolean accepted = false;
+			for (int op : opcodes) accepted |= opcode == op;
+			if (!accepted) it.remove();
+		}
+		return usages;
+	}
+}
@@ -0,0 +1,371 @@
+package org.sasm.util;
+
+import org.sasm.tree.*;
+
+import java.util.*;
+
+/**
+ * A versioned set of classes, edited by one writer thread while any amount of reader threads query
+ * published versions of it. A published {@link Version} is never modified: readers traverse, search
+ * and index its classes without locks, and keep a consistent view however long they hold it.
+ * <p>
+ * The writer prepares the next version through {@link #edit(String)} and
+ * {@link #edit(String, String, String)}, which copy a class or a single method on their first edit
+ * since the last publication, and makes it visible with {@link #publish}. Classes and methods that
+ * were not edited are shared between versions, so a version costs as much as the code edited for it.
+ * A class copied for a single method gets shells of its other methods, owned by the copy, which share
+ * their code with the published methods; the instructions of a shell still give the published method
+ * from {@link AbstractInsnNode#getMethod}. Annotations and attributes are always shared and must not be
+ * modified.
+ * <p>
+ * Only the writer may call the methods of this workspace other than {@link #current}. Readers must
+ * not modify published classes, which includes writing them through <tt>accept</tt>, since it
+ * resets the labels of their methods; a published class must be written by one thread at a time.
+ *
+ * @author Tyler Sedlar
+ */
+public class Workspace {
+
+	/**
+	 * An immutable version of the classes of a workspace.
+	 */
+	public static final class Version {
+
+		private final long number;
+		private final Map<String, ClassNode> classes;
+
+		private Version(long number, Map<String, ClassNode> classes) {
+			this.number = number;
+			this.classes = Collections.unmodifiableMap(classes);
+		}
+
+		/**
+		 * Gets the number of this version, which is 0 for the classes the workspace was created with.
+		 *
+		 * @return The number of this version.
+		 */
+		public long getNumber() {
+			return number;
+		}
+
+		/**
+		 * Gets an unmodifiable view of the classes of this version. The classes must not be modified.
+		 *
+		 * @return The classes of this version.
+		 */
+		public Map<String, ClassNode> getClasses() {
+			return classes;
+		}
+
+		/**
+		 * Gets the class with the given name.
+		 *
+		 * @param name The name of the class.
+		 * @return The class with the given name, or <tt>null</tt>.
+		 */
+		public ClassNode get(String name) {
+			return classes.get(name);
+		}
+	}
+
+	private volatile Version current;
+	private final Map<String, ClassNode> next;
+	private final Set<ClassNode> copiedClasses = Collections.newSetFromMap(new IdentityHashMap<ClassNode, Boolean>());
+	private final Set<MethodNode> copiedMethods = Collections.newSetFromMap(new IdentityHashMap<MethodNode, Boolean>());
+
+	/**
+	 * Creates a workspace whose first version holds the given classes. The classes must no longer be
+	 * modified other than through this workspace.
+	 *
+	 * @param classes The classes of the first version.
+	 */
+	public Workspace(Map<String, ClassNode> classes) {
+		this.next = new HashMap<>(classes);
+		for (ClassNode cn : next.values()) {
+			prepare(cn);
+		}
+		this.current = new Version(0, new HashMap<>(next));
+	}
+
+	/**
+	 * Gets the last published version. This is the only method readers may call.
+	 *
+	 * @return The last published version.
+	 */
+	public Version current() {
+		return current;
+	}
+
+	/**
+	 * Gets the class with the given name in the next version, without copying it. The class must not
+	 * be modified unless it was returned by {@link #edit(String)}.
+	 *
+	 * @param name The name of the class.
+	 * @return The class with the given name, or <tt>null</tt>.
+	 */
+	public ClassNode get(String name) {
+		return next.get(name);
+	}
+
+	/**
+	 * Gets the names of the classes of the next version.
+	 *
+	 * @return An unmodifiable view of the names of the classes.
+	 */
+	public Set<String> names() {
+		return Collections.unmodifiableSet(next.keySet());
+	}
+
+	/**
+	 * Gets the class with the given name in the next version, copying it and all of its methods if
+	 * they are shared with the published version.
+	 *
+	 * @param name The name of the class.
+	 * @return The class with the given name, which may be modified, or <tt>null</tt>.
+	 */
+	public ClassNode edit(String name) {
+		ClassNode cn = copyClass(name);
+		if (cn != null) {
+			for (int i = 0; i < cn.methods.size(); i++) {
+				copyMethod(cn, i);
+			}
+		}
+		return cn;
+	}
+
+	/**
+	 * Gets a method of the class with the given name in the next version, copying it and the class
+	 * itself if they are shared with the published version. The other methods of the class share their
+	 * code with the published version and must not be modified. The fields and header of the class may
+	 * be modified.
+	 *
+	 * @param owner The name of the class.
+	 * @param name The name of the method.
+	 * @param desc The descriptor of the method.
+	 * @return The method, which may be modified, or <tt>null</tt>.
+	 */
+	public MethodNode edit(String owner, String name, String desc) {
+		ClassNode cn = copyClass(owner);
+		if (cn == null) return null;
+		MethodNode mn = cn.getMethod(name, desc);
+		return mn == null ? null : copyMethod(cn, cn.methods.indexOf(mn));
+	}
+
+	/**
+	 * Adds or replaces a class of the next version. The class must no longer be modified other than
+	 * through this workspace.
+	 *
+	 * @param cn The class to add.
+	 * @return The class it replaces, or <tt>null</tt>.
+	 */
+	public ClassNode put(ClassNode cn) {
+		copiedClasses.add(cn);
+		copiedMethods.addAll(cn.methods);
+		return next.put(cn.name, cn);
+	}
+
+	/**
+	 * Removes a class from the next version.
+	 *
+	 * @param name The name of the class.
+	 * @return The removed class, or <tt>null</tt>.
+	 */
+	public ClassNode remove(String name) {
+		return next.remove(name);
+	}
+
+	/**
+	 * Publishes the next version, which readers see from their next call to {@link #current}.
+	 * Classes and methods edited so far are shared with the published version, and are copied again
+	 * on their next edit.
+	 *
+	 * @return The published version.
+	 */
+	public Version publish() {
+		for (ClassNode cn : copiedClasses) {
+			if (next.get(cn.name) == cn) prepare(cn);
+		}
+		copiedClasses.clear();
+		copiedMethods.clear();
+		Version version = new Version(current.number + 1, new HashMap<>(next));
+		current = version;
+		return version;
+	}
+
+	/**
+	 * Discards the edits made since the last publication.
+	 */
+	public void discard() {
+		copiedClasses.clear();
+		copiedMethods.clear();
+		next.clear();
+		next.putAll(current.classes);
+	}
+
+	/**
+	 * Fills the caches that the given class builds on demand, before it is published: the member index,
+	 * and the index cache and opcode summary of each method. The index cache is filled in place, so
+	 * readers of a published version must only read it. The member index and summaries are immutable
+	 * and safe to rebuild from any thread, but building them here spares the readers the work.
+	 */
+	private static void prepare(ClassNode cn) {
+		// any lookup builds the member indexes
+		cn.getMethod("", "");
+		cn.getField("", "");
+		for (MethodNode mn : cn.methods) {
+			InsnList insns = mn.instructions;
+			if (insns.size() > 0) insns.get(insns.size() - 1);
+			insns.getSummary();
+		}
+	}
+
+	private ClassNode copyClass(String name) {
+		ClassNode cn = next.get(name);
+		if (cn == null || copiedClasses.contains(cn)) return cn;
+		ClassNode copy = new ClassNode();
+		copy.version = cn.version;
+		copy.access = cn.access;
+		copy.name = cn.name;
+		copy.signature = cn.signature;
+		copy.superName = cn.superName;
+		copy.interfaces.addAll(cn.interfaces);
+		copy.sourceFile = cn.sourceFile;
+		copy.sourceDebug = cn.sourceDebug;
+		copy.outerClass = cn.outerClass;
+		copy.outerMethod = cn.outerMethod;
+		copy.outerMethodDesc = cn.outerMethodDesc;
+		copy.visibleAnnotations = copy(cn.visibleAnnotations);
+		copy.invisibleAnnotations = copy(cn.invisibleAnnotations);
+		copy.visibleTypeAnnotations = copy(cn.visibleTypeAnnotations);
+		copy.invisibleTypeAnnotations = copy(cn.invisibleTypeAnnotations);
+		copy.attrs = copy(cn.attrs);
+		copy.innerClasses.addAll(cn.innerClasses);
+		for (FieldNode fn : cn.fields) {
+			FieldNode field = new FieldNode(fn.access, fn.name, fn.desc, fn.signature, fn.value);
+			field.owner = copy;
+			field.visibleAnnotations = copy(fn.visibleAnnotations);
+			field.invisibleAnnotations = copy(fn.invisibleAnnotations);
+			field.visibleTypeAnnotations = copy(fn.visibleTypeAnnotations);
+			field.invisibleTypeAnnotations = copy(fn.invisibleTypeAnnotations);
+			field.attrs = copy(fn.attrs);
+			copy.fields.add(field);
+		}
+		for (MethodNode mn : cn.methods) {
+			copy.methods.add(shell(copy, mn));
+		}
+		copiedClasses.add(copy);
+		next.put(name, copy);
+		return copy;
+	}
+
+	/**
+	 * Creates a method of the given copied class that shares everything but its owner with the given
+	 * method. It is copied by {@link #copyMethod} before it is edited.
+	 */
+	private static MethodNode shell(ClassNode cn, MethodNode mn) {
+		MethodNode shell = new MethodNode(mn.access, mn.name, mn.desc, mn.signature, null);
+		shell.owner = cn;
+		shell.exceptions = mn.exceptions;
+		shell.parameters = mn.parameters;
+		shell.visibleAnnotations = mn.visibleAnnotations;
+		shell.invisibleAnnotations = mn.invisibleAnnotations;
+		shell.visibleTypeAnnotations = mn.visibleTypeAnnotations;
+		shell.invisibleTypeAnnotations = mn.invisibleTypeAnnotations;
+		shell.attrs = mn.attrs;
+		shell.annotationDefault = mn.annotationDefault;
+		shell.visibleParameterAnnotations = mn.visibleParameterAnnotations;
+		shell.invisibleParameterAnnotations = mn.invisibleParameterAnnotations;
+		shell.instructions = mn.instructions;
+		shell.tryCatchBlocks = mn.tryCatchBlocks;
+		shell.maxStack = mn.maxStack;
+		shell.maxLocals = mn.maxLocals;
+		shell.localVariables = mn.localVariables;
+		shell.visibleLocalVariableAnnotations = mn.visibleLocalVariableAnnotations;
+		shell.invisibleLocalVariableAnnotations = mn.invisibleLocalVariableAnnotations;
+		return shell;
+	}
+
+	/**
+	 * Copies the method at the given index of a copied class, unless it was already copied.
+	 */
+	private MethodNode copyMethod(ClassNode cn, int index) {
+		MethodNode mn = cn.methods.get(index);
+		if (copiedMethods.contains(mn)) return mn;
+		MethodNode copy = new MethodNode(mn.access, mn.name, mn.desc, mn.signature, null);
+		copy.owner = cn;
+		copy.exceptions = copy(mn.exceptions);
+		copy.parameters = copy(mn.parameters);
+		copy.visibleAnnotations = copy(mn.visibleAnnotations);
+		copy.invisibleAnnotations = copy(mn.invisibleAnnotations);
+		copy.visibleTypeAnnotations = copy(mn.visibleTypeAnnotations);
+		copy.invisibleTypeAnnotations = copy(mn.invisibleTypeAnnotations);
+		copy.attrs = copy(mn.attrs);
+		copy.annotationDefault = mn.annotationDefault;
+		copy.visibleParameterAnnotations = mn.visibleParameterAnnotations == null ? null :
+				mn.visibleParameterAnnotations.clone();
+		copy.invisibleParameterAnnotations = mn.invisibleParameterAnnotations == null ? null :
+				mn.invisibleParameterAnnotations.clone();
+		// clones the code without visiting it, which would reset the labels readers may be using
+		Map<LabelNode, LabelNode> labels = new HashMap<>();
+		for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			if (ain instanceof LabelNode) labels.put((LabelNode) ain, new LabelNode());
+		}
+		for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			copy.instructions.add(ain.clone(labels));
+		}
+		if (mn.tryCatchBlocks == null) {
+			copy.tryCatchBlocks = null;
+		} else {
+			copy.tryCatchBlocks = new ArrayList<>(mn.tryCatchBlocks.size());
+			for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+				TryCatchBlockNode block = new TryCatchBlockNode(labels.get(tcb.start), labels.get(tcb.end),
+						labels.get(tcb.handler), tcb.type);
+				block.visibleTypeAnnotations = copy(tcb.visibleTypeAnnotations);
+				block.invisibleTypeAnnotations = copy(tcb.invisibleTypeAnnotations);
+				copy.tryCatchBlocks.add(block);
+			}
+		}
+		copy.maxStack = mn.maxStack;
+		copy.maxLocals = mn.maxLocals;
+		if (mn.localVariables == null) {
+			copy.localVariables = null;
+		} else {
+			copy.localVariables = new ArrayList<>(mn.localVariables.size());
+			for (LocalVariableNode lvn : mn.localVariables) {
+				copy.localVariables.add(new LocalVariableNode(lvn.name, lvn.desc, lvn.signature,
+						labels.get(lvn.start), labels.get(lvn.end), lvn.index));
+			}
+		}
+		copy.visibleLocalVariableAnnotations = copy(mn.visibleLocalVariableAnnotations, labels);
+		copy.invisibleLocalVariableAnnotations = copy(mn.invisibleLocalVariableAnnotations, labels);
+		cn.methods.set(index, copy);
+		copiedMethods.add(copy);
+		return copy;
+	}
+
+	private static <T> List<T> copy(List<T> list) {
+		return list == null ? null : new ArrayList<>(list);
+	}
+
+	private static List<LocalVariableAnnotationNode> copy(List<LocalVariableAnnotationNode> list,
+	                                                      Map<LabelNode, LabelNode> labels) {
+		if (list == null) return null;
+		List<LocalVariableAnnotationNode> copy = new ArrayList<>(list.size());
+		for (LocalVariableAnnotationNode lvan : list) {
+			int size = lvan.index.size();
+			LabelNode[] start = new LabelNode[size];
+			LabelNode[] end = new LabelNode[size];
+			int[] index = new int[size];
+			for (int i = 0; i < size; i++) {
+				start[i] = labels.get(lvan.start.get(i));
+				end[i] = labels.get(lvan.end.get(i));
+				index[i] = lvan.index.get(i);
+			}
+			LocalVariableAnnotationNode annotation = new LocalVariableAnnotationNode(lvan.typeRef, lvan.typePath,
+					start, end, index, lvan.desc);
+			annotation.values = lvan.values;
+			copy.add(annotation);
+		}
+		return copy;
+	}
+}
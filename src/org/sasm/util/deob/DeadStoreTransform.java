@@ -0,0 +1,87 @@
+package org.sasm.util.deob;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.*;
+import org.sasm.util.deob.flow.FlowGraph;
+import org.sasm.util.deob.flow.Liveness;
+
+import java.util.Map;
+
+/**
+ * @author Tyler Sedlar
+ */
+public class DeadStoreTransform extends Transform {
+
+	/**
+	 * Replaces every store to a local variable that is never read afterwards
+	 * with a pop of the stored value, and removes every dead IINC.
+	 *
+	 * @param classes A map of classes to search within.
+	 */
+    @Override
+    public void transform(Map<String, ClassNode> classes) {
+        int removed = 0;
+        int total = 0;
+        long start = System.nanoTime();
+        for (ClassNode cn : classes.values()) {
+            for (MethodNode mn : cn.methods) {
+                Liveness liveness = Liveness.compute(mn);
+                if (liveness == null) continue;
+                total += count(mn);
+                removed += apply(mn, liveness);
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("Removed " + removed + "/" + total + " dead stores in " +
+                String.format("%.2f", (end - start) / 1e9) + " secs");
+    }
+
+	/**
+	 * Removes the dead stores of the given method.
+	 *
+	 * @param mn The method to remove dead stores from.
+	 * @param liveness The liveness of the method's locals.
+	 * @return The amount of stores removed.
+	 */
+    public static int apply(MethodNode mn, Liveness liveness) {
+        FlowGraph graph = liveness.graph;
+        InsnEditor editor = new InsnEditor(mn.instructions);
+        int removed = 0;
+        for (int b = 0; b < graph.size(); b++) {
+            long[] live = liveness.getLiveOut(b);
+            long[] handlerLive = liveness.getHandlerLive(b);
+            for (int i = graph.starts[b + 1] - 1; i >= graph.starts[b]; i--) {
+                AbstractInsnNode ain = graph.insns[i];
+                int var = Liveness.var(ain);
+                if (var == -1) continue;
+                if (handlerLive != null) Liveness.or(live, 0, handlerLive, 0, live.length);
+                int opcode = ain.getOpcode();
+                if (opcode == Opcodes.IINC) {
+                    if (!Liveness.get(live, 0, var)) {
+                        editor.remove(ain);
+                        removed++;
+                        continue;
+                    }
+                } else if (Liveness.isStore(opcode)) {
+                    int size = Liveness.size(opcode);
+                    if (!Liveness.get(live, 0, var) && (size == 1 || !Liveness.get(live, 0, var + 1))) {
+                        editor.set(ain, new InsnNode(size == 2 ? Opcodes.POP2 : Opcodes.POP));
+                        removed++;
+                        continue;
+                    }
+                }
+                Liveness.transfer(ain, live);
+            }
+        }
+        editor.apply();
+        return removed;
+    }
+
+    private static int count(MethodNode mn) {
+        int count = 0;
+        for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+            if (ain.getOpcode() == Opcodes.IINC || Liveness.isStore(ain.getOpcode())) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,38 @@
+package org.sasm.util.deob;
+
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.MethodNode;
+import org.sasm.util.deob.flow.FlowVisitor;
+
+import java.util.Map;
+
+/**
+ * @author Tyler Sedlar
+ */
+public class FlowTransform extends Transform {
+
+	/**
+	 * Threads GOTO chains, removes unreachable blocks and reorders the blocks of
+	 * every method for fall-through (see {@link FlowVisitor}).
+	 *
+	 * @param classes A map of classes to search within.
+	 */
+    @Override
+    public void transform(Map<String, ClassNode> classes) {
+        int threaded = 0;
+        int gotos = 0;
+        int unreachable = 0;
+        long start = System.nanoTime();
+        for (ClassNode cn : classes.values()) {
+            for (MethodNode mn : cn.methods) {
+                FlowVisitor flow = new FlowVisitor(mn);
+                threaded += flow.threaded;
+                gotos += flow.gotos;
+                unreachable += flow.unreachable;
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("Threaded " + threaded + " jumps, removed " + gotos + " gotos and " + unreachable +
+                " unreachable blocks in " + String.format("%.2f", (end - start) / 1e9) + " secs");
+    }
+}
@@ -0,0 +1,221 @@
+package org.sasm.util.deob;
+
+import org.sasm.tree.*;
+import org.sasm.util.deob.flow.FlowGraph;
+import org.sasm.util.deob.flow.Liveness;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Tyler Sedlar
+ */
+public class LocalCompactionTransform extends Transform {
+
+    private static final int NARROW = 1, WIDE_LOW = 2, WIDE_HIGH = 4;
+
+	/**
+	 * Renumbers the local variables of every method so that locals which are
+	 * never live at the same time share a slot, and shrinks maxLocals to match.
+	 * Methods carrying stack map frames are skipped, since their frames would
+	 * need to be recomputed.
+	 *
+	 * @param classes A map of classes to search within.
+	 */
+    @Override
+    public void transform(Map<String, ClassNode> classes) {
+        int before = 0;
+        int after = 0;
+        long start = System.nanoTime();
+        for (ClassNode cn : classes.values()) {
+            for (MethodNode mn : cn.methods) {
+                Liveness liveness = Liveness.compute(mn);
+                if (liveness == null || hasFrames(mn)) continue;
+                before += mn.maxLocals;
+                apply(mn, liveness);
+                after += mn.maxLocals;
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("Compacted " + before + " local slots to " + after + " in " +
+                String.format("%.2f", (end - start) / 1e9) + " secs");
+    }
+
+	/**
+	 * Compacts the local variable slots of the given method.
+	 *
+	 * @param mn The method to compact.
+	 * @param liveness The liveness of the method's locals.
+	 * @return <t>true</t> if any slot was renumbered, otherwise <t>false.</t>
+	 */
+    public static boolean apply(MethodNode mn, Liveness liveness) {
+        FlowGraph graph = liveness.graph;
+        int locals = liveness.locals;
+        int args = Liveness.argumentSize(mn);
+        int[] roles = new int[locals + 1];
+        for (AbstractInsnNode ain : graph.insns) {
+            int var = Liveness.var(ain);
+            if (var == -1) continue;
+            if (Liveness.size(ain.getOpcode()) == 2) {
+                roles[var] |= WIDE_LOW;
+                roles[var + 1] |= WIDE_HIGH;
+            } else {
+                roles[var] |= NARROW;
+            }
+        }
+        // slots used with conflicting widths keep their numbers, along with the other half of their pairs
+        boolean[] pinned = new boolean[locals + 1];
+        for (int i = 0; i < args; i++) pinned[i] = true;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < locals; i++) {
+                int role = roles[i];
+                boolean pin = pinned[i] || (role != 0 && Integer.bitCount(role) > 1);
+                if (!pin) continue;
+                if (!pinned[i]) {
+                    pinned[i] = true;
+                    changed = true;
+                }
+                if ((role & WIDE_LOW) != 0 && !pinned[i + 1]) {
+                    pinned[i + 1] = true;
+                    changed = true;
+                }
+                if ((role & WIDE_HIGH) != 0 && i > 0 && !pinned[i - 1]) {
+                    pinned[i - 1] = true;
+                    changed = true;
+                }
+            }
+        }
+        int[] unitOf = new int[locals + 1];
+        int[] unitSlot = new int[locals];
+        int[] unitWidth = new int[locals];
+        int units = 0;
+        for (int i = 0; i < locals; i++) {
+            unitOf[i] = -1;
+            if (pinned[i] || roles[i] == 0) continue;
+            if (roles[i] == WIDE_HIGH) {
+                unitOf[i] = unitOf[i - 1];
+                continue;
+            }
+            unitSlot[units] = i;
+            unitWidth[units] = roles[i] == WIDE_LOW ? 2 : 1;
+            unitOf[i] = units++;
+        }
+        if (units == 0) return false;
+        int unitWords = (units + 63) >>> 6;
+        long[] interference = new long[units * unitWords];
+        for (int b = 0; b < graph.size(); b++) {
+            long[] live = liveness.getLiveOut(b);
+            long[] handlerLive = liveness.getHandlerLive(b);
+            for (int i = graph.starts[b + 1] - 1; i >= graph.starts[b]; i--) {
+                AbstractInsnNode ain = graph.insns[i];
+                int var = Liveness.var(ain);
+                if (var == -1) continue;
+                if (handlerLive != null) Liveness.or(live, 0, handlerLive, 0, live.length);
+                int unit = unitOf[var];
+                if (unit != -1 && (Liveness.isStore(ain.getOpcode()) || ain instanceof IincInsnNode)) {
+                    for (int w = 0; w < live.length; w++) {
+                        long word = live[w];
+                        while (word != 0) {
+                            int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                            word &= word - 1;
+                            int other = slotUnit(unitOf, slot);
+                            if (other != -1 && other != unit) {
+                                Liveness.set(interference, unit * unitWords, other);
+                                Liveness.set(interference, other * unitWords, unit);
+                            }
+                        }
+                    }
+                }
+                Liveness.transfer(ain, live);
+            }
+        }
+        int[] color = new int[units];
+        boolean[] taken = new boolean[(locals << 1) + 2];
+        boolean renumbered = false;
+        for (int u = 0; u < units; u++) {
+            for (int i = 0; i < taken.length; i++) taken[i] = i < pinned.length && pinned[i];
+            int offset = u * unitWords;
+            for (int v = 0; v < u; v++) {
+                if (Liveness.get(interference, offset, v)) {
+                    for (int j = 0; j < unitWidth[v]; j++) taken[color[v] + j] = true;
+                }
+            }
+            int c = 0;
+            while (taken[c] || (unitWidth[u] == 2 && taken[c + 1])) c++;
+            color[u] = c;
+            if (c != unitSlot[u]) renumbered = true;
+        }
+        int maxLocals = args;
+        int[] map = new int[locals + 1];
+        for (int i = 0; i < locals; i++) {
+            if (pinned[i]) {
+                map[i] = roles[i] == 0 && i >= args ? -1 : i;
+                if (map[i] != -1) maxLocals = Math.max(maxLocals, i + 1);
+            } else {
+                int unit = unitOf[i];
+                map[i] = unit == -1 ? -1 : color[unit] + (i - unitSlot[unit]);
+                if (map[i] != -1) maxLocals = Math.max(maxLocals, map[i] + 1);
+            }
+        }
+        if (maxLocals > locals || (maxLocals == locals && !renumbered)) return false;
+        for (AbstractInsnNode ain : graph.insns) {
+            if (ain instanceof VarInsnNode) {
+                VarInsnNode vin = (VarInsnNode) ain;
+                mn.instructions.save(vin);
+                vin.var = map[vin.var];
+            } else if (ain instanceof IincInsnNode) {
+                IincInsnNode iin = (IincInsnNode) ain;
+                mn.instructions.save(iin);
+                iin.var = map[iin.var];
+            }
+        }
+        if (mn.localVariables != null) {
+            Iterator<LocalVariableNode> it = mn.localVariables.iterator();
+            while (it.hasNext()) {
+                LocalVariableNode lvn = it.next();
+                int slot = lvn.index < map.length ? map[lvn.index] : -1;
+                if (slot == -1) {
+                    it.remove();
+                } else {
+                    lvn.index = slot;
+                }
+            }
+        }
+        remap(mn.visibleLocalVariableAnnotations, map);
+        remap(mn.invisibleLocalVariableAnnotations, map);
+        boolean shrunk = maxLocals < mn.maxLocals;
+        mn.maxLocals = maxLocals;
+        return renumbered || shrunk;
+    }
+
+    private static int slotUnit(int[] unitOf, int slot) {
+        return slot < unitOf.length ? unitOf[slot] : -1;
+    }
+
+    private static void remap(List<LocalVariableAnnotationNode> annotations, int[] map) {
+        if (annotations == null) return;
+        Iterator<LocalVariableAnnotationNode> it = annotations.iterator();
+        loop: while (it.hasNext()) {
+            LocalVariableAnnotationNode an = it.next();
+            for (int i = 0; i < an.index.size(); i++) {
+                int index = an.index.get(i);
+                int slot = index < map.length ? map[index] : -1;
+                if (slot == -1) {
+                    it.remove();
+                    continue loop;
+                }
+                an.index.set(i, slot);
+            }
+        }
+    }
+
+    private static boolean hasFrames(MethodNode mn) {
+        for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+            if (ain.getType() == AbstractInsnNode.FRAME) return true;
+        }
+        return false;
+    }
+}
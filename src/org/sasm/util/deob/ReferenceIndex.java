@@ -0,0 +1,316 @@
+package org.sasm.util.deob;
+
+import org.sasm.Handle;
+import org.sasm.Opcodes;
+import org.sasm.Type;
+import org.sasm.tree.*;
+
+import java.util.*;
+
+/**
+ * An index of the field accesses and class references within a set of classes,
+ * built in a single pass so that several transforms can share it.
+ *
+ * The index reflects the classes at the time it was built. Transforms that only
+ * remove unreferenced members leave it conservative; anything else should build
+ * a new one.
+ *
+ * @author Tyler Sedlar
+ */
+public class ReferenceIndex {
+
+    private final Map<String, ClassNode> classes;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final String[] names;
+    private final int[][] references;
+    private final Set<FieldNode> read = Collections.newSetFromMap(new IdentityHashMap<FieldNode, Boolean>());
+    private final Map<FieldNode, List<FieldWrite>> writes = new IdentityHashMap<>();
+
+	/**
+	 * A field write site.
+	 */
+    public static class FieldWrite {
+
+        public final MethodNode method;
+        public final FieldInsnNode insn;
+
+        private FieldWrite(MethodNode method, FieldInsnNode insn) {
+            this.method = method;
+            this.insn = insn;
+        }
+    }
+
+	/**
+	 * Builds the index for the given classes.
+	 *
+	 * @param classes A map of classes to index.
+	 */
+    public ReferenceIndex(Map<String, ClassNode> classes) {
+        this.classes = classes;
+        this.names = new String[classes.size()];
+        for (String name : classes.keySet()) {
+            names[ids.size()] = name;
+            ids.put(name, ids.size());
+        }
+        this.references = new int[names.length][];
+        Collector collector = new Collector();
+        for (int c = 0; c < names.length; c++) {
+            collector.reset(c);
+            index(classes.get(names[c]), collector);
+            references[c] = collector.toArray();
+        }
+    }
+
+	/**
+	 * Finds the field that an access with the given owner, name and descriptor
+	 * resolves to the way the JVM does: each class is searched for a declared field, then its
+	 * superinterfaces, and only then its superclass.
+	 *
+	 * @param owner The owner of the access.
+	 * @param name The name of the field.
+	 * @param desc The descriptor of the field.
+	 * @return The field being accessed, or <tt>null</tt> if it is not declared within the indexed classes.
+	 */
+    public FieldNode resolveField(String owner, String name, String desc) {
+        for (String type = owner; type != null; ) {
+            ClassNode cn = classes.get(type);
+            if (cn == null) break;
+            FieldNode fn = declaredField(cn, name, desc);
+            if (fn != null) return fn;
+            for (String iface : cn.interfaces) {
+                fn = resolveInterfaceField(iface, name, desc);
+                if (fn != null) return fn;
+            }
+            type = cn.superName;
+        }
+        return null;
+    }
+
+    private FieldNode resolveInterfaceField(String owner, String name, String desc) {
+        ClassNode cn = classes.get(owner);
+        if (cn == null) return null;
+        FieldNode fn = declaredField(cn, name, desc);
+        if (fn != null) return fn;
+        for (String iface : cn.interfaces) {
+            fn = resolveInterfaceField(iface, name, desc);
+            if (fn != null) return fn;
+        }
+        return null;
+    }
+
+    private static FieldNode declaredField(ClassNode cn, String name, String desc) {
+        for (FieldNode fn : cn.fields) {
+            if (fn.name.equals(name) && fn.desc.equals(desc)) return fn;
+        }
+        return null;
+    }
+
+	/**
+	 * Checks whether the given field is ever read.
+	 *
+	 * @param fn The field to check.
+	 * @return <t>true</t> if the field is read, otherwise <t>false</t>.
+	 */
+    public boolean isRead(FieldNode fn) {
+        return read.contains(fn);
+    }
+
+	/**
+	 * Checks whether the given field is ever written.
+	 *
+	 * @param fn The field to check.
+	 * @return <t>true</t> if the field is written, otherwise <t>false</t>.
+	 */
+    public boolean isWritten(FieldNode fn) {
+        return writes.containsKey(fn);
+    }
+
+	/**
+	 * Gets the sites that write to the given field.
+	 *
+	 * @param fn The field to get the writes of.
+	 * @return The sites that write to the given field.
+	 */
+    public List<FieldWrite> getWrites(FieldNode fn) {
+        List<FieldWrite> sites = writes.get(fn);
+        return sites == null ? Collections.<FieldWrite>emptyList() : Collections.unmodifiableList(sites);
+    }
+
+	/**
+	 * Gets the indexed classes that the given class references.
+	 *
+	 * @param name The name of the class.
+	 * @return The names of the indexed classes that the given class references.
+	 */
+    public Set<String> getReferences(String name) {
+        Integer id = ids.get(name);
+        if (id == null) return Collections.emptySet();
+        Set<String> set = new LinkedHashSet<>();
+        for (int ref : references[id]) set.add(names[ref]);
+        return set;
+    }
+
+	/**
+	 * Gets the indexed classes reachable from the given entry classes.
+	 *
+	 * @param entries The names of the entry classes.
+	 * @return The names of the classes reachable from the entries, including the entries.
+	 */
+    public Set<String> getReachable(Collection<String> entries) {
+        boolean[] reached = new boolean[names.length];
+        int[] stack = new int[names.length];
+        int size = 0;
+        for (String entry : entries) {
+            Integer id = ids.get(entry);
+            if (id != null && !reached[id]) {
+                reached[id] = true;
+                stack[size++] = id;
+            }
+        }
+        Set<String> reachable = new HashSet<>();
+        while (size > 0) {
+            int c = stack[--size];
+            reachable.add(names[c]);
+            for (int ref : references[c]) {
+                if (!reached[ref]) {
+                    reached[ref] = true;
+                    stack[size++] = ref;
+                }
+            }
+        }
+        return reachable;
+    }
+
+    private void index(ClassNode cn, Collector refs) {
+        refs.name(cn.superName);
+        for (String iface : cn.interfaces) refs.name(iface);
+        refs.name(cn.outerClass);
+        annotations(cn.visibleAnnotations, refs);
+        for (FieldNode fn : cn.fields) {
+            refs.desc(fn.desc);
+            annotations(fn.visibleAnnotations, refs);
+        }
+        for (MethodNode mn : cn.methods) {
+            refs.desc(mn.desc);
+            for (String exception : mn.exceptions) refs.name(exception);
+            annotations(mn.visibleAnnotations, refs);
+            for (TryCatchBlockNode tcbn : mn.tryCatchBlocks) refs.name(tcbn.type);
+            for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+                switch (ain.getType()) {
+                    case AbstractInsnNode.FIELD_INSN: {
+                        FieldInsnNode fin = (FieldInsnNode) ain;
+                        refs.type(fin.owner);
+                        refs.desc(fin.desc);
+                        FieldNode fn = resolveField(fin.owner, fin.name, fin.desc);
+                        if (fn == null) break;
+                        int opcode = fin.getOpcode();
+                        if (opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC) {
+                            read.add(fn);
+                        } else {
+                            List<FieldWrite> sites = writes.get(fn);
+                            if (sites == null) writes.put(fn, sites = new ArrayList<>(2));
+                            sites.add(new FieldWrite(mn, fin));
+                        }
+                        break;
+                    }
+                    case AbstractInsnNode.METHOD_INSN: {
+                        MethodInsnNode min = (MethodInsnNode) ain;
+                        refs.type(min.owner);
+                        refs.desc(min.desc);
+                        break;
+                    }
+                    case AbstractInsnNode.TYPE_INSN: {
+                        refs.type(((TypeInsnNode) ain).desc);
+                        break;
+                    }
+                    case AbstractInsnNode.MULTIANEWARRAY_INSN: {
+                        refs.desc(((MultiANewArrayInsnNode) ain).desc);
+                        break;
+                    }
+                    case AbstractInsnNode.LDC_INSN: {
+                        constant(((LdcInsnNode) ain).cst, refs);
+                        break;
+                    }
+                    case AbstractInsnNode.INVOKE_DYNAMIC_INSN: {
+                        InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) ain;
+                        refs.desc(idin.desc);
+                        constant(idin.bsm, refs);
+                        for (Object arg : idin.bsmArgs) constant(arg, refs);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void constant(Object cst, Collector refs) {
+        if (cst instanceof Type) {
+            Type type = (Type) cst;
+            refs.desc(type.getDescriptor());
+        } else if (cst instanceof Handle) {
+            Handle handle = (Handle) cst;
+            refs.type(handle.getOwner());
+            refs.desc(handle.getDesc());
+            if (handle.getTag() <= Opcodes.H_PUTSTATIC) {
+                // field handles may be used either way, so they count as reads
+                FieldNode fn = resolveField(handle.getOwner(), handle.getName(), handle.getDesc());
+                if (fn != null) read.add(fn);
+            }
+        } else if (cst instanceof String) {
+            // class names held as strings are usually loaded reflectively
+            String string = (String) cst;
+            if (string.indexOf('.') != -1) string = string.replace('.', '/');
+            refs.name(string);
+        }
+    }
+
+    private static void annotations(List<AnnotationNode> annotations, Collector refs) {
+        if (annotations == null) return;
+        for (AnnotationNode an : annotations) refs.desc(an.desc);
+    }
+
+    private class Collector {
+
+        private final boolean[] seen = new boolean[names.length];
+        private int[] refs = new int[16];
+        private int size, self;
+
+        private void reset(int self) {
+            for (int i = 0; i < size; i++) seen[refs[i]] = false;
+            size = 0;
+            this.self = self;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(refs, size);
+        }
+
+        private void name(String name) {
+            if (name == null) return;
+            Integer id = ids.get(name);
+            if (id == null || id == self || seen[id]) return;
+            seen[id] = true;
+            if (size == refs.length) refs = Arrays.copyOf(refs, size << 1);
+            refs[size++] = id;
+        }
+
+        private void type(String type) {
+            if (type.charAt(0) == '[') {
+                desc(type);
+            } else {
+                name(type);
+            }
+        }
+
+        private void desc(String desc) {
+            for (int i = 0; i < desc.length(); i++) {
+                if (desc.charAt(i) == 'L') {
+                    int end = desc.indexOf(';', i);
+                    if (end == -1) return;
+                    name(desc.substring(i + 1, end));
+                    i = end;
+                }
+            }
+        }
+    }
+}
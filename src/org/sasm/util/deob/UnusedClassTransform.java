@@ -0,0 +1,83 @@
+package org.sasm.util.deob;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.InnerClassNode;
+import org.sasm.tree.MethodNode;
+
+import java.util.*;
+
+/**
+ * @author Tyler Sedlar
+ */
+public class UnusedClassTransform extends Transform {
+
+    private final ReferenceIndex index;
+    private final List<String> entries;
+
+	/**
+	 * Creates a transform that keeps the classes declaring a main method
+	 * and everything they reference.
+	 */
+    public UnusedClassTransform() {
+        this(null);
+    }
+
+	/**
+	 * Creates a transform that shares the given index.
+	 *
+	 * @param index The index of the classes being transformed, or <tt>null</tt> to build one.
+	 * @param entries The names of the entry classes, or none to use the classes declaring a main method.
+	 */
+    public UnusedClassTransform(ReferenceIndex index, String... entries) {
+        this.index = index;
+        this.entries = Arrays.asList(entries);
+    }
+
+	/**
+	 * Finds and removes all classes that are not reachable from the entry classes.
+	 *
+	 * @param classes A map of classes to search within.
+	 * @throws IllegalStateException If no entry classes were given and no class declares a main method.
+	 */
+    @Override
+    public void transform(Map<String, ClassNode> classes) {
+        int total = classes.size();
+        long start = System.nanoTime();
+        ReferenceIndex index = this.index != null ? this.index : new ReferenceIndex(classes);
+        Collection<String> entries = this.entries;
+        if (entries.isEmpty()) {
+            entries = new ArrayList<>();
+            for (ClassNode cn : classes.values()) {
+                if (hasMain(cn)) entries.add(cn.name);
+            }
+            // without an entry nothing is reachable, which would remove every class
+            if (entries.isEmpty() && !classes.isEmpty()) {
+                throw new IllegalStateException("No entry classes given and no class declares a main method");
+            }
+        }
+        Set<String> removed = new HashSet<>(classes.keySet());
+        removed.removeAll(index.getReachable(entries));
+        classes.keySet().removeAll(removed);
+        for (ClassNode cn : classes.values()) {
+            if (cn.innerClasses == null) continue;
+            Iterator<InnerClassNode> it = cn.innerClasses.iterator();
+            while (it.hasNext()) {
+                if (removed.contains(it.next().name)) it.remove();
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("Removed " + removed.size() + "/" + total + " unused classes in " +
+                String.format("%.2f", (end - start) / 1e9) + " secs");
+    }
+
+    private static boolean hasMain(ClassNode cn) {
+        for (MethodNode mn : cn.methods) {
+            if ((mn.access & Opcodes.ACC_STATIC) != 0 && mn.name.equals("main") &&
+                    mn.desc.equals("([Ljava/lang/String;)V")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package org.sasm.util.deob;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.FieldNode;
+import org.sasm.tree.InsnList;
+import org.sasm.tree.InsnNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Tyler Sedlar
+ */
+public class UnusedFieldTransform extends Transform {
+
+    private final ReferenceIndex index;
+
+    public UnusedFieldTransform() {
+        this(null);
+    }
+
+	/**
+	 * Creates a transform that shares the given index.
+	 *
+	 * @param index The index of the classes being transformed, or <tt>null</tt> to build one.
+	 */
+    public UnusedFieldTransform(ReferenceIndex index) {
+        this.index = index;
+    }
+
+	/**
+	 * Finds and removes all fields that are never read. Writes to those fields
+	 * are replaced with pops of their operands, so the stored values are still
+	 * computed. Serialization fields and enum constants are kept.
+	 *
+	 * @param classes A map of classes to search within.
+	 */
+    @Override
+    public void transform(Map<String, ClassNode> classes) {
+        int unused = 0;
+        int total = 0;
+        int writes = 0;
+        long start = System.nanoTime();
+        ReferenceIndex index = this.index != null ? this.index : new ReferenceIndex(classes);
+        for (ClassNode cn : classes.values()) {
+            List<FieldNode> keep = new ArrayList<>(cn.fields.size());
+            for (FieldNode fn : cn.fields) {
+                total++;
+                if (index.isRead(fn) || isKept(fn)) {
+                    keep.add(fn);
+                    continue;
+                }
+                for (ReferenceIndex.FieldWrite write : index.getWrites(fn)) {
+                    InsnList insns = write.method.instructions;
+                    int pop = fn.desc.equals("J") || fn.desc.equals("D") ? Opcodes.POP2 : Opcodes.POP;
+                    if (write.insn.getOpcode() == Opcodes.PUTFIELD) {
+                        insns.insertBefore(write.insn, new InsnNode(pop));
+                        insns.set(write.insn, new InsnNode(Opcodes.POP));
+                    } else {
+                        insns.set(write.insn, new InsnNode(pop));
+                    }
+                    writes++;
+                }
+                unused++;
+            }
+            if (keep.size() != cn.fields.size()) {
+                cn.fields.clear();
+                cn.fields.addAll(keep);
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("Removed " + unused + "/" + total + " unused fields (" + writes + " writes) in " +
+                String.format("%.2f", (end - start) / 1e9) + " secs");
+    }
+
+    private static boolean isKept(FieldNode fn) {
+        return (fn.access & Opcodes.ACC_ENUM) != 0 || fn.name.equals("serialVersionUID") ||
+                fn.name.equals("serialPersistentFields");
+    }
+}
@@ -1,11 +1,11 @@
 package org.sasm.util.deob;
 
+import org.sasm.Handle;
 import org.sasm.Opcodes;
-import org.sasm.Type;
 import org.sasm.tree.*;
+import org.sasm.util.ClassHierarchy;
+import org.sasm.util.LibraryClass;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.*;
 
 /**
@@ -13,86 +13,257 @@ import java.util.*;
  */
 public class UnusedMethodTransform extends Transform {
 
+    private static final Set<String> SERIAL_HOOKS = new HashSet<>(Arrays.asList(
+            "writeObject(Ljava/io/ObjectOutputStream;)V", "readObject(Ljava/io/ObjectInputStream;)V",
+            "readObjectNoData()V", "writeReplace()Ljava/lang/Object;", "readResolve()Ljava/lang/Object;"
+    ));
+
+    private final Map<String, Map<String, Integer>> signatures = new HashMap<>();
+    private ClassHierarchy hierarchy;
+    private long[][] declared;
+    private Set<String>[] libraryMethods;
+    private MethodNode[] methods;
+    private boolean[] reached;
+    private int[] worklist;
+    private int pending;
+    private long[][] dispatched;
+    private int signatureCount;
+    private int[] visited;
+    private int visit;
+
 	/**
 	 * Finds and removes all unused methods.
 	 *
+	 * Methods are marked in a single worklist pass starting from the entry points:
+	 * constructors, static initializers, main methods, enum and serialization hooks
+	 * and methods overriding a library method. Virtual and interface calls are
+	 * dispatched to every subtype of their owner.
+	 *
 	 * @param classes A map of classes to search within.
 	 */
     @Override
     public void transform(Map<String, ClassNode> classes) {
-        int unused = 0;
-        int total = 0;
-        int removed = -1;
         long start = System.nanoTime();
-        while (removed != 0) {
-            removed = 0;
-            Set<String> used = new HashSet<>();
-            Set<String> inherited = new HashSet<>();
-            for (ClassNode cn : classes.values()) {
-                for (MethodNode mn : cn.methods) {
-                    for (AbstractInsnNode ain : mn.instructions.toArray()) {
-                        if (ain instanceof MethodInsnNode) {
-                            MethodInsnNode min = (MethodInsnNode) ain;
-                            used.add(min.owner + "." + min.name + min.desc);
-                        }
-                    }
-                }
-                if (!cn.superName.equals("java/lang/Object")) {
-                    if (cn.superName.startsWith("java")) {
-                        try {
-                            Class<?> clazz = Class.forName(cn.superName.replaceAll("/", "."));
-                            for (Method method : clazz.getDeclaredMethods()) {
-                                int mods = method.getModifiers();
-                                if (Modifier.isPrivate(mods) || Modifier.isStatic(mods)) continue;
-                                String desc = Type.getMethodDescriptor(method);
-                                inherited.add(method.getName() + desc);
-                            }
-                        } catch (ClassNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        ClassNode node = classes.get(cn.superName);
-                        for (MethodNode mn : node.methods) {
-                            if ((mn.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) != 0) {
-                                continue;
-                            }
-                            inherited.add(mn.name + mn.desc);
-                        }
-                    }
+        signatures.clear();
+        signatureCount = pending = visit = 0;
+        hierarchy = new ClassHierarchy(classes);
+        int count = hierarchy.size();
+        int total = 0;
+        for (ClassNode cn : classes.values()) total += cn.methods.size();
+        declared = new long[count][];
+        libraryMethods = newSets(count);
+        methods = new MethodNode[total];
+        int id = 0;
+        for (int c = 0; c < count; c++) {
+            ClassNode cn = hierarchy.getNode(c);
+            long[] members = new long[cn == null ? 0 : cn.methods.size()];
+            for (int m = 0; m < members.length; m++) {
+                MethodNode mn = cn.methods.get(m);
+                methods[id] = mn;
+                members[m] = ((long) signature(mn.name, mn.desc, true) << 32) | id++;
+            }
+            Arrays.sort(members);
+            declared[c] = members;
+        }
+        // a bitset of dispatched types for each signature, allocated on the first dispatch of the signature
+        dispatched = new long[signatureCount][];
+        reached = new boolean[total];
+        worklist = new int[total];
+        visited = new int[count];
+        for (int c = 0; c < count; c++) {
+            ClassNode cn = hierarchy.getNode(c);
+            if (cn == null) continue;
+            Set<String> overridable = libraryMethods(c);
+            for (long member : declared[c]) {
+                MethodNode mn = methods[(int) member];
+                if (isEntry(cn, mn) || (!overridable.isEmpty() && (mn.access & (Opcodes.ACC_PRIVATE |
+                        Opcodes.ACC_STATIC)) == 0 && overridable.contains(mn.name + mn.desc))) {
+                    mark((int) member);
                 }
-                for (String iface : cn.interfaces) {
-                    if (iface.startsWith("java")) {
-                        try {
-                            Class<?> clazz = Class.forName(iface.replaceAll("/", "."));
-                            for (Method method : clazz.getDeclaredMethods()) {
-                                String desc = Type.getMethodDescriptor(method);
-                                inherited.add(method.getName() + desc);
-                            }
-                        } catch (ClassNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        ClassNode node = classes.get(iface.replaceAll("/", "."));
-                        for (MethodNode mn : node.methods) inherited.add(mn.name + mn.desc);
+            }
+        }
+        while (pending > 0) {
+            MethodNode mn = methods[worklist[--pending]];
+            for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+                if (ain instanceof MethodInsnNode) {
+                    MethodInsnNode min = (MethodInsnNode) ain;
+                    int opcode = min.getOpcode();
+                    invoke(min.owner, min.name, min.desc, opcode == Opcodes.INVOKEVIRTUAL ||
+                            opcode == Opcodes.INVOKEINTERFACE);
+                } else if (ain instanceof InvokeDynamicInsnNode) {
+                    InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) ain;
+                    handle(idin.bsm);
+                    for (Object arg : idin.bsmArgs) {
+                        if (arg instanceof Handle) handle((Handle) arg);
                     }
+                } else if (ain instanceof LdcInsnNode && ((LdcInsnNode) ain).cst instanceof Handle) {
+                    handle((Handle) ((LdcInsnNode) ain).cst);
                 }
             }
-            for (ClassNode cn : classes.values()) {
-                List<MethodNode> remove = new ArrayList<>();
-                for (MethodNode mn : cn.methods) {
-                    total++;
-                    if (mn.name.contains("<") || mn.name.contains(">")) continue;
-                    if (!used.contains(cn.name + "." + mn.name + mn.desc) && !inherited.contains(mn.name + mn.desc)) {
-                        unused++;
-                        removed++;
-                        remove.add(mn);
-                    }
+        }
+        int unused = 0;
+        id = 0;
+        for (int c = 0; c < count; c++) {
+            ClassNode cn = hierarchy.getNode(c);
+            if (cn == null) continue;
+            List<MethodNode> keep = new ArrayList<>(cn.methods.size());
+            for (MethodNode mn : cn.methods) {
+                if (reached[id++]) {
+                    keep.add(mn);
+                } else {
+                    unused++;
                 }
-                for (MethodNode mn : remove) cn.methods.remove(mn);
+            }
+            if (keep.size() != cn.methods.size()) {
+                cn.methods.clear();
+                cn.methods.addAll(keep);
             }
         }
         long end = System.nanoTime();
         System.out.println("Removed " + unused + "/" + total + " unused methods in " +
                 String.format("%.2f", (end - start) / 1e9) + " secs");
     }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String>[] newSets(int length) {
+        return (Set<String>[]) new Set<?>[length];
+    }
+
+    private static boolean isEntry(ClassNode cn, MethodNode mn) {
+        if (mn.name.charAt(0) == '<') return true;
+        if ((mn.access & Opcodes.ACC_STATIC) != 0) {
+            if (mn.name.equals("main") && mn.desc.equals("([Ljava/lang/String;)V")) return true;
+            if ((cn.access & Opcodes.ACC_ENUM) != 0 && (mn.name.equals("values") || mn.name.equals("valueOf"))) {
+                return true;
+            }
+            return false;
+        }
+        return SERIAL_HOOKS.contains(mn.name + mn.desc);
+    }
+
+    private int signature(String name, String desc, boolean create) {
+        Map<String, Integer> descs = signatures.get(name);
+        if (descs == null) {
+            if (!create) return -1;
+            signatures.put(name, descs = new HashMap<>());
+        }
+        Integer id = descs.get(desc);
+        if (id == null) {
+            if (!create) return -1;
+            descs.put(desc, id = signatureCount++);
+        }
+        return id;
+    }
+
+    private Set<String> libraryMethods(int c) {
+        Set<String> methods = libraryMethods[c];
+        if (methods != null) return methods;
+        LibraryClass lc = hierarchy.getLibrary(c);
+        if (lc != null) return libraryMethods[c] = lc.getAllMethods();
+        Set<String> merged = Collections.emptySet();
+        boolean owned = false;
+        int superclass = hierarchy.getSuperclass(c);
+        int[] interfaces = hierarchy.getInterfaces(c);
+        for (int i = -1; i < interfaces.length; i++) {
+            int type = i == -1 ? superclass : interfaces[i];
+            if (type == -1) continue;
+            Set<String> source = libraryMethods(type);
+            if (source.isEmpty() || source == merged) continue;
+            if (merged.isEmpty()) {
+                merged = source;
+            } else {
+                // shared sets are only copied once a second source has to be merged in
+                if (!owned) {
+                    merged = new HashSet<>(merged);
+                    owned = true;
+                }
+                merged.addAll(source);
+            }
+        }
+        return libraryMethods[c] = merged;
+    }
+
+    private void mark(int method) {
+        if (!reached[method]) {
+            reached[method] = true;
+            worklist[pending++] = method;
+        }
+    }
+
+    private void handle(Handle handle) {
+        int tag = handle.getTag();
+        if (tag >= Opcodes.H_INVOKEVIRTUAL) {
+            invoke(handle.getOwner(), handle.getName(), handle.getDesc(), tag == Opcodes.H_INVOKEVIRTUAL ||
+                    tag == Opcodes.H_INVOKEINTERFACE);
+        }
+    }
+
+    private void invoke(String owner, String name, String desc, boolean virtual) {
+        int c = hierarchy.getId(owner);
+        if (c == -1) return;
+        int sig = signature(name, desc, false);
+        if (sig == -1) return;
+        resolve(c, sig);
+        if (virtual) dispatch(c, sig);
+    }
+
+    private int find(int c, int sig) {
+        long[] members = declared[c];
+        long key = (long) sig << 32;
+        int low = 0, high = members.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long member = members[mid] & 0xFFFFFFFF00000000L;
+            if (member < key) {
+                low = mid + 1;
+            } else if (member > key) {
+                high = mid - 1;
+            } else {
+                return (int) members[mid];
+            }
+        }
+        return -1;
+    }
+
+    private void resolve(int c, int sig) {
+        for (int type = c; type != -1; type = hierarchy.getSuperclass(type)) {
+            int method = find(type, sig);
+            if (method != -1) {
+                mark(method);
+                return;
+            }
+        }
+        // not declared by a superclass, so it may be a default or abstract interface method
+        visit++;
+        for (int type = c; type != -1; type = hierarchy.getSuperclass(type)) {
+            for (int iface : hierarchy.getInterfaces(type)) resolveInterface(iface, sig);
+        }
+    }
+
+    private void resolveInterface(int c, int sig) {
+        if (visited[c] == visit) return;
+        visited[c] = visit;
+        int method = find(c, sig);
+        if (method != -1) {
+            mark(method);
+            return;
+        }
+        for (int iface : hierarchy.getInterfaces(c)) resolveInterface(iface, sig);
+    }
+
+    private void dispatch(int c, int sig) {
+        long[] types = dispatched[sig];
+        if (types == null) types = dispatched[sig] = new long[(hierarchy.size() + 63) >>> 6];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int sub : hierarchy.getSubtypes(c)) stack.push(sub);
+        while (!stack.isEmpty()) {
+            int type = stack.pop();
+            // a visited pair has already had its whole subtree dispatched
+            long bit = 1L << type;
+            if ((types[type >>> 6] & bit) != 0) continue;
+            types[type >>> 6] |= bit;
+            resolve(type, sig);
+            for (int sub : hierarchy.getSubtypes(type)) stack.push(sub);
+        }
+    }
 }
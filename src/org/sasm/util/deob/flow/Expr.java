@@ -0,0 +1,120 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.tree.AbstractInsnNode;
+import org.sasm.util.Assembly;
+
+/**
+ * A node of an {@link ExprTree}: an instruction linked to the expressions that
+ * produced its operands. A value duplicated on the stack is shared by each of
+ * its consumers, so the expressions of a block form a directed acyclic graph.
+ * Values that were already on the stack when the block was entered are
+ * represented by placeholders.
+ *
+ * @author Tyler Sedlar
+ */
+public class Expr {
+
+    private static final Expr[] NONE = new Expr[0];
+
+	/**
+	 * The tree this expression belongs to.
+	 */
+    public final ExprTree tree;
+
+	/**
+	 * The instruction of this expression, or <tt>null</tt> for a placeholder.
+	 */
+    public final AbstractInsnNode insn;
+
+	/**
+	 * The index of the instruction within {@link FlowGraph#insns}, or for a
+	 * placeholder its position on the block's entry stack (-1 if unknown).
+	 */
+    public final int index;
+
+	/**
+	 * The block this expression belongs to.
+	 */
+    public final int block;
+
+	/**
+	 * The amount of stack slots taken by the value of this expression: 0 for
+	 * statements, 2 for longs and doubles, otherwise 1.
+	 */
+    public final int slots;
+
+    private final Expr[] operands;
+
+    Expr(ExprTree tree, AbstractInsnNode insn, int index, int block, int slots, Expr[] operands) {
+        this.tree = tree;
+        this.insn = insn;
+        this.index = index;
+        this.block = block;
+        this.slots = slots;
+        this.operands = operands == null ? NONE : operands;
+    }
+
+	/**
+	 * Gets the opcode of this expression.
+	 *
+	 * @return The opcode of the instruction, or -1 for a placeholder.
+	 */
+    public int getOpcode() {
+        return insn == null ? -1 : insn.getOpcode();
+    }
+
+	/**
+	 * Checks whether this expression stands for a value from outside its block.
+	 *
+	 * @return <t>true</t> if this expression is a placeholder, otherwise <t>false.</t>
+	 */
+    public boolean isPlaceholder() {
+        return insn == null;
+    }
+
+	/**
+	 * Gets the amount of operands consumed by this expression.
+	 *
+	 * @return The amount of operands.
+	 */
+    public int size() {
+        return operands.length;
+    }
+
+	/**
+	 * Gets an operand of this expression, in the order they were pushed, so the
+	 * object reference of a PUTFIELD comes before its value.
+	 *
+	 * @param index The index of the operand.
+	 * @return The expression that produced the operand.
+	 */
+    public Expr get(int index) {
+        return operands[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        append(builder, 0);
+        return builder.toString();
+    }
+
+    private void append(StringBuilder builder, int depth) {
+        if (insn == null) {
+            builder.append('$').append(index);
+            return;
+        }
+        builder.append(Assembly.getName(insn.getOpcode()));
+        if (operands.length == 0) return;
+        builder.append('(');
+        if (depth > 32) {
+            builder.append("...");
+        } else {
+            for (int i = 0; i < operands.length; i++) {
+                if (i > 0) builder.append(", ");
+                operands[i].append(builder, depth + 1);
+            }
+        }
+        builder.append(')');
+    }
+}
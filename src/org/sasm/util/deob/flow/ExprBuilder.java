@@ -0,0 +1,440 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.*;
+
+import java.util.Arrays;
+
+/**
+ * Builds the {@link ExprTree} of a method by simulating the operand stack of
+ * each basic block. Every instruction pops the expressions that produced its
+ * operands and pushes its own, so no frames or types are computed. The stack
+ * heights at block boundaries are carried along the flow graph, and values
+ * that enter a block on the stack become placeholders.
+ * <p>
+ * A builder reuses its stack buffers between methods, so each thread should
+ * keep its own builder.
+ *
+ * @author Tyler Sedlar
+ */
+public class ExprBuilder implements Opcodes {
+
+    private static final int[] EMPTY = new int[0], HANDLER = {1};
+
+    private Expr[] stack = new Expr[16];
+    private int top;
+    private Expr[] statements = new Expr[16];
+    private int count;
+
+	/**
+	 * Builds the expressions of the given method.
+	 *
+	 * @param mn The method to build expressions for.
+	 * @return The expressions of the method.
+	 */
+    public ExprTree build(MethodNode mn) {
+        return build(null, mn);
+    }
+
+	/**
+	 * Builds the expressions of the given method.
+	 *
+	 * @param cn The class that owns the method, or <tt>null</tt>.
+	 * @param mn The method to build expressions for.
+	 * @return The expressions of the method.
+	 */
+    public ExprTree build(ClassNode cn, MethodNode mn) {
+        FlowGraph graph = new FlowGraph(mn);
+        ExprTree tree = new ExprTree(cn, mn, graph);
+        int blocks = graph.size();
+        int[][] entries = new int[blocks][];
+        int[] queue = new int[blocks];
+        int head = 0, tail = 0;
+        if (blocks > 0) {
+            entries[0] = EMPTY;
+            queue[tail++] = 0;
+        }
+        for (int b = 0; b < blocks; b++) {
+            for (int h : graph.handlers[b]) {
+                if (entries[h] == null) {
+                    entries[h] = HANDLER;
+                    queue[tail++] = h;
+                }
+            }
+        }
+        while (head < tail) {
+            int b = queue[head++];
+            int[] exit = build(tree, b, entries[b]);
+            for (int s : graph.successors[b]) {
+                if (entries[s] == null) {
+                    entries[s] = exit;
+                    queue[tail++] = s;
+                }
+            }
+        }
+        for (int b = 0; b < blocks; b++) {
+            // unreachable blocks are built with an empty stack
+            if (entries[b] == null) build(tree, b, EMPTY);
+        }
+        return tree;
+    }
+
+    private int[] build(ExprTree tree, int block, int[] entry) {
+        top = 0;
+        count = 0;
+        for (int i = 0; i < entry.length; i++) {
+            push(new Expr(tree, null, i, block, entry[i], null));
+        }
+        FlowGraph graph = tree.graph;
+        for (int i = graph.starts[block]; i < graph.starts[block + 1]; i++) {
+            step(tree, block, i, graph.insns[i]);
+        }
+        int[] exit = new int[top];
+        for (int i = 0; i < top; i++) {
+            Expr value = stack[i];
+            exit[i] = value.slots;
+            if (value.isPlaceholder() || indexOf(stack, i, value) != -1) continue;
+            statement(value);
+        }
+        tree.roots[block] = Arrays.copyOf(statements, count);
+        return exit;
+    }
+
+    private static int indexOf(Expr[] exprs, int length, Expr expr) {
+        for (int i = 0; i < length; i++) {
+            if (exprs[i] == expr) return i;
+        }
+        return -1;
+    }
+
+    private void push(Expr expr) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+        stack[top++] = expr;
+    }
+
+    private Expr pop(ExprTree tree, int block) {
+        // only reachable on code the verifier would reject
+        return top == 0 ? new Expr(tree, null, -1, block, 1, null) : stack[--top];
+    }
+
+    private void statement(Expr expr) {
+        if (count == statements.length) statements = Arrays.copyOf(statements, count << 1);
+        statements[count++] = expr;
+    }
+
+    private void expr(ExprTree tree, int block, int index, AbstractInsnNode ain, int pops, int slots) {
+        Expr[] operands = null;
+        if (pops > 0) {
+            operands = new Expr[pops];
+            for (int i = pops - 1; i >= 0; i--) operands[i] = pop(tree, block);
+        }
+        Expr expr = new Expr(tree, ain, index, block, slots, operands);
+        tree.exprs[index] = expr;
+        if (slots == 0) {
+            statement(expr);
+        } else {
+            push(expr);
+        }
+    }
+
+    private void step(ExprTree tree, int block, int index, AbstractInsnNode ain) {
+        int opcode = ain.getOpcode();
+        switch (opcode) {
+            case -1:
+            case NOP:
+                return;
+            case ACONST_NULL:
+            case ICONST_M1:
+            case ICONST_0:
+            case ICONST_1:
+            case ICONST_2:
+            case ICONST_3:
+            case ICONST_4:
+            case ICONST_5:
+            case FCONST_0:
+            case FCONST_1:
+            case FCONST_2:
+            case BIPUSH:
+            case SIPUSH:
+            case ILOAD:
+            case FLOAD:
+            case ALOAD:
+            case NEW:
+            case JSR:
+                expr(tree, block, index, ain, 0, 1);
+                return;
+            case LCONST_0:
+            case LCONST_1:
+            case DCONST_0:
+            case DCONST_1:
+            case LLOAD:
+            case DLOAD:
+                expr(tree, block, index, ain, 0, 2);
+                return;
+            case LDC: {
+                Object cst = ((LdcInsnNode) ain).cst;
+                expr(tree, block, index, ain, 0, cst instanceof Long || cst instanceof Double ? 2 : 1);
+                return;
+            }
+            case IALOAD:
+            case FALOAD:
+            case AALOAD:
+            case BALOAD:
+            case CALOAD:
+            case SALOAD:
+                expr(tree, block, index, ain, 2, 1);
+                return;
+            case LALOAD:
+            case DALOAD:
+                expr(tree, block, index, ain, 2, 2);
+                return;
+            case ISTORE:
+            case LSTORE:
+            case FSTORE:
+            case DSTORE:
+            case ASTORE:
+            case POP:
+            case IFEQ:
+            case IFNE:
+            case IFLT:
+            case IFGE:
+            case IFGT:
+            case IFLE:
+            case IFNULL:
+            case IFNONNULL:
+            case TABLESWITCH:
+            case LOOKUPSWITCH:
+            case IRETURN:
+            case LRETURN:
+            case FRETURN:
+            case DRETURN:
+            case ARETURN:
+            case PUTSTATIC:
+            case ATHROW:
+            case MONITORENTER:
+            case MONITOREXIT:
+                expr(tree, block, index, ain, 1, 0);
+                return;
+            case IASTORE:
+            case LASTORE:
+            case FASTORE:
+            case DASTORE:
+            case AASTORE:
+            case BASTORE:
+            case CASTORE:
+            case SASTORE:
+                expr(tree, block, index, ain, 3, 0);
+                return;
+            case POP2:
+                expr(tree, block, index, ain, top > 0 && stack[top - 1].slots == 2 ? 1 : 2, 0);
+                return;
+            case DUP:
+            case DUP_X1:
+            case DUP_X2:
+            case DUP2:
+            case DUP2_X1:
+            case DUP2_X2:
+            case SWAP:
+                shuffle(tree, block, opcode);
+                return;
+            case INEG:
+            case FNEG:
+            case I2F:
+            case L2I:
+            case L2F:
+            case F2I:
+            case D2I:
+            case D2F:
+            case I2B:
+            case I2C:
+            case I2S:
+            case ARRAYLENGTH:
+            case NEWARRAY:
+            case ANEWARRAY:
+            case CHECKCAST:
+            case INSTANCEOF:
+                expr(tree, block, index, ain, 1, 1);
+                return;
+            case LNEG:
+            case DNEG:
+            case I2L:
+            case I2D:
+            case L2D:
+            case F2L:
+            case F2D:
+            case D2L:
+                expr(tree, block, index, ain, 1, 2);
+                return;
+            case LCMP:
+            case FCMPL:
+            case FCMPG:
+            case DCMPL:
+            case DCMPG:
+                expr(tree, block, index, ain, 2, 1);
+                return;
+            case IF_ICMPEQ:
+            case IF_ICMPNE:
+            case IF_ICMPLT:
+            case IF_ICMPGE:
+            case IF_ICMPGT:
+            case IF_ICMPLE:
+            case IF_ACMPEQ:
+            case IF_ACMPNE:
+            case PUTFIELD:
+                expr(tree, block, index, ain, 2, 0);
+                return;
+            case IINC:
+            case GOTO:
+            case RET:
+            case RETURN:
+                expr(tree, block, index, ain, 0, 0);
+                return;
+            case GETSTATIC:
+                expr(tree, block, index, ain, 0, slots(((FieldInsnNode) ain).desc, 0));
+                return;
+            case GETFIELD:
+                expr(tree, block, index, ain, 1, slots(((FieldInsnNode) ain).desc, 0));
+                return;
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC:
+            case INVOKEINTERFACE: {
+                String desc = ((MethodInsnNode) ain).desc;
+                int args = arguments(desc) + (opcode == INVOKESTATIC ? 0 : 1);
+                expr(tree, block, index, ain, args, slots(desc, desc.lastIndexOf(')') + 1));
+                return;
+            }
+            case INVOKEDYNAMIC: {
+                String desc = ((InvokeDynamicInsnNode) ain).desc;
+                expr(tree, block, index, ain, arguments(desc), slots(desc, desc.lastIndexOf(')') + 1));
+                return;
+            }
+            case MULTIANEWARRAY:
+                expr(tree, block, index, ain, ((MultiANewArrayInsnNode) ain).dims, 1);
+                return;
+            default:
+                if (opcode >= IADD && opcode <= LXOR) {
+                    // arithmetic opcodes cycle through int, long, float and double, shifts and logic through int and long
+                    boolean wide = opcode <= DNEG ? ((opcode - IADD) & 1) == 1 : ((opcode - ISHL) & 1) == 1;
+                    expr(tree, block, index, ain, 2, wide ? 2 : 1);
+                }
+        }
+    }
+
+    private void shuffle(ExprTree tree, int block, int opcode) {
+        Expr v1 = pop(tree, block);
+        switch (opcode) {
+            case DUP:
+                push(v1);
+                push(v1);
+                return;
+            case DUP_X1: {
+                Expr v2 = pop(tree, block);
+                push(v1);
+                push(v2);
+                push(v1);
+                return;
+            }
+            case DUP_X2: {
+                Expr v2 = pop(tree, block);
+                if (v2.slots == 2) {
+                    push(v1);
+                    push(v2);
+                    push(v1);
+                } else {
+                    Expr v3 = pop(tree, block);
+                    push(v1);
+                    push(v3);
+                    push(v2);
+                    push(v1);
+                }
+                return;
+            }
+            case DUP2: {
+                if (v1.slots == 2) {
+                    push(v1);
+                    push(v1);
+                } else {
+                    Expr v2 = pop(tree, block);
+                    push(v2);
+                    push(v1);
+                    push(v2);
+                    push(v1);
+                }
+                return;
+            }
+            case DUP2_X1: {
+                Expr v2 = pop(tree, block);
+                if (v1.slots == 2) {
+                    push(v1);
+                    push(v2);
+                    push(v1);
+                } else {
+                    Expr v3 = pop(tree, block);
+                    push(v2);
+                    push(v1);
+                    push(v3);
+                    push(v2);
+                    push(v1);
+                }
+                return;
+            }
+            case DUP2_X2: {
+                Expr v2 = pop(tree, block);
+                if (v1.slots == 2) {
+                    if (v2.slots == 2) {
+                        push(v1);
+                        push(v2);
+                        push(v1);
+                    } else {
+                        Expr v3 = pop(tree, block);
+                        push(v1);
+                        push(v3);
+                        push(v2);
+                        push(v1);
+                    }
+                } else {
+                    Expr v3 = pop(tree, block);
+                    if (v3.slots == 2) {
+                        push(v2);
+                        push(v1);
+                        push(v3);
+                        push(v2);
+                        push(v1);
+                    } else {
+                        Expr v4 = pop(tree, block);
+                        push(v2);
+                        push(v1);
+                        push(v4);
+                        push(v3);
+                        push(v2);
+                        push(v1);
+                    }
+                }
+                return;
+            }
+            default: {
+                Expr v2 = pop(tree, block);
+                push(v1);
+                push(v2);
+            }
+        }
+    }
+
+    private static int slots(String desc, int index) {
+        char c = desc.charAt(index);
+        return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+    }
+
+    private static int arguments(String desc) {
+        int count = 0;
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            while (desc.charAt(i) == '[') i++;
+            if (desc.charAt(i) == 'L') i = desc.indexOf(';', i);
+            i++;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,312 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.tree.*;
+import org.sasm.util.ConstantIndex;
+import org.sasm.util.Stringer;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A structural query over {@link Expr} trees, such as a PUTFIELD whose value is
+ * an IMUL of a GETFIELD and an LDC:
+ * <pre>
+ * ExprQuery.of(PUTFIELD).operand(1, ExprQuery.of(IMUL).operands(ExprQuery.of(GETFIELD), ExprQuery.of(LDC)))
+ * </pre>
+ * A query is configured through its chained methods. Once configured it may be
+ * shared between threads.
+ *
+ * @author Tyler Sedlar
+ */
+public class ExprQuery {
+
+    private static final int PARALLEL_LEAF = 32;
+
+    private final long[] opcodes;
+    private Stringer.Matcher owner, name, desc;
+    private Object cst;
+    private ExprQuery[] exact, unordered;
+    private final List<Integer> indexes = new ArrayList<>();
+    private final List<ExprQuery> indexed = new ArrayList<>();
+
+    private ExprQuery(long[] opcodes) {
+        this.opcodes = opcodes;
+    }
+
+	/**
+	 * Creates a query matching expressions with one of the given opcodes.
+	 *
+	 * @param opcodes The accepted opcodes.
+	 * @return A query matching the given opcodes.
+	 */
+    public static ExprQuery of(int... opcodes) {
+        long[] set = new long[OpcodeSummary.WORDS];
+        for (int opcode : opcodes) {
+            int bit = opcode + 1;
+            set[bit >>> 6] |= 1L << bit;
+        }
+        return new ExprQuery(set);
+    }
+
+	/**
+	 * Creates a query matching any expression, including placeholders.
+	 *
+	 * @return A query matching any expression.
+	 */
+    public static ExprQuery any() {
+        return new ExprQuery(null);
+    }
+
+	/**
+	 * Requires the owner of a field or method instruction to match.
+	 *
+	 * @param matcher The matcher to test the owner with (uses Stringer).
+	 * @return This query.
+	 */
+    public ExprQuery owner(String matcher) {
+        this.owner = Stringer.compile(matcher);
+        return this;
+    }
+
+	/**
+	 * Requires the name of a field or method instruction to match.
+	 *
+	 * @param matcher The matcher to test the name with (uses Stringer).
+	 * @return This query.
+	 */
+    public ExprQuery name(String matcher) {
+        this.name = Stringer.compile(matcher);
+        return this;
+    }
+
+	/**
+	 * Requires the desc of a field, method or type instruction to match.
+	 *
+	 * @param matcher The matcher to test the desc with (uses Stringer).
+	 * @return This query.
+	 */
+    public ExprQuery desc(String matcher) {
+        this.desc = Stringer.compile(matcher);
+        return this;
+    }
+
+	/**
+	 * Requires the expression to load the given constant. Int and long values
+	 * are compared by value, whichever instruction loads them.
+	 *
+	 * @param cst The constant to match.
+	 * @return This query.
+	 */
+    public ExprQuery cst(Object cst) {
+        this.cst = cst;
+        return this;
+    }
+
+	/**
+	 * Requires the operands to match the given queries, in order.
+	 *
+	 * @param operands The queries for each operand.
+	 * @return This query.
+	 */
+    public ExprQuery children(ExprQuery... operands) {
+        this.exact = operands;
+        return this;
+    }
+
+	/**
+	 * Requires the operands to match the given queries in any order, as
+	 * operands of commutative instructions are often swapped by obfuscators.
+	 *
+	 * @param operands The queries for each operand.
+	 * @return This query.
+	 */
+    public ExprQuery operands(ExprQuery... operands) {
+        this.unordered = operands;
+        return this;
+    }
+
+	/**
+	 * Requires a single operand to match the given query.
+	 *
+	 * @param index The index of the operand.
+	 * @param operand The query for the operand.
+	 * @return This query.
+	 */
+    public ExprQuery operand(int index, ExprQuery operand) {
+        indexes.add(index);
+        indexed.add(operand);
+        return this;
+    }
+
+	/**
+	 * Checks whether the given expression matches this query.
+	 *
+	 * @param expr The expression to check.
+	 * @return <t>true</t> if the expression matches, otherwise <t>false.</t>
+	 */
+    public boolean matches(Expr expr) {
+        if (opcodes != null) {
+            int bit = expr.getOpcode() + 1;
+            if (expr.isPlaceholder() || (opcodes[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        if ((owner != null || name != null || desc != null || cst != null) && !matches(expr.insn)) return false;
+        if (exact != null) {
+            if (exact.length != expr.size()) return false;
+            for (int i = 0; i < exact.length; i++) {
+                if (!exact[i].matches(expr.get(i))) return false;
+            }
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            int index = indexes.get(i);
+            if (index >= expr.size() || !indexed.get(i).matches(expr.get(index))) return false;
+        }
+        return unordered == null || (unordered.length == expr.size() && unordered.length < 32 && assign(expr, 0, 0));
+    }
+
+    private boolean assign(Expr expr, int query, int used) {
+        if (query == unordered.length) return true;
+        for (int i = 0; i < expr.size(); i++) {
+            if ((used & (1 << i)) == 0 && unordered[query].matches(expr.get(i)) &&
+                    assign(expr, query + 1, used | (1 << i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(AbstractInsnNode ain) {
+        if (ain == null) return false;
+        String owner = null, name = null, desc = null;
+        if (ain instanceof FieldInsnNode) {
+            FieldInsnNode fin = (FieldInsnNode) ain;
+            owner = fin.owner;
+            name = fin.name;
+            desc = fin.desc;
+        } else if (ain instanceof MethodInsnNode) {
+            MethodInsnNode min = (MethodInsnNode) ain;
+            owner = min.owner;
+            name = min.name;
+            desc = min.desc;
+        } else if (ain instanceof TypeInsnNode) {
+            desc = ((TypeInsnNode) ain).desc;
+        }
+        if (this.owner != null && (owner == null || !this.owner.matches(owner))) return false;
+        if (this.name != null && (name == null || !this.name.matches(name))) return false;
+        if (this.desc != null && (desc == null || !this.desc.matches(desc))) return false;
+        return cst == null || equal(cst, ConstantIndex.valueOf(ain));
+    }
+
+    private static boolean equal(Object expected, Object value) {
+        if (value == null) return false;
+        if (isIntegral(expected) && isIntegral(value)) {
+            return ((Number) expected).longValue() == ((Number) value).longValue();
+        }
+        return expected.equals(value);
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long;
+    }
+
+	/**
+	 * Checks whether a list with the given opcode summary could contain a match
+	 * of this query, as each required opcode must be present.
+	 *
+	 * @param summary The opcode summary of the list.
+	 * @return <t>false</t> if the list cannot contain a match, otherwise <t>true</t>.
+	 */
+    public boolean mayMatch(OpcodeSummary summary) {
+        if (opcodes != null && !summary.intersects(opcodes)) return false;
+        if (!mayMatch(exact, summary) || !mayMatch(unordered, summary)) return false;
+        for (ExprQuery operand : indexed) {
+            if (!operand.mayMatch(summary)) return false;
+        }
+        return true;
+    }
+
+    private static boolean mayMatch(ExprQuery[] operands, OpcodeSummary summary) {
+        if (operands == null) return true;
+        for (ExprQuery operand : operands) {
+            if (!operand.mayMatch(summary)) return false;
+        }
+        return true;
+    }
+
+	/**
+	 * Finds the expressions of the given tree matching this query.
+	 *
+	 * @param tree The tree to search within.
+	 * @return A List of the matching expressions, in instruction order.
+	 */
+    public List<Expr> find(ExprTree tree) {
+        List<Expr> found = new ArrayList<>();
+        for (Expr expr : tree.exprs) {
+            if (expr != null && matches(expr)) found.add(expr);
+        }
+        return found;
+    }
+
+	/**
+	 * Finds the expressions matching this query within the given classes. Methods
+	 * that cannot contain a match are skipped by their opcode summary, and the
+	 * others are built and searched in parallel on the given pool. The classes must
+	 * not be modified while the search runs.
+	 *
+	 * @param classes A map of classes to search within.
+	 * @param pool The pool to search on.
+	 * @return A List of the matching expressions, ordered by class name, method order and instruction order.
+	 */
+    public List<Expr> find(Map<String, ClassNode> classes, ForkJoinPool pool) {
+        List<String> names = new ArrayList<>(classes.keySet());
+        Collections.sort(names);
+        List<ClassNode> owners = new ArrayList<>();
+        List<MethodNode> methods = new ArrayList<>();
+        for (String name : names) {
+            ClassNode cn = classes.get(name);
+            for (MethodNode mn : cn.methods) {
+                if (mn.instructions.size() > 0 && mayMatch(mn.instructions.getSummary())) {
+                    owners.add(cn);
+                    methods.add(mn);
+                }
+            }
+        }
+        return pool.invoke(new SearchTask(owners.toArray(new ClassNode[owners.size()]),
+                methods.toArray(new MethodNode[methods.size()]), 0, methods.size()));
+    }
+
+    private class SearchTask extends RecursiveTask<List<Expr>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ClassNode[] owners;
+        private final MethodNode[] methods;
+        private final int from, to;
+
+        private SearchTask(ClassNode[] owners, MethodNode[] methods, int from, int to) {
+            this.owners = owners;
+            this.methods = methods;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Expr> compute() {
+            if (to - from > PARALLEL_LEAF) {
+                int mid = (from + to) >>> 1;
+                SearchTask left = new SearchTask(owners, methods, from, mid);
+                SearchTask right = new SearchTask(owners, methods, mid, to);
+                right.fork();
+                List<Expr> found = left.compute();
+                found.addAll(right.join());
+                return found;
+            }
+            ExprBuilder builder = new ExprBuilder();
+            List<Expr> found = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                found.addAll(find(builder.build(owners[i], methods[i])));
+            }
+            return found;
+        }
+    }
+}
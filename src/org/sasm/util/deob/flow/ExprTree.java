@@ -0,0 +1,76 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.tree.AbstractInsnNode;
+import org.sasm.tree.ClassNode;
+import org.sasm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The expressions of a method, built block by block by an {@link ExprBuilder}.
+ * The tree reflects the method at the time it was built and must be rebuilt
+ * once the method's instructions are modified.
+ *
+ * @author Tyler Sedlar
+ */
+public class ExprTree {
+
+    public final ClassNode cn;
+    public final MethodNode mn;
+    public final FlowGraph graph;
+
+	/**
+	 * The expression of each instruction, indexed as {@link FlowGraph#insns}.
+	 * Labels, frames, line numbers and the instructions that only rearrange
+	 * the stack (nop, dup and swap variants) have none.
+	 */
+    final Expr[] exprs;
+
+	/**
+	 * The roots of each block: its statements in instruction order, followed
+	 * by the values it leaves on the stack for its successors.
+	 */
+    final Expr[][] roots;
+
+    ExprTree(ClassNode cn, MethodNode mn, FlowGraph graph) {
+        this.cn = cn;
+        this.mn = mn;
+        this.graph = graph;
+        this.exprs = new Expr[graph.insns.length];
+        this.roots = new Expr[graph.size()][];
+    }
+
+	/**
+	 * Gets the expression of the given instruction.
+	 *
+	 * @param ain An instruction of the method.
+	 * @return The expression of the instruction, or <tt>null</tt> if it has none.
+	 */
+    public Expr get(AbstractInsnNode ain) {
+        return exprs[mn.instructions.indexOf(ain)];
+    }
+
+	/**
+	 * Gets the roots of the given block.
+	 *
+	 * @param block The index of the block.
+	 * @return The statements of the block in instruction order, followed by the values it leaves on the stack.
+	 */
+    public Expr[] getRoots(int block) {
+        return roots[block].clone();
+    }
+
+	/**
+	 * Gets every expression of the method, in instruction order.
+	 *
+	 * @return A List of the expressions of the method.
+	 */
+    public List<Expr> getExprs() {
+        List<Expr> list = new ArrayList<>(exprs.length);
+        for (Expr expr : exprs) {
+            if (expr != null) list.add(expr);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,244 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.Opcodes;
+import org.sasm.tree.*;
+
+import java.util.List;
+
+/**
+ * A basic block graph over the instructions of a method. Blocks are numbered
+ * in instruction order and are described by index ranges into {@link #insns},
+ * so building the graph costs O(instructions + edges).
+ *
+ * @author Tyler Sedlar
+ */
+public class FlowGraph {
+
+    public final MethodNode mn;
+
+	/**
+	 * The instructions of the method, as returned by {@link InsnList#toArray()}.
+	 */
+    public final AbstractInsnNode[] insns;
+
+	/**
+	 * The block index of each instruction.
+	 */
+    public final int[] blockOf;
+
+	/**
+	 * The index of the first instruction of each block. This array holds one
+	 * extra entry equal to the instruction count, so block b spans
+	 * [starts[b], starts[b + 1]).
+	 */
+    public final int[] starts;
+
+	/**
+	 * The normal (non-exceptional) successors of each block.
+	 */
+    public final int[][] successors;
+
+	/**
+	 * The exception handler blocks covering each block.
+	 */
+    public final int[][] handlers;
+
+	/**
+	 * The predecessors of each block, over both normal and exceptional edges.
+	 */
+    public final int[][] predecessors;
+
+	/**
+	 * The block each block falls through to, or -1 if control cannot fall off
+	 * the end of the block.
+	 */
+    public final int[] fallthrough;
+
+    private static final int[] NONE = new int[0];
+
+	/**
+	 * Builds the block graph of the given method.
+	 *
+	 * @param mn The method to build the graph for.
+	 */
+    public FlowGraph(MethodNode mn) {
+        this.mn = mn;
+        InsnList list = mn.instructions;
+        this.insns = list.toArray();
+        int n = insns.length;
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        for (int i = 0; i < n; i++) {
+            AbstractInsnNode ain = insns[i];
+            switch (ain.getType()) {
+                case AbstractInsnNode.JUMP_INSN: {
+                    leader[list.indexOf(((JumpInsnNode) ain).label)] = true;
+                    leader[i + 1] = true;
+                    break;
+                }
+                case AbstractInsnNode.TABLESWITCH_INSN: {
+                    TableSwitchInsnNode tsin = (TableSwitchInsnNode) ain;
+                    leader[list.indexOf(tsin.dflt)] = true;
+                    for (LabelNode label : tsin.labels) leader[list.indexOf(label)] = true;
+                    leader[i + 1] = true;
+                    break;
+                }
+                case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                    LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) ain;
+                    leader[list.indexOf(lsin.dflt)] = true;
+                    for (LabelNode label : lsin.labels) leader[list.indexOf(label)] = true;
+                    leader[i + 1] = true;
+                    break;
+                }
+                default: {
+                    if (isExit(ain.getOpcode())) leader[i + 1] = true;
+                    break;
+                }
+            }
+        }
+        List<TryCatchBlockNode> tcbs = mn.tryCatchBlocks;
+        int tcbCount = tcbs == null ? 0 : tcbs.size();
+        for (int i = 0; i < tcbCount; i++) {
+            TryCatchBlockNode tcb = tcbs.get(i);
+            leader[list.indexOf(tcb.start)] = true;
+            leader[list.indexOf(tcb.end)] = true;
+            leader[list.indexOf(tcb.handler)] = true;
+        }
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (leader[i]) count++;
+        }
+        this.starts = new int[count + 1];
+        this.blockOf = new int[n];
+        int b = -1;
+        for (int i = 0; i < n; i++) {
+            if (leader[i]) starts[++b] = i;
+            blockOf[i] = b;
+        }
+        starts[count] = n;
+        this.successors = new int[count][];
+        this.fallthrough = new int[count];
+        int[] stamp = new int[count];
+        int[] buffer = new int[count];
+        for (b = 0; b < count; b++) {
+            fallthrough[b] = -1;
+            int size = 0;
+            AbstractInsnNode last = insns[starts[b + 1] - 1];
+            int opcode = last.getOpcode();
+            switch (last.getType()) {
+                case AbstractInsnNode.JUMP_INSN: {
+                    size = addEdge(buffer, size, stamp, b, block(((JumpInsnNode) last).label));
+                    if (opcode != Opcodes.GOTO) {
+                        fallthrough[b] = b + 1 < count ? b + 1 : -1;
+                    }
+                    break;
+                }
+                case AbstractInsnNode.TABLESWITCH_INSN: {
+                    TableSwitchInsnNode tsin = (TableSwitchInsnNode) last;
+                    size = addEdge(buffer, size, stamp, b, block(tsin.dflt));
+                    for (LabelNode label : tsin.labels) size = addEdge(buffer, size, stamp, b, block(label));
+                    break;
+                }
+                case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                    LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) last;
+                    size = addEdge(buffer, size, stamp, b, block(lsin.dflt));
+                    for (LabelNode label : lsin.labels) size = addEdge(buffer, size, stamp, b, block(label));
+                    break;
+                }
+                default: {
+                    if (!isExit(opcode) && b + 1 < count) fallthrough[b] = b + 1;
+                    break;
+                }
+            }
+            if (fallthrough[b] != -1) size = addEdge(buffer, size, stamp, b, fallthrough[b]);
+            successors[b] = copy(buffer, size);
+        }
+        this.handlers = new int[count][];
+        if (tcbCount == 0) {
+            for (b = 0; b < count; b++) handlers[b] = NONE;
+        } else {
+            int[] sizes = new int[count];
+            int[][] lists = new int[count][];
+            for (int i = 0; i < tcbCount; i++) {
+                TryCatchBlockNode tcb = tcbs.get(i);
+                int handler = block(tcb.handler);
+                int end = block(tcb.end);
+                for (b = block(tcb.start); b < end; b++) {
+                    if (lists[b] == null) lists[b] = new int[2];
+                    if (contains(lists[b], sizes[b], handler)) continue;
+                    if (sizes[b] == lists[b].length) lists[b] = copy(lists[b], sizes[b] << 1);
+                    lists[b][sizes[b]++] = handler;
+                }
+            }
+            for (b = 0; b < count; b++) handlers[b] = lists[b] == null ? NONE : copy(lists[b], sizes[b]);
+        }
+        int[] predCounts = new int[count];
+        for (b = 0; b < count; b++) {
+            for (int s : successors[b]) predCounts[s]++;
+            for (int h : handlers[b]) {
+                if (!contains(successors[b], successors[b].length, h)) predCounts[h]++;
+            }
+        }
+        this.predecessors = new int[count][];
+        for (b = 0; b < count; b++) {
+            predecessors[b] = predCounts[b] == 0 ? NONE : new int[predCounts[b]];
+            predCounts[b] = 0;
+        }
+        for (b = 0; b < count; b++) {
+            for (int s : successors[b]) predecessors[s][predCounts[s]++] = b;
+            for (int h : handlers[b]) {
+                if (!contains(successors[b], successors[b].length, h)) predecessors[h][predCounts[h]++] = b;
+            }
+        }
+    }
+
+	/**
+	 * Gets the amount of blocks in this graph.
+	 *
+	 * @return The amount of blocks in this graph.
+	 */
+    public int size() {
+        return successors.length;
+    }
+
+	/**
+	 * Gets the block starting at, or containing, the given instruction.
+	 *
+	 * @param ain An instruction of the method.
+	 * @return The index of the block containing the given instruction.
+	 */
+    public int block(AbstractInsnNode ain) {
+        return blockOf[mn.instructions.indexOf(ain)];
+    }
+
+	/**
+	 * Checks whether the given opcode ends control flow within its block.
+	 *
+	 * @param opcode The opcode to check.
+	 * @return <t>true</t> if the opcode returns, throws or returns from a subroutine, otherwise <t>false.</t>
+	 */
+    public static boolean isExit(int opcode) {
+        return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW ||
+                opcode == Opcodes.RET;
+    }
+
+    private static int addEdge(int[] buffer, int size, int[] stamp, int from, int to) {
+        if (stamp[to] == from + 1) return size;
+        stamp[to] = from + 1;
+        buffer[size] = to;
+        return size + 1;
+    }
+
+    private static boolean contains(int[] array, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (array[i] == value) return true;
+        }
+        return false;
+    }
+
+    private static int[] copy(int[] array, int size) {
+        int[] copy = new int[size];
+        System.arraycopy(array, 0, copy, 0, Math.min(size, array.length));
+        return copy;
+    }
+}
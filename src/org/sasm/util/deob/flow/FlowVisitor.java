@@ -1,19 +1,39 @@
 package org.sasm.util.deob.flow;
 
-import org.sasm.*;
+import org.sasm.Opcodes;
 import org.sasm.tree.*;
 
 import java.util.*;
 
 /**
+ * Straightens the control flow of a method. Jumps to jumps are threaded to
+ * their final target, unreachable blocks are removed and the remaining blocks
+ * are laid out in reverse post-order, preferring fall-through successors, so
+ * that most GOTOs disappear. Every step runs in O(instructions + edges).
+ *
+ * Stack map frames are dropped, so methods must be written with
+ * {@link org.sasm.ClassWriter#COMPUTE_FRAMES} when frames are required.
+ *
  * @author Tyler Sedlar
  */
-public class FlowVisitor extends MethodVisitor {
+public class FlowVisitor {
 
     public final MethodNode mn;
-    public final List<Block> blocks = new ArrayList<>();
 
-    private Block current = new Block(new Label());
+	/**
+	 * The amount of jumps that were retargeted past a GOTO chain.
+	 */
+    public int threaded;
+
+	/**
+	 * The amount of GOTO instructions removed.
+	 */
+    public int gotos;
+
+	/**
+	 * The amount of unreachable blocks containing code that were removed.
+	 */
+    public int unreachable;
 
 	/**
 	 * Fixes the control flow of the given method.
@@ -21,143 +41,304 @@ public class FlowVisitor extends MethodVisitor {
 	 * @param mn The method in which control flow will be fixed.
 	 */
     public FlowVisitor(MethodNode mn) {
-        super(Opcodes.ASM5);
-        this.blocks.add(current);
-        (this.mn = mn).accept(this);
-        mn.instructions.clear();
-        for (Block block : blocks) {
-            for (AbstractInsnNode ain : block.instructions) mn.instructions.add(ain);
+        this.mn = mn;
+        if (mn.instructions.size() == 0) return;
+        for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+            if (ain.getOpcode() == Opcodes.JSR || ain.getOpcode() == Opcodes.RET) return;
         }
+        thread();
+        layout(new FlowGraph(mn));
     }
 
-    private Block[] getBlocks(Label[] labels) {
-        Block[] blocks = new Block[labels.length];
-        for (int i = 0; i < labels.length; i++) blocks[i] = getBlock(labels[i]);
-        return blocks;
+    private void thread() {
+        InsnList list = mn.instructions;
+        AbstractInsnNode[] insns = list.toArray();
+        int n = insns.length;
+        int[] nextReal = new int[n + 1];
+        nextReal[n] = -1;
+        for (int i = n - 1; i >= 0; i--) {
+            nextReal[i] = insns[i].getOpcode() == -1 ? nextReal[i + 1] : i;
+        }
+        LabelNode[] resolved = new LabelNode[n];
+        byte[] state = new byte[n];
+        int[] path = new int[n];
+        for (int i = 0; i < n; i++) {
+            AbstractInsnNode ain = insns[i];
+            if (ain instanceof JumpInsnNode) {
+                JumpInsnNode jin = (JumpInsnNode) ain;
+                LabelNode target = resolve(list, insns, nextReal, resolved, state, path, jin.label);
+                if (target != jin.label) {
+                    list.save(jin);
+                    jin.label = target;
+                    threaded++;
+                }
+                int real = nextReal[list.indexOf(target)];
+                // only returns are copied: a copied ATHROW could land under different exception handlers
+                if (jin.getOpcode() == Opcodes.GOTO && real != -1 && isReturn(insns[real].getOpcode())) {
+                    list.set(jin, new InsnNode(insns[real].getOpcode()));
+                    gotos++;
+                }
+            } else if (ain instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) ain;
+                list.save(tsin);
+                tsin.dflt = resolve(list, insns, nextReal, resolved, state, path, tsin.dflt);
+                for (int j = 0; j < tsin.labels.size(); j++) {
+                    tsin.labels.set(j, resolve(list, insns, nextReal, resolved, state, path, tsin.labels.get(j)));
+                }
+            } else if (ain instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) ain;
+                list.save(lsin);
+                lsin.dflt = resolve(list, insns, nextReal, resolved, state, path, lsin.dflt);
+                for (int j = 0; j < lsin.labels.size(); j++) {
+                    lsin.labels.set(j, resolve(list, insns, nextReal, resolved, state, path, lsin.labels.get(j)));
+                }
+            }
+        }
     }
 
-	/**
-	 * Gets the block for the given label.
-	 *
-	 * @param label The label to get a block from.
-	 * @return The given label's block.
-	 */
-    public Block getBlock(Label label) {
-        return getBlock(label, true);
+    private static boolean isReturn(int opcode) {
+        return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
     }
 
-	/**
-	 * Gets the block for the given label.
-	 *
-	 * @param label The label to get a block from.
-	 * @param add <t>true</t> to add the block to the next preds, otherwise <t>false.</t>
-	 * @return A block for the given label.
-	 */
-    public Block getBlock(Label label, boolean add) {
-        if (!(label.info instanceof Block)) {
-            label.info = new Block(label);
-            if (add) {
-                current.next = ((Block) label.info);
-                current.next.preds.add(current.next);
+    private static LabelNode resolve(InsnList list, AbstractInsnNode[] insns, int[] nextReal, LabelNode[] resolved,
+                                     byte[] state, int[] path, LabelNode label) {
+        int length = 0;
+        LabelNode result;
+        while (true) {
+            int i = list.indexOf(label);
+            if (state[i] == 2) {
+                result = resolved[i];
+                break;
             }
-            blocks.add((Block) label.info);
-        }
-        return (Block) label.info;
-    }
-
-    public void visitCode() {}
-
-    public void visitInsn(int opcode) {
-        current.instructions.add(new InsnNode(opcode));
-        switch (opcode) {
-            case Opcodes.RETURN:
-            case Opcodes.IRETURN:
-            case Opcodes.ARETURN:
-            case Opcodes.FRETURN:
-            case Opcodes.DRETURN:
-            case Opcodes.LRETURN:
-            case Opcodes.ATHROW: {
-                current = getBlock(new Label(), false);
+            if (state[i] == 1) {
+                // a GOTO cycle, which can only be an infinite loop; stop at the label that closes it
+                result = label;
                 break;
             }
-            default: {
+            state[i] = 1;
+            path[length++] = i;
+            int real = nextReal[i];
+            if (real == -1 || insns[real].getOpcode() != Opcodes.GOTO) {
+                result = label;
                 break;
             }
+            label = ((JumpInsnNode) insns[real]).label;
         }
+        for (int j = 0; j < length; j++) {
+            resolved[path[j]] = result;
+            state[path[j]] = 2;
+        }
+        return result;
     }
 
-    public void visitIntInsn(int opcode, int operand) {
-        current.instructions.add(new IntInsnNode(opcode, operand));
-    }
-
-    public void visitVarInsn(int opcode, int var) {
-        current.instructions.add(new VarInsnNode(opcode, var));
-    }
-
-    public void visitTypeInsn(int opcode, String type) {
-        current.instructions.add(new TypeInsnNode(opcode, type));
-    }
-
-    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-        current.instructions.add(new FieldInsnNode(opcode, owner, name, desc));
-    }
-
-    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
-        current.instructions.add(new MethodInsnNode(opcode, owner, name, desc));
-    }
-
-    public void visitInvokeDynamicInsn(String name, String desc, Handle handle, Object... args) {
-        current.instructions.add(new InvokeDynamicInsnNode(name, desc, handle, args));
-    }
-
-    public void visitJumpInsn(int opcode, Label label) {
-        Block block = getBlock(label);
-        current.target = block;
-        current.target.preds.add(current.target);
-        if (opcode != Opcodes.GOTO) current.instructions.add(new JumpInsnNode(opcode, block));
-        Stack<AbstractInsnNode> stack = current.stack;
-        current = getBlock(new Label(), opcode != Opcodes.GOTO);
-        current.stack = stack;
-    }
-
-    public void visitLabel(Label label) {
-        if (label == null || label.info == null) return;
-        Stack<AbstractInsnNode> stack = current == null ? new Stack<AbstractInsnNode>() : current.stack;
-        current = getBlock(label);
-        current.stack = stack;
+    private void layout(FlowGraph graph) {
+        int count = graph.size();
+        AbstractInsnNode[] insns = graph.insns;
+        int[] target = new int[count];
+        int[] preferred = new int[count];
+        for (int b = 0; b < count; b++) {
+            AbstractInsnNode last = insns[graph.starts[b + 1] - 1];
+            target[b] = last instanceof JumpInsnNode ? graph.block(((JumpInsnNode) last).label) : -1;
+            preferred[b] = graph.fallthrough[b];
+            if (preferred[b] == -1 && last.getOpcode() == Opcodes.GOTO) preferred[b] = target[b];
+        }
+        // iterative depth first search, exploring the preferred successor last so it directly follows in RPO
+        int[] post = new int[count];
+        int postCount = 0;
+        boolean[] visited = new boolean[count];
+        int[] stack = new int[count];
+        int[] cursor = new int[count];
+        int top = 0;
+        stack[top++] = 0;
+        visited[0] = true;
+        while (top > 0) {
+            int b = stack[top - 1];
+            int[] handlers = graph.handlers[b];
+            int[] successors = graph.successors[b];
+            int next = -1;
+            while (next == -1 && cursor[b] <= handlers.length + successors.length) {
+                int c = cursor[b]++;
+                int s;
+                if (c < handlers.length) {
+                    s = handlers[c];
+                } else if (c < handlers.length + successors.length) {
+                    s = successors[c - handlers.length];
+                    if (s == preferred[b]) continue;
+                } else {
+                    s = preferred[b];
+                }
+                if (s != -1 && !visited[s]) next = s;
+            }
+            if (next == -1) {
+                post[postCount++] = b;
+                top--;
+            } else {
+                visited[next] = true;
+                stack[top++] = next;
+            }
+        }
+        for (int b = 0; b < count; b++) {
+            if (!visited[b] && hasCode(graph, b)) unreachable++;
+        }
+        int[] order = new int[postCount];
+        int[] position = new int[count];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < postCount; i++) {
+            order[i] = post[postCount - 1 - i];
+            position[order[i]] = i;
+        }
+        LabelNode[] labels = new LabelNode[count];
+        for (int b = 0; b < count; b++) {
+            AbstractInsnNode first = insns[graph.starts[b]];
+            labels[b] = first instanceof LabelNode ? (LabelNode) first : new LabelNode();
+        }
+        boolean[] drop = new boolean[insns.length];
+        for (int i = 0; i < insns.length; i++) {
+            AbstractInsnNode ain = insns[i];
+            if (ain.getType() == AbstractInsnNode.FRAME) {
+                drop[i] = true;
+            } else if (ain.getType() == AbstractInsnNode.LINE) {
+                drop[i] = position[graph.block(((LineNumberNode) ain).start)] == -1;
+            }
+        }
+        List<TryCatchBlockNode> tcbs = mn.tryCatchBlocks == null ? Collections.<TryCatchBlockNode>emptyList() :
+                mn.tryCatchBlocks;
+        int[][] ranges = new int[tcbs.size()][];
+        for (int i = 0; i < ranges.length; i++) {
+            TryCatchBlockNode tcb = tcbs.get(i);
+            ranges[i] = new int[]{graph.block(tcb.start), graph.block(tcb.end), graph.block(tcb.handler)};
+        }
+        boolean[] keepLocals = new boolean[mn.localVariables == null ? 0 : mn.localVariables.size()];
+        for (int i = 0; i < keepLocals.length; i++) {
+            LocalVariableNode lvn = mn.localVariables.get(i);
+            keepLocals[i] = isReachable(graph, position, lvn.start, lvn.end);
+        }
+        boolean[] keepVisible = reachable(graph, position, mn.visibleLocalVariableAnnotations);
+        boolean[] keepInvisible = reachable(graph, position, mn.invisibleLocalVariableAnnotations);
+        InsnList list = mn.instructions;
+        for (AbstractInsnNode ain : insns) list.remove(ain);
+        for (int i = 0; i < order.length; i++) {
+            int b = order[i];
+            int next = i + 1 < order.length ? order[i + 1] : -1;
+            if (labels[b] != insns[graph.starts[b]]) list.add(labels[b]);
+            int end = graph.starts[b + 1];
+            for (int j = graph.starts[b]; j < end; j++) {
+                if (drop[j]) continue;
+                AbstractInsnNode ain = insns[j];
+                if (j == end - 1 && ain.getOpcode() == Opcodes.GOTO && target[b] == next) {
+                    gotos++;
+                    continue;
+                }
+                list.add(ain);
+            }
+            int fallthrough = graph.fallthrough[b];
+            if (fallthrough != -1 && fallthrough != next) {
+                AbstractInsnNode last = insns[end - 1];
+                if (target[b] == next && invert(last.getOpcode()) != -1) {
+                    JumpInsnNode jin = (JumpInsnNode) last;
+                    list.save(jin);
+                    jin.setOpcode(invert(jin.getOpcode()));
+                    jin.label = labels[fallthrough];
+                } else {
+                    list.add(new JumpInsnNode(Opcodes.GOTO, labels[fallthrough]));
+                }
+            }
+        }
+        LabelNode endLabel = new LabelNode();
+        list.add(endLabel);
+        if (!tcbs.isEmpty()) {
+            List<TryCatchBlockNode> rebuilt = new ArrayList<>(tcbs.size());
+            int[] covered = new int[order.length];
+            for (int t = 0; t < ranges.length; t++) {
+                TryCatchBlockNode tcb = tcbs.get(t);
+                if (position[ranges[t][2]] == -1) continue;
+                int size = 0;
+                for (int b = ranges[t][0]; b < ranges[t][1]; b++) {
+                    if (position[b] != -1) covered[size++] = position[b];
+                }
+                Arrays.sort(covered, 0, size);
+                int i = 0;
+                while (i < size) {
+                    int j = i;
+                    while (j + 1 < size && covered[j + 1] == covered[j] + 1) j++;
+                    LabelNode start = labels[order[covered[i]]];
+                    LabelNode stop = covered[j] + 1 < order.length ? labels[order[covered[j] + 1]] : endLabel;
+                    TryCatchBlockNode split = new TryCatchBlockNode(start, stop, tcb.handler, tcb.type);
+                    split.visibleTypeAnnotations = tcb.visibleTypeAnnotations;
+                    split.invisibleTypeAnnotations = tcb.invisibleTypeAnnotations;
+                    rebuilt.add(split);
+                    i = j + 1;
+                }
+            }
+            tcbs.clear();
+            tcbs.addAll(rebuilt);
+        }
+        if (mn.localVariables != null) {
+            List<LocalVariableNode> kept = new ArrayList<>(keepLocals.length);
+            for (int i = 0; i < keepLocals.length; i++) {
+                LocalVariableNode lvn = mn.localVariables.get(i);
+                if (keepLocals[i] && isOrdered(lvn.start, lvn.end)) kept.add(lvn);
+            }
+            mn.localVariables.clear();
+            mn.localVariables.addAll(kept);
+        }
+        retain(mn.visibleLocalVariableAnnotations, keepVisible);
+        retain(mn.invisibleLocalVariableAnnotations, keepInvisible);
     }
 
-    public void visitLdcInsn(Object cst) {
-        current.instructions.add(new LdcInsnNode(cst));
+    private static boolean hasCode(FlowGraph graph, int block) {
+        for (int i = graph.starts[block]; i < graph.starts[block + 1]; i++) {
+            if (graph.insns[i].getOpcode() != -1) return true;
+        }
+        return false;
     }
 
-    public void visitIincInsn(int var, int increment) {
-        current.instructions.add(new IincInsnNode(var, increment));
+    private static boolean isReachable(FlowGraph graph, int[] position, LabelNode start, LabelNode end) {
+        return position[graph.block(start)] != -1 && position[graph.block(end)] != -1;
     }
 
-    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
-        current.instructions.add(new TableSwitchInsnNode(min, max, getBlock(dflt), getBlocks(labels)));
+    private static boolean[] reachable(FlowGraph graph, int[] position, List<LocalVariableAnnotationNode> annotations) {
+        if (annotations == null) return null;
+        boolean[] keep = new boolean[annotations.size()];
+        for (int i = 0; i < keep.length; i++) {
+            LocalVariableAnnotationNode an = annotations.get(i);
+            keep[i] = true;
+            for (int j = 0; j < an.start.size() && keep[i]; j++) {
+                keep[i] = isReachable(graph, position, an.start.get(j), an.end.get(j));
+            }
+        }
+        return keep;
     }
 
-    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
-        current.instructions.add(new LookupSwitchInsnNode(getBlock(dflt), keys, getBlocks(labels)));
+    private boolean isOrdered(LabelNode start, LabelNode end) {
+        return mn.instructions.compare(start, end) <= 0;
     }
 
-    public void visitMultiANewArrayInsn(String desc, int dims) {
-        current.instructions.add(new MultiANewArrayInsnNode(desc, dims));
+    private void retain(List<LocalVariableAnnotationNode> annotations, boolean[] keep) {
+        if (annotations == null) return;
+        List<LocalVariableAnnotationNode> kept = new ArrayList<>(keep.length);
+        for (int i = 0; i < keep.length; i++) {
+            LocalVariableAnnotationNode an = annotations.get(i);
+            boolean ordered = keep[i];
+            for (int j = 0; j < an.start.size() && ordered; j++) ordered = isOrdered(an.start.get(j), an.end.get(j));
+            if (ordered) kept.add(an);
+        }
+        annotations.clear();
+        annotations.addAll(kept);
     }
 
-    public void visitEnd() {
-        List<Block> empty = new ArrayList<>();
-        for (Block block : blocks) {
-            block.owner = mn;
-            if (block.isEmpty()) empty.add(block);
+	/**
+	 * Gets the opcode of the conditional jump with the opposite condition.
+	 *
+	 * @param opcode A jump opcode.
+	 * @return The inverted opcode, or -1 if the opcode is not a conditional jump.
+	 */
+    public static int invert(int opcode) {
+        if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IF_ACMPNE) {
+            return ((opcode - Opcodes.IFEQ) ^ 1) + Opcodes.IFEQ;
+        } else if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+            return opcode ^ 1;
         }
-        blocks.removeAll(empty);
-        Collections.sort(blocks, new Comparator<Block>() {
-            public int compare(Block b1, Block b2) {
-                return mn.instructions.indexOf(new LabelNode(b1.label)) - mn.instructions.indexOf(new LabelNode(b2.label));
-            }
-        });
+        return -1;
     }
 }
@@ -0,0 +1,262 @@
+package org.sasm.util.deob.flow;
+
+import org.sasm.Opcodes;
+import org.sasm.Type;
+import org.sasm.tree.*;
+
+/**
+ * A backward live-variable analysis over the local variable slots of a method.
+ * Every block keeps its live-in and live-out sets as <tt>long</tt> bitsets of
+ * {@link #words} words each, indexed by local variable slot. Long and double
+ * locals occupy both of their slots.
+ *
+ * @author Tyler Sedlar
+ */
+public class Liveness {
+
+    public final FlowGraph graph;
+
+	/**
+	 * The amount of local variable slots tracked.
+	 */
+    public final int locals;
+
+	/**
+	 * The amount of <tt>long</tt> words in each bitset.
+	 */
+    public final int words;
+
+    private final long[] liveIn;
+    private final long[] liveOut;
+
+    private Liveness(FlowGraph graph, int locals) {
+        this.graph = graph;
+        this.locals = locals;
+        this.words = (locals + 63) >>> 6;
+        int blocks = graph.size();
+        this.liveIn = new long[blocks * words];
+        this.liveOut = new long[blocks * words];
+        long[] use = new long[blocks * words];
+        long[] def = new long[blocks * words];
+        for (int b = 0; b < blocks; b++) {
+            int offset = b * words;
+            boolean covered = graph.handlers[b].length > 0;
+            for (int i = graph.starts[b + 1] - 1; i >= graph.starts[b]; i--) {
+                AbstractInsnNode ain = graph.insns[i];
+                int var = var(ain);
+                if (var == -1) continue;
+                int size = size(ain.getOpcode());
+                if (isStore(ain.getOpcode())) {
+                    for (int j = 0; j < size; j++) {
+                        // a handler may observe the old value, so covered blocks never kill
+                        if (!covered) set(def, offset, var + j);
+                        clear(use, offset, var + j);
+                    }
+                } else {
+                    for (int j = 0; j < size; j++) set(use, offset, var + j);
+                }
+            }
+        }
+        int[] stack = new int[blocks];
+        boolean[] queued = new boolean[blocks];
+        int top = 0;
+        for (int b = 0; b < blocks; b++) {
+            stack[top++] = b;
+            queued[b] = true;
+        }
+        while (top > 0) {
+            int b = stack[--top];
+            queued[b] = false;
+            int offset = b * words;
+            for (int s : graph.successors[b]) or(liveOut, offset, liveIn, s * words, words);
+            for (int h : graph.handlers[b]) or(liveOut, offset, liveIn, h * words, words);
+            boolean changed = false;
+            for (int w = 0; w < words; w++) {
+                long in = use[offset + w] | (liveOut[offset + w] & ~def[offset + w]);
+                if (in != liveIn[offset + w]) {
+                    liveIn[offset + w] = in;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                for (int p : graph.predecessors[b]) {
+                    if (!queued[p]) {
+                        queued[p] = true;
+                        stack[top++] = p;
+                    }
+                }
+            }
+        }
+    }
+
+	/**
+	 * Computes the liveness of the local variables of the given method.
+	 *
+	 * @param mn The method to analyze.
+	 * @return The liveness of the method's locals, or <tt>null</tt> if the method
+	 * has no code or uses JSR/RET subroutines.
+	 */
+    public static Liveness compute(MethodNode mn) {
+        if (mn.instructions.size() == 0) return null;
+        int locals = Math.max(mn.maxLocals, argumentSize(mn));
+        for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+            int opcode = ain.getOpcode();
+            if (opcode == Opcodes.JSR || opcode == Opcodes.RET) return null;
+            int var = var(ain);
+            if (var != -1) locals = Math.max(locals, var + size(opcode));
+        }
+        return new Liveness(new FlowGraph(mn), locals);
+    }
+
+	/**
+	 * Gets the size of the method's arguments, including <tt>this</tt>, in slots.
+	 *
+	 * @param mn The method to get the argument size of.
+	 * @return The size of the method's arguments in slots.
+	 */
+    public static int argumentSize(MethodNode mn) {
+        int size = (Type.getArgumentsAndReturnSizes(mn.desc) >> 2) - 1;
+        return (mn.access & Opcodes.ACC_STATIC) != 0 ? size : size + 1;
+    }
+
+	/**
+	 * Gets a copy of the slots live on entry to the given block.
+	 *
+	 * @param block The block index.
+	 * @return A bitset of the slots live on entry to the block.
+	 */
+    public long[] getLiveIn(int block) {
+        long[] copy = new long[words];
+        System.arraycopy(liveIn, block * words, copy, 0, words);
+        return copy;
+    }
+
+	/**
+	 * Gets a copy of the slots live on exit from the given block.
+	 *
+	 * @param block The block index.
+	 * @return A bitset of the slots live on exit from the block.
+	 */
+    public long[] getLiveOut(int block) {
+        long[] copy = new long[words];
+        System.arraycopy(liveOut, block * words, copy, 0, words);
+        return copy;
+    }
+
+	/**
+	 * Gets the slots live on entry to any exception handler covering the given
+	 * block. These slots stay live at every instruction of the block, since any
+	 * instruction may throw.
+	 *
+	 * @param block The block index.
+	 * @return A bitset of the slots the block's handlers read, or <tt>null</tt> if
+	 * the block is not covered by a handler.
+	 */
+    public long[] getHandlerLive(int block) {
+        int[] handlers = graph.handlers[block];
+        if (handlers.length == 0) return null;
+        long[] live = new long[words];
+        for (int h : handlers) or(live, 0, liveIn, h * words, words);
+        return live;
+    }
+
+	/**
+	 * Checks whether a slot is live on entry to the given block.
+	 *
+	 * @param block The block index.
+	 * @param var The local variable slot.
+	 * @return <t>true</t> if the slot is live on entry to the block, otherwise <t>false.</t>
+	 */
+    public boolean isLiveIn(int block, int var) {
+        return get(liveIn, block * words, var);
+    }
+
+	/**
+	 * Checks whether a slot is live on exit from the given block.
+	 *
+	 * @param block The block index.
+	 * @param var The local variable slot.
+	 * @return <t>true</t> if the slot is live on exit from the block, otherwise <t>false.</t>
+	 */
+    public boolean isLiveOut(int block, int var) {
+        return get(liveOut, block * words, var);
+    }
+
+	/**
+	 * Steps the given live set backward over an instruction, turning the set of
+	 * slots live after the instruction into the set live before it.
+	 *
+	 * @param ain The instruction to step over.
+	 * @param live The live set to update.
+	 */
+    public static void transfer(AbstractInsnNode ain, long[] live) {
+        int var = var(ain);
+        if (var == -1) return;
+        int opcode = ain.getOpcode();
+        int size = size(opcode);
+        boolean store = isStore(opcode);
+        for (int i = 0; i < size; i++) {
+            if (store) {
+                clear(live, 0, var + i);
+            } else {
+                set(live, 0, var + i);
+            }
+        }
+    }
+
+	/**
+	 * Gets the local variable slot an instruction reads or writes.
+	 *
+	 * @param ain The instruction.
+	 * @return The slot of a {@link VarInsnNode} or {@link IincInsnNode}, otherwise -1.
+	 */
+    public static int var(AbstractInsnNode ain) {
+        if (ain instanceof VarInsnNode) return ((VarInsnNode) ain).var;
+        if (ain instanceof IincInsnNode) return ((IincInsnNode) ain).var;
+        return -1;
+    }
+
+	/**
+	 * Gets the amount of slots a local variable instruction touches.
+	 *
+	 * @param opcode The opcode of the instruction.
+	 * @return 2 for long and double loads and stores, otherwise 1.
+	 */
+    public static int size(int opcode) {
+        switch (opcode) {
+            case Opcodes.LLOAD:
+            case Opcodes.DLOAD:
+            case Opcodes.LSTORE:
+            case Opcodes.DSTORE:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+	/**
+	 * Checks whether the given opcode stores to a local variable.
+	 *
+	 * @param opcode The opcode to check.
+	 * @return <t>true</t> if the opcode is one of ISTORE through ASTORE, otherwise <t>false.</t>
+	 */
+    public static boolean isStore(int opcode) {
+        return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE;
+    }
+
+    public static boolean get(long[] set, int offset, int bit) {
+        return (set[offset + (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    public static void set(long[] set, int offset, int bit) {
+        set[offset + (bit >>> 6)] |= 1L << bit;
+    }
+
+    public static void clear(long[] set, int offset, int bit) {
+        set[offset + (bit >>> 6)] &= ~(1L << bit);
+    }
+
+    public static void or(long[] dst, int dstOffset, long[] src, int srcOffset, int words) {
+        for (int w = 0; w < words; w++) dst[dstOffset + w] |= src[srcOffset + w];
+    }
+}